@@ -0,0 +1,147 @@
+package edu.javeriana.biblioteca.bench;
+
+import edu.javeriana.biblioteca.messaging.Message;
+import edu.javeriana.biblioteca.messaging.StorageResult;
+import edu.javeriana.biblioteca.messaging.Wire;
+import edu.javeriana.biblioteca.processes.LoadManager;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput del GC en modo router según la cantidad de workers.
+ *
+ * Levanta en el mismo proceso un LoanActor de prueba (responde cada PRESTAMO
+ * tras una demora fija, atendiendo muchos en paralelo), un GC en modo router
+ * y N clientes REQ que envían PRESTAMO sin pausa.
+ *
+ * Uso: mvn exec:java -Dexec.mainClass="edu.javeriana.biblioteca.bench.GcThroughputBench"
+ * -Dexec.args="[demoraActorMs] [clientes] [segundosPorCorrida] [workers...]"
+ */
+public class GcThroughputBench {
+
+	private static final int BASE_PORT = 6100;
+
+	public static void main(String[] args) throws Exception {
+		long actorDelayMs = args.length > 0 ? Long.parseLong(args[0]) : 5;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		List<Integer> workerCounts = new ArrayList<>();
+		for (int i = 3; i < args.length; i++)
+			workerCounts.add(Integer.parseInt(args[i]));
+		if (workerCounts.isEmpty())
+			workerCounts = List.of(1, 2, 4, 8, 16);
+
+		// El GC imprime cada solicitud: se silencia durante las corridas
+		PrintStream console = System.out;
+		console.printf("[Bench] actor=%d ms, clientes=%d, %d s por corrida%n", actorDelayMs, clients, seconds);
+
+		int port = BASE_PORT;
+		for (int workers : workerCounts) {
+			String gcRep = "tcp://127.0.0.1:" + (port++);
+			String gcPub = "tcp://127.0.0.1:" + (port++);
+			String actor = "tcp://127.0.0.1:" + (port++);
+
+			startStubActor(actor, actorDelayMs);
+
+			System.setProperty("gc.rep", gcRep);
+			System.setProperty("gc.pub", gcPub);
+			System.setProperty("actor.loan.req", actor);
+			System.setProperty("gc.workers", String.valueOf(workers));
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+			Thread gc = new Thread(() -> LoadManager.main(new String[] { "router" }), "bench-gc-" + workers);
+			gc.setDaemon(true);
+			gc.start();
+			Thread.sleep(300); // dar tiempo a los binds
+
+			long ops = runClients(gcRep, clients, seconds);
+			System.setOut(console);
+			console.printf("[Bench] workers=%3d  %8d ops  %10.1f ops/s%n", workers, ops, ops / (double) seconds);
+		}
+		System.exit(0);
+	}
+
+	private static long runClients(String gcRep, int clients, int seconds) throws InterruptedException {
+		AtomicLong done = new AtomicLong();
+		CountDownLatch finished = new CountDownLatch(clients);
+		long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+		ZMQ.Context ctx = ZMQ.context(1);
+		for (int c = 0; c < clients; c++) {
+			int id = c;
+			Thread t = new Thread(() -> {
+				try (ZMQ.Socket req = ctx.socket(SocketType.REQ)) {
+					req.setLinger(0);
+					req.setReceiveTimeOut(5000);
+					req.connect(gcRep);
+					Message msg = Message.prestar("S1", "bench_" + id, "BK-0001");
+					while (System.nanoTime() < deadline) {
+						Wire.send(req, msg);
+						if (req.recvStr() == null)
+							break;
+						done.incrementAndGet();
+					}
+				} finally {
+					finished.countDown();
+				}
+			}, "bench-client-" + c);
+			t.setDaemon(true);
+			t.start();
+		}
+		finished.await();
+		ctx.term();
+		return done.get();
+	}
+
+	private static void startStubActor(String endpoint, long delayMs) {
+		// LoanActor de prueba: ROUTER que contesta cada solicitud tras delayMs,
+		// con cualquier cantidad de solicitudes en vuelo
+		Thread t = new Thread(() -> {
+			record Pending(long dueNs, byte[] identity) {
+			}
+			ZMQ.Context ctx = ZMQ.context(1);
+			try (ZMQ.Socket router = ctx.socket(SocketType.ROUTER)) {
+				router.bind(endpoint);
+				ZMQ.Poller poller = ctx.poller(1);
+				poller.register(router, ZMQ.Poller.POLLIN);
+				ArrayDeque<Pending> pending = new ArrayDeque<>(); // demora fija → orden FIFO
+				StorageResult ok = new StorageResult(true, "stub");
+				while (!Thread.currentThread().isInterrupted()) {
+					long now = System.nanoTime();
+					while (!pending.isEmpty() && pending.peekFirst().dueNs() <= now) {
+						Pending p = pending.pollFirst();
+						router.sendMore(p.identity());
+						router.sendMore(new byte[0]);
+						Wire.send(router, ok);
+					}
+					long waitMs = pending.isEmpty() ? 100
+							: Math.max(0, (pending.peekFirst().dueNs() - now) / 1_000_000);
+					poller.poll(waitMs);
+					while (poller.pollin(0)) {
+						byte[] identity = router.recv(ZMQ.DONTWAIT);
+						if (identity == null)
+							break;
+						router.recv(0); // delimitador
+						Wire.recvMessage(router);
+						pending.addLast(new Pending(System.nanoTime() + delayMs * 1_000_000L, identity));
+						poller.poll(0);
+					}
+				}
+			} catch (ZMQException e) {
+				// fin del benchmark
+			}
+		}, "bench-stub-actor");
+		t.setDaemon(true);
+		t.start();
+	}
+}
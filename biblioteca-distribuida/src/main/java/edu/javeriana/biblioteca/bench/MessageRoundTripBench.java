@@ -0,0 +1,118 @@
+package edu.javeriana.biblioteca.bench;
+
+import edu.javeriana.biblioteca.messaging.KeyRing;
+import edu.javeriana.biblioteca.messaging.Message;
+import edu.javeriana.biblioteca.messaging.WireCodec;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Benchmark de ida y vuelta de Message (serialize + parse).
+ *
+ * "antes": replica el camino anterior, que derivaba la llave con PBKDF2 en
+ * cada cifrado/descifrado y creaba Cipher/Mac nuevos por llamada.
+ * "después": el camino de texto actual con KeyRing, y los sobres binarios
+ * v1 (AES-GCM + HMAC) y v2 (solo AEAD).
+ *
+ * Uso: mvn exec:java -Dexec.mainClass="edu.javeriana.biblioteca.bench.MessageRoundTripBench"
+ * -Dexec.args="[iteraciones]"
+ */
+public class MessageRoundTripBench {
+
+	private static final String AES_SECRET = "bench-aes-secret";
+	private static final String HMAC_SECRET = "bench-hmac-secret";
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+		// El camino anterior es ~1000x más lento: se mide con menos iteraciones
+		int legacyIterations = Math.max(10, iterations / 1000);
+
+		Message msg = Message.prestar("S1", "uS1_201", "BK-0101");
+
+		// Calentamiento de ambos caminos
+		for (int i = 0; i < 2_000; i++)
+			Message.parse(msg.serialize());
+		legacyRoundTrip(msg);
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < legacyIterations; i++)
+			legacyRoundTrip(msg);
+		long legacyNs = System.nanoTime() - t0;
+
+		t0 = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			Message back = Message.parse(msg.serialize());
+			if (!back.equals(msg))
+				throw new IllegalStateException("Round trip inconsistente: " + back);
+		}
+		long ringNs = System.nanoTime() - t0;
+
+		long hmacNs = binaryRoundTrips(msg, iterations, WireCodec.VERSION_HMAC);
+		long aeadNs = binaryRoundTrips(msg, iterations, WireCodec.VERSION_AEAD);
+
+		report("antes (PBKDF2 por llamada)", legacyIterations, legacyNs);
+		report("despues (KeyRing)", iterations, ringNs);
+		report("binario v1 (GCM + HMAC)", iterations, hmacNs);
+		report("binario v2 (AEAD)", iterations, aeadNs);
+		System.out.printf("[Bench] Mejora: %.1fx%n",
+				(legacyNs / (double) legacyIterations) / (ringNs / (double) iterations));
+	}
+
+	private static long binaryRoundTrips(Message msg, int iterations, byte version) {
+		for (int i = 0; i < 2_000; i++)
+			WireCodec.decodeMessage(WireCodec.encode(msg, version));
+		long t0 = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			Message back = WireCodec.decodeMessage(WireCodec.encode(msg, version));
+			if (!back.equals(msg))
+				throw new IllegalStateException("Round trip inconsistente: " + back);
+		}
+		return System.nanoTime() - t0;
+	}
+
+	private static void report(String label, int n, long ns) {
+		double usPerOp = ns / 1_000.0 / n;
+		System.out.printf("[Bench] %-28s %8d round trips  %10.2f us/op  %10.0f ops/s%n",
+				label, n, usPerOp, 1_000_000.0 / usPerOp);
+	}
+
+	private static void legacyRoundTrip(Message m) throws Exception {
+		// serialize(): derivar + cifrar + firmar
+		String payload = String.join("|", m.type(), m.branchId(), m.userId(), m.bookCode());
+		SecretKeySpec aes = new SecretKeySpec(KeyRing.derive(AES_SECRET), "AES");
+		byte[] iv = new byte[12];
+		RANDOM.nextBytes(iv);
+		Cipher enc = Cipher.getInstance("AES/GCM/NoPadding");
+		enc.init(Cipher.ENCRYPT_MODE, aes, new GCMParameterSpec(128, iv));
+		byte[] ct = enc.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+		byte[] combined = new byte[iv.length + ct.length];
+		System.arraycopy(iv, 0, combined, 0, iv.length);
+		System.arraycopy(ct, 0, combined, iv.length, ct.length);
+		String encrypted = Base64.getEncoder().encodeToString(combined);
+		String sig = hmac(encrypted);
+		String wire = encrypted + "|" + sig;
+
+		// parse(): verificar + derivar + descifrar
+		String[] p = wire.split("\\|", -1);
+		if (!hmac(p[0]).equals(p[1]))
+			throw new SecurityException("Firma invalida");
+		byte[] raw = Base64.getDecoder().decode(p[0]);
+		SecretKeySpec aes2 = new SecretKeySpec(KeyRing.derive(AES_SECRET), "AES");
+		Cipher dec = Cipher.getInstance("AES/GCM/NoPadding");
+		dec.init(Cipher.DECRYPT_MODE, aes2, new GCMParameterSpec(128, raw, 0, 12));
+		dec.doFinal(raw, 12, raw.length - 12);
+	}
+
+	private static String hmac(String s) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(HMAC_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+		return Base64.getEncoder().encodeToString(mac.doFinal(s.getBytes(StandardCharsets.UTF_8)));
+	}
+}
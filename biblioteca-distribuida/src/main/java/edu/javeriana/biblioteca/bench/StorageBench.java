@@ -0,0 +1,128 @@
+package edu.javeriana.biblioteca.bench;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.common.Histogram;
+import edu.javeriana.biblioteca.persistence.StorageGateway;
+import edu.javeriana.biblioteca.replication.DataSourceRouter;
+import edu.javeriana.biblioteca.replication.FailbackResync;
+import edu.javeriana.biblioteca.replication.Replicator;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencia de StorageGateway por operación: consultas paso a paso
+ * (ga.sql.mode=statements), una sola sentencia por operación
+ * (ga.sql.mode=functions, funciones apply_* de Schema.sql) y esta última con
+ * group commit (ga.group.commit=true), que imprime además commits por segundo.
+ *
+ * Cada hilo repite PRESTAMO → RENOVACION → DEVOLUCION sobre libros de S1 sin
+ * préstamos iniciales (BK-0201..BK-0900), así cada ciclo deja el inventario
+ * como estaba. Necesita la BD primaria con Schema.sql cargado; deja préstamos
+ * RETURNED en loans.
+ *
+ * Uso: mvn exec:java -Dexec.mainClass="edu.javeriana.biblioteca.bench.StorageBench"
+ * -Dexec.args="[ciclosPorHilo] [hilos]"
+ */
+public class StorageBench {
+
+	public static void main(String[] args) throws Exception {
+		int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		// Logs de replicación temporales: el banco no toca los del GA
+		Path dir = Files.createTempDirectory("storage-bench");
+		System.setProperty("repl.log.file", dir.resolve("replication.log").toString());
+		System.setProperty("resync.log.file", dir.resolve("resync.log").toString());
+
+		System.out.printf("[Bench] %d hilos x %d ciclos (préstamo, renovación, devolución)%n", threads, cycles);
+		run("statements", false, cycles, threads);
+		run("functions", false, cycles, threads);
+		run("functions", true, cycles, threads);
+	}
+
+	private static void run(String mode, boolean group, int cycles, int threads) throws Exception {
+		System.setProperty("ga.sql.mode", mode);
+		System.setProperty("ga.group.commit", String.valueOf(group));
+		String label = group ? mode + "+group" : mode;
+		DataSourceRouter router = new DataSourceRouter(
+				AppConfig.get("db.primary.url", "jdbc:postgresql://localhost:5432/BDPrimaria"),
+				AppConfig.get("db.primary.user", "postgres"),
+				AppConfig.get("db.primary.pass", "123"),
+				AppConfig.get("db.secondary.url", "jdbc:postgresql://localhost:5432/BDSecundaria"),
+				AppConfig.get("db.secondary.user", "postgres"),
+				AppConfig.get("db.secondary.pass", "123"));
+		FailbackResync resync = new FailbackResync(router);
+		Replicator replicator = new Replicator(router, resync);
+		StorageGateway gateway = new StorageGateway(router, replicator);
+
+		Histogram loan = new Histogram("µs");
+		Histogram renewal = new Histogram("µs");
+		Histogram ret = new Histogram("µs");
+		AtomicLong errors = new AtomicLong();
+
+		// Calentamiento: prepared statements y pool
+		cycle(gateway, "bench_w", "BK-0900", null, null, null, errors);
+		errors.set(0);
+
+		CountDownLatch done = new CountDownLatch(threads);
+		long t0 = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			int id = t;
+			Thread th = new Thread(() -> {
+				try {
+					for (int i = 0; i < cycles; i++) {
+						String book = String.format("BK-%04d", 201 + (id * cycles + i) % 699);
+						cycle(gateway, "bench_" + label.charAt(0) + (group ? "g" : "") + id, book, loan, renewal,
+								ret, errors);
+					}
+				} finally {
+					done.countDown();
+				}
+			}, "bench-" + id);
+			th.start();
+		}
+		done.await();
+		long ns = System.nanoTime() - t0;
+
+		long ops = 3L * cycles * threads;
+		System.out.printf("[Bench] %-16s %8.0f ops/s  errores=%d%n", label,
+				ops / (ns / 1e9), errors.get());
+		System.out.println("           PRESTAMO   " + loan.summary());
+		System.out.println("           RENOVACION " + renewal.summary());
+		System.out.println("           DEVOLUCION " + ret.summary());
+		if (group) {
+			System.out.println("           " + gateway.groupCommitStats());
+		}
+
+		replicator.shutdown();
+		resync.close();
+		router.close();
+	}
+
+	private static void cycle(StorageGateway gateway, String user, String book, Histogram loan,
+			Histogram renewal, Histogram ret, AtomicLong errors) {
+		try {
+			long t = System.nanoTime();
+			gateway.applyLoan("S1", user, book);
+			record(loan, t);
+			t = System.nanoTime();
+			gateway.applyRenewal("S1", user, book);
+			record(renewal, t);
+			t = System.nanoTime();
+			gateway.applyReturn("S1", user, book);
+			record(ret, t);
+		} catch (Exception e) {
+			errors.incrementAndGet();
+		}
+	}
+
+	private static void record(Histogram h, long t0) {
+		if (h != null) {
+			h.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t0));
+		}
+	}
+}
@@ -1,53 +1,335 @@
 package edu.javeriana.biblioteca.common;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
-import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Log de auditoría asíncrono.
+ *
+ * log() solo deja el registro en un buffer circular acotado (sin locks) y
+ * regresa; un único hilo escritor lo formatea en un buffer reutilizado y
+ * escribe por lotes en un FileChannel que queda abierto. La rotación por
+ * tamaño también ocurre en el hilo escritor.
+ *
+ * Con el buffer lleno se aplica audit.overflow:
+ * - block: el llamador espera a que haya espacio (no se pierde nada)
+ * - drop: se descarta el registro y solo se cuenta en las métricas
+ * - count: se descarta, y al liberarse espacio se escribe una línea con
+ *   cuántos registros se perdieron, para que el hueco quede en el log
+ */
 public class AuditLogger {
 
+    public enum Overflow {
+        BLOCK, DROP, COUNT
+    }
+
     private static final Path LOG_FILE = Paths.get("audit.log");
     private static final long MAX_SIZE = 5 * 1024 * 1024; // 5 MB
 
-    private static String processId() {
-        // Obtiene el PID del proceso JVM
-        try {
-            String jvm = ManagementFactory.getRuntimeMXBean().getName(); // formato pid@host
-            return jvm.split("@")[0];
-        } catch (Exception e) {
-            return "unknown";
+    // Metadatos del proceso: se calculan una sola vez
+    private static final String PID = String.valueOf(ProcessHandle.current().pid());
+    private static final String USER = System.getenv().getOrDefault("USER",
+            System.getenv().getOrDefault("USERNAME", "unknown"));
+
+    private static final int CAPACITY = capacity();
+    private static final Overflow OVERFLOW = overflow();
+
+    // Buffer circular MPSC: cada celda lleva un número de secuencia que indica
+    // si está libre para el productor o lista para el escritor
+    private static final AtomicReferenceArray<Entry> SLOTS = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray SEQ = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong TAIL = new AtomicLong(); // siguiente posición a reservar
+    private static volatile long head; // siguiente posición a escribir (solo el escritor la avanza)
+    private static volatile long flushed; // posiciones ya escritas en el archivo
+
+    // Métricas
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final AtomicLong PENDING_DROPPED = new AtomicLong(); // aún sin línea de aviso
+    private static final AtomicLong WRITTEN = new AtomicLong();
+    private static final Histogram WRITE_LATENCY = new Histogram("µs");
+    private static final Histogram BATCH_SIZE = new Histogram("registros");
+
+    private static final Thread WRITER;
+    private static volatile boolean writerParked;
+    private static volatile boolean closed;
+
+    private record Entry(long timeMillis, String actor, String action, String status, String message) {
+    }
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            SEQ.set(i, i);
         }
+        WRITER = new Thread(new Writer(), "audit-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+
+        // Al terminar el proceso se vacía lo pendiente
+        Runtime.getRuntime().addShutdownHook(new Thread(AuditLogger::close, "audit-flush"));
+    }
+
+    private static int capacity() {
+        // Potencia de dos >= audit.buffer.size
+        int requested = Integer.parseInt(System.getProperty("audit.buffer.size",
+                AppConfig.get("audit.buffer.size", "8192")));
+        int cap = Integer.highestOneBit(Math.max(2, requested));
+        return cap < requested ? cap << 1 : cap;
     }
 
-    private static synchronized void rotateIfNeeded() {
-        // Rota el archivo si supera el tamaño límite
+    private static Overflow overflow() {
+        String v = System.getProperty("audit.overflow", AppConfig.get("audit.overflow", "block"));
         try {
-            if (Files.exists(LOG_FILE) && Files.size(LOG_FILE) > MAX_SIZE) {
-                Path target = Paths.get("audit.log.old");
-                Files.move(LOG_FILE, target, StandardCopyOption.REPLACE_EXISTING);
+            return Overflow.valueOf(v.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("AuditLogger: audit.overflow desconocido (" + v + "), se usa block");
+            return Overflow.BLOCK;
+        }
+    }
+
+    public static void log(String actor, String action, String message, String status) {
+        // Encola una línea de auditoría; la escritura ocurre en el hilo escritor
+        Entry e = new Entry(System.currentTimeMillis(), actor, action, status, message);
+        if (closed) {
+            return;
+        }
+        int spins = 0;
+        while (!offer(e)) {
+            if (OVERFLOW != Overflow.BLOCK) {
+                DROPPED.incrementAndGet();
+                if (OVERFLOW == Overflow.COUNT) {
+                    PENDING_DROPPED.incrementAndGet();
+                }
+                return;
+            }
+            // Buffer lleno en modo block: esperar al escritor
+            wakeWriter();
+            if (++spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(50_000);
             }
-        } catch (IOException e) {
-            System.err.println("AuditLogger rotation error: " + e.getMessage());
+        }
+        if (writerParked) {
+            wakeWriter();
         }
     }
 
-    public static synchronized void log(String actor, String action, String message, String status) {
-        // Registra una línea de auditoría con timestamp, PID y usuario
-        rotateIfNeeded();
-        String ts = DateTimeFormatter.ISO_INSTANT.format(Instant.now());
-        String user = System.getenv().getOrDefault("USER", System.getenv().getOrDefault("USERNAME", "unknown"));
-        String pid = processId();
-        String line = String.format(
-                "%s | pid=%s | user=%s | actor=%s | action=%s | status=%s | %s%n",
-                ts, pid, user, actor, action, status, message == null ? "" : message);
+    private static boolean offer(Entry e) {
+        // Reserva una celda con CAS sobre TAIL; false si el buffer está lleno
+        while (true) {
+            long pos = TAIL.get();
+            int idx = (int) (pos & (CAPACITY - 1));
+            long seq = SEQ.get(idx);
+            if (seq == pos) {
+                if (TAIL.compareAndSet(pos, pos + 1)) {
+                    SLOTS.lazySet(idx, e);
+                    SEQ.set(idx, pos + 1); // publica la celda al escritor
+                    return true;
+                }
+            } else if (seq < pos) {
+                return false; // la celda aún no la libera el escritor
+            }
+            // otra hebra ganó la posición: reintentar
+        }
+    }
 
-        // Escribe en el archivo audit.log
+    private static Entry poll() {
+        // Solo el hilo escritor consume
+        long pos = head;
+        int idx = (int) (pos & (CAPACITY - 1));
+        if (SEQ.get(idx) != pos + 1) {
+            return null;
+        }
+        Entry e = SLOTS.get(idx);
+        SLOTS.lazySet(idx, null);
+        SEQ.set(idx, pos + CAPACITY); // libera la celda para la siguiente vuelta
+        head = pos + 1;
+        return e;
+    }
+
+    private static void wakeWriter() {
+        LockSupport.unpark(WRITER);
+    }
+
+    public static int queueDepth() {
+        return (int) Math.max(0, TAIL.get() - head);
+    }
+
+    public static long dropped() {
+        return DROPPED.get();
+    }
+
+    public static String stats() {
+        // Resumen de métricas para los logs de estadísticas de cada proceso
+        return String.format("cola=%d/%d escritos=%d descartados=%d politica=%s | escritura: %s | lote: %s",
+                queueDepth(), CAPACITY, WRITTEN.get(), DROPPED.get(), OVERFLOW.name().toLowerCase(),
+                WRITE_LATENCY.summary(), BATCH_SIZE.summary());
+    }
+
+    public static void flush() {
+        // Espera a que el escritor haya procesado todo lo encolado hasta ahora
+        long target = TAIL.get();
+        while (flushed < target && WRITER.isAlive()) {
+            wakeWriter();
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    public static void close() {
+        // Vacía lo pendiente y detiene el escritor
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        wakeWriter();
         try {
-            Files.writeString(LOG_FILE, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-        } catch (IOException e) {
-            System.err.println("AuditLogger write error: " + e.getMessage());
+            WRITER.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Hilo escritor: formatea por lotes y escribe en el canal abierto */
+    private static final class Writer implements Runnable {
+        private static final int MAX_BATCH = 1024;
+
+        private final StringBuilder line = new StringBuilder(256);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+        private FileChannel channel;
+        private long size;
+
+        @Override
+        public void run() {
+            while (true) {
+                int n = drain();
+                if (n > 0) {
+                    continue;
+                }
+                if (closed && head == TAIL.get()) {
+                    break;
+                }
+                // Sin trabajo: dormir hasta que un productor despierte al escritor
+                writerParked = true;
+                if (head == TAIL.get() && !closed) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                writerParked = false;
+            }
+            closeChannel();
+        }
+
+        private int drain() {
+            // Toma hasta MAX_BATCH registros, los codifica y los escribe juntos
+            int n = 0;
+            long t0 = System.nanoTime();
+            Entry e;
+            while (n < MAX_BATCH && (e = poll()) != null) {
+                encode(e);
+                n++;
+            }
+            long lost = PENDING_DROPPED.getAndSet(0);
+            if (lost > 0) {
+                encode(new Entry(System.currentTimeMillis(), "AuditLogger", "AUDIT_DROPPED", "WARN",
+                        "registros descartados por buffer lleno=" + lost));
+            }
+            if (n > 0 || lost > 0) {
+                if (out.position() > 0) {
+                    writeOut();
+                }
+                WRITE_LATENCY.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t0));
+                BATCH_SIZE.record(n);
+                WRITTEN.addAndGet(n);
+                flushed = head;
+            }
+            return n;
+        }
+
+        private void encode(Entry e) {
+            // Misma línea que antes: ts | pid | user | actor | action | status | mensaje
+            line.setLength(0);
+            DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(e.timeMillis()), line);
+            line.append(" | pid=").append(PID)
+                    .append(" | user=").append(USER)
+                    .append(" | actor=").append(e.actor())
+                    .append(" | action=").append(e.action())
+                    .append(" | status=").append(e.status())
+                    .append(" | ").append(e.message() == null ? "" : e.message())
+                    .append(System.lineSeparator());
+
+            CharBuffer chars = CharBuffer.wrap(line);
+            encoder.reset();
+            while (true) {
+                CoderResult r = encoder.encode(chars, out, true);
+                if (r.isOverflow()) {
+                    writeOut();
+                    continue;
+                }
+                break;
+            }
+        }
+
+        private void writeOut() {
+            // Escribe el buffer completo y rota si el archivo pasa el límite
+            out.flip();
+            try {
+                if (channel == null) {
+                    open();
+                }
+                while (out.hasRemaining()) {
+                    size += channel.write(out);
+                }
+                if (size > MAX_SIZE) {
+                    rotate();
+                }
+            } catch (IOException ex) {
+                System.err.println("AuditLogger write error: " + ex.getMessage());
+                closeChannel();
+            } finally {
+                out.clear();
+            }
+        }
+
+        private void open() throws IOException {
+            channel = FileChannel.open(LOG_FILE, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            size = channel.size();
+        }
+
+        private void rotate() {
+            // Rota el archivo si supera el tamaño límite
+            closeChannel();
+            try {
+                Path target = Paths.get("audit.log.old");
+                Files.move(LOG_FILE, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.err.println("AuditLogger rotation error: " + e.getMessage());
+            }
+        }
+
+        private void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("AuditLogger close error: " + e.getMessage());
+                }
+                channel = null;
+            }
         }
     }
 }
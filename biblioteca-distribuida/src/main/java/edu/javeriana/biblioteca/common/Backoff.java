@@ -0,0 +1,51 @@
+package edu.javeriana.biblioteca.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Espera entre reintentos: exponencial con jitter completo.
+ *
+ * El intento n espera un valor al azar entre 0 y min(maxMs, baseMs * 2^(n-1)),
+ * así los clientes que fallaron juntos no reintentan juntos. La espera nunca
+ * supera lo que queda del plazo de la solicitud.
+ */
+public final class Backoff {
+
+	private final long baseMs;
+	private final long maxMs;
+
+	public Backoff(long baseMs, long maxMs) {
+		this.baseMs = Math.max(1, baseMs);
+		this.maxMs = Math.max(this.baseMs, maxMs);
+	}
+
+	/** Lee {prefix}.base.ms y {prefix}.max.ms (System property o app.properties) */
+	public static Backoff fromConfig(String prefix, long defBaseMs, long defMaxMs) {
+		long base = Long.parseLong(System.getProperty(prefix + ".base.ms",
+				AppConfig.get(prefix + ".base.ms", String.valueOf(defBaseMs))));
+		long max = Long.parseLong(System.getProperty(prefix + ".max.ms",
+				AppConfig.get(prefix + ".max.ms", String.valueOf(defMaxMs))));
+		return new Backoff(base, max);
+	}
+
+	/** Espera del intento (1, 2, ...) recortada a remainingMs */
+	public long delayMs(int attempt, long remainingMs) {
+		int shift = Math.min(Math.max(0, attempt - 1), 30);
+		long cap = Math.min(maxMs, baseMs << shift);
+		long d = ThreadLocalRandom.current().nextLong(cap + 1);
+		return Math.min(d, Math.max(0, remainingMs));
+	}
+
+	/**
+	 * Duerme la espera del intento. Devuelve false, sin dormir, si no queda plazo
+	 * para otro intento después de la espera.
+	 */
+	public boolean sleep(int attempt, long remainingMs) throws InterruptedException {
+		long d = delayMs(attempt, remainingMs);
+		if (d >= remainingMs) {
+			return false;
+		}
+		Thread.sleep(d);
+		return true;
+	}
+}
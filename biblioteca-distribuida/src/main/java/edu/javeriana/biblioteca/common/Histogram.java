@@ -0,0 +1,101 @@
+package edu.javeriana.biblioteca.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de valores enteros no negativos con cubetas log-lineales.
+ *
+ * Cada potencia de dos se divide en 32 cubetas, así que el error relativo de
+ * un percentil es menor a ~3% sin guardar las muestras. Registrar no usa
+ * locks (contadores atómicos) y se puede leer desde otro hilo mientras tanto.
+ */
+public final class Histogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS; // cubetas por potencia de dos
+	private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+	private final String unit;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public Histogram(String unit) {
+		this.unit = unit;
+	}
+
+	public void record(long value) {
+		long v = Math.max(0, value);
+		counts.incrementAndGet(index(v));
+		total.incrementAndGet();
+		sum.addAndGet(v);
+		max.accumulateAndGet(v, Math::max);
+	}
+
+	public long count() {
+		return total.get();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long n = total.get();
+		return n == 0 ? 0 : sum.get() / (double) n;
+	}
+
+	public long percentile(double p) {
+		// Límite superior de la cubeta que contiene el percentil p (0-100)
+		long n = total.get();
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		total.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	public String summary() {
+		// Resumen de una línea para los logs de estadísticas
+		return String.format("n=%d media=%.1f p50=%d p99=%d p99.9=%d max=%d %s",
+				count(), mean(), percentile(50), percentile(99), percentile(99.9), max(), unit);
+	}
+
+	@Override
+	public String toString() {
+		return summary();
+	}
+
+	private static int index(long v) {
+		if (v < SUB_COUNT)
+			return (int) v;
+		int msb = 63 - Long.numberOfLeadingZeros(v);
+		int shift = msb - SUB_BITS;
+		int sub = (int) (v >>> shift) - SUB_COUNT;
+		return SUB_COUNT + shift * SUB_COUNT + sub;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_COUNT)
+			return index;
+		int shift = (index - SUB_COUNT) / SUB_COUNT;
+		int sub = (index - SUB_COUNT) % SUB_COUNT;
+		long lower = (long) (SUB_COUNT + sub) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
@@ -1,33 +1,28 @@
 package edu.javeriana.biblioteca.messaging;
 
 import javax.crypto.Cipher;
-import javax.crypto.SecretKeyFactory;
+import javax.crypto.Mac;
 import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
-import java.security.spec.KeySpec;
 import java.util.Base64;
 
 public class CryptoUtil {
-    private static final String HMAC_ALGO = "HmacSHA256";
-    private static final String AES_ALGO = "AES";
-    private static final String AES_GCM_TRANSFORMATION = "AES/GCM/NoPadding";
     private static final int GCM_TAG_LENGTH = 128; // longitud del tag GCM
     private static final int GCM_IV_LENGTH = 12; // longitud estándar del IV GCM
     private static final SecureRandom RANDOM = new SecureRandom();
 
-    private static final String PBKDF2_ALGO = "PBKDF2WithHmacSHA256";
-    private static final int PBKDF2_ITER = 200_000; // seguridad del derivado
-    private static final int KEY_LEN = 256; // bits de la llave AES
-
     public static String hmacBase64(String secretKey, String message) {
         // Calcula HMAC-SHA256 y lo retorna en Base64
+        return hmacBase64(KeyRing.hmacKey(secretKey), message);
+    }
+
+    public static String hmacBase64(SecretKeySpec keySpec, String message) {
+        // HMAC con llave ya preparada y Mac reutilizado del hilo
         try {
-            javax.crypto.Mac mac = javax.crypto.Mac.getInstance(HMAC_ALGO);
-            javax.crypto.spec.SecretKeySpec keySpec = new javax.crypto.spec.SecretKeySpec(
-                    secretKey.getBytes(StandardCharsets.UTF_8), HMAC_ALGO);
+            Mac mac = KeyRing.mac();
             mac.init(keySpec);
             byte[] raw = mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
             return Base64.getEncoder().encodeToString(raw);
@@ -38,58 +33,48 @@ public class CryptoUtil {
 
     public static boolean verifyHmacBase64(String secretKey, String message, String signatureBase64) {
         // Verifica HMAC en tiempo constante
-        String expected = hmacBase64(secretKey, message);
+        return verifyHmacBase64(KeyRing.hmacKey(secretKey), message, signatureBase64);
+    }
+
+    public static boolean verifyHmacBase64(SecretKeySpec keySpec, String message, String signatureBase64) {
+        String expected = hmacBase64(keySpec, message);
         return constantTimeEquals(expected, signatureBase64);
     }
 
+    public static KeyRing.Entry findSigner(String message, String signatureBase64) {
+        // Devuelve la llave (activa o anterior) cuya firma coincide; null si ninguna
+        for (KeyRing.Entry k : KeyRing.candidates()) {
+            if (verifyHmacBase64(k.hmacKey(), message, signatureBase64))
+                return k;
+        }
+        return null;
+    }
+
     private static boolean constantTimeEquals(String a, String b) {
         // Comparación sin filtrar timing (contra ataques de tiempo)
         if (a == null || b == null)
             return false;
-        byte[] aa = a.getBytes(StandardCharsets.UTF_8);
-        byte[] bb = b.getBytes(StandardCharsets.UTF_8);
-        if (aa.length != bb.length)
-            return false;
-        int result = 0;
-        for (int i = 0; i < aa.length; i++)
-            result |= aa[i] ^ bb[i];
-        return result == 0;
+        return MessageDigest.isEqual(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
     }
 
-    private static byte[] deriveAesKey(String secretKey) {
-        // Deriva llave AES con PBKDF2 usando un salt configurable
-        try {
-            String saltEnv = System.getenv("ACTOR_KEY_SALT");
-            byte[] salt = (saltEnv != null && !saltEnv.isEmpty())
-                    ? saltEnv.getBytes(StandardCharsets.UTF_8)
-                    : "biblioteca_default_salt_2025".getBytes(StandardCharsets.UTF_8);
-
-            SecretKeyFactory skf = SecretKeyFactory.getInstance(PBKDF2_ALGO);
-            KeySpec spec = new PBEKeySpec(secretKey.toCharArray(), salt, PBKDF2_ITER, KEY_LEN);
-            return skf.generateSecret(spec).getEncoded();
-        } catch (Exception e) {
-            throw new RuntimeException("Error deriving AES key", e);
-        }
+    public static String encryptAesGcmBase64(String secretKey, String plaintext) {
+        // Encripta en AES-GCM usando la llave derivada en cache
+        return encryptAesGcmBase64(KeyRing.aesKey(secretKey), plaintext);
     }
 
-    public static String encryptAesGcmBase64(String secretKey, String plaintext) {
+    public static String encryptAesGcmBase64(SecretKeySpec keySpec, String plaintext) {
         // Encripta en AES-GCM y concatena IV + ciphertext en Base64
         try {
-            byte[] keyBytes = deriveAesKey(secretKey);
-            SecretKeySpec keySpec = new SecretKeySpec(keyBytes, AES_ALGO);
-
-            byte[] iv = new byte[GCM_IV_LENGTH];
-            RANDOM.nextBytes(iv); // genera IV aleatorio
-            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
+            byte[] plain = plaintext.getBytes(StandardCharsets.UTF_8);
+            Cipher cipher = KeyRing.cipher();
 
-            Cipher cipher = Cipher.getInstance(AES_GCM_TRANSFORMATION);
+            byte[] combined = new byte[GCM_IV_LENGTH + cipherLength(plain.length)];
+            RANDOM.nextBytes(combined); // genera IV aleatorio (los primeros 12 bytes)
+            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH, combined, 0, GCM_IV_LENGTH);
             cipher.init(Cipher.ENCRYPT_MODE, keySpec, spec);
 
-            byte[] cipherText = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
-
-            byte[] combined = new byte[iv.length + cipherText.length];
-            System.arraycopy(iv, 0, combined, 0, iv.length);
-            System.arraycopy(cipherText, 0, combined, iv.length, cipherText.length);
+            // El ciphertext se escribe directamente detrás del IV
+            cipher.doFinal(plain, 0, plain.length, combined, GCM_IV_LENGTH);
 
             return Base64.getEncoder().encodeToString(combined);
         } catch (Exception e) {
@@ -98,26 +83,22 @@ public class CryptoUtil {
     }
 
     public static String decryptAesGcmBase64(String secretKey, String base64IvCipherText) {
+        // Desencripta usando la llave derivada en cache
+        return decryptAesGcmBase64(KeyRing.aesKey(secretKey), base64IvCipherText);
+    }
+
+    public static String decryptAesGcmBase64(SecretKeySpec keySpec, String base64IvCipherText) {
         // Desencripta texto que viene como IV + ciphertext en Base64
         try {
             byte[] combined = Base64.getDecoder().decode(base64IvCipherText);
             if (combined.length < GCM_IV_LENGTH)
                 throw new IllegalArgumentException("invalid ciphertext");
 
-            byte[] iv = new byte[GCM_IV_LENGTH];
-            System.arraycopy(combined, 0, iv, 0, GCM_IV_LENGTH);
-
-            byte[] cipherText = new byte[combined.length - GCM_IV_LENGTH];
-            System.arraycopy(combined, GCM_IV_LENGTH, cipherText, 0, cipherText.length);
-
-            byte[] keyBytes = deriveAesKey(secretKey);
-            SecretKeySpec keySpec = new SecretKeySpec(keyBytes, AES_ALGO);
-            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-
-            Cipher cipher = Cipher.getInstance(AES_GCM_TRANSFORMATION);
+            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH, combined, 0, GCM_IV_LENGTH);
+            Cipher cipher = KeyRing.cipher();
             cipher.init(Cipher.DECRYPT_MODE, keySpec, spec);
 
-            byte[] plain = cipher.doFinal(cipherText);
+            byte[] plain = cipher.doFinal(combined, GCM_IV_LENGTH, combined.length - GCM_IV_LENGTH);
             return new String(plain, StandardCharsets.UTF_8);
         } catch (javax.crypto.AEADBadTagException ex) {
             // Tag inválido → clave errónea o ciphertext manipulado
@@ -127,4 +108,9 @@ public class CryptoUtil {
             throw new RuntimeException("AES decryption error", e);
         }
     }
+
+    private static int cipherLength(int plainLength) {
+        // GCM no agrega padding: ciphertext = plaintext + tag
+        return plainLength + GCM_TAG_LENGTH / 8;
+    }
 }
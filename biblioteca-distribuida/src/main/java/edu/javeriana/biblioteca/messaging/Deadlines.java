@@ -0,0 +1,66 @@
+package edu.javeriana.biblioteca.messaging;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Solicitudes descartadas por plazo vencido, contadas por nivel (PS, GC,
+ * LoanActor, ReturnActor, RenewalActor, GA) dentro de este proceso.
+ *
+ * El plazo de un Message es absoluto (epoch ms del reloj del PS), así que los
+ * nodos deben tener los relojes sincronizados (NTP); un desfase de algunos ms
+ * solo adelanta o atrasa el descarte en esa cantidad.
+ */
+public final class Deadlines {
+
+	/** Respuesta de cualquier nivel que descarta una solicitud vencida */
+	public static final String EXPIRED = "Plazo de la solicitud vencido";
+
+	private static final Map<String, AtomicLong> DROPPED = new ConcurrentHashMap<>();
+
+	private Deadlines() {
+	}
+
+	/** Milisegundos que quedan hasta deadline (Long.MAX_VALUE si es 0, sin plazo) */
+	public static long remainingMs(long deadline) {
+		return deadline > 0 ? Math.max(0, deadline - System.currentTimeMillis()) : Long.MAX_VALUE;
+	}
+
+	/** Cuenta un descarte del nivel sin loguear (el llamador ya lo informa) */
+	public static long count(String tier) {
+		return DROPPED.computeIfAbsent(tier, k -> new AtomicLong()).incrementAndGet();
+	}
+
+	/** Cuenta el descarte en el nivel y lo deja en el log; devuelve el total del nivel */
+	public static long drop(String tier, Message m) {
+		long n = count(tier);
+		System.err.printf("[%s] Solicitud vencida descartada: %s %s %s %s (%d ms tarde, total=%d)%n",
+				tier, m.type(), m.branchId(), m.userId(), m.bookCode(),
+				System.currentTimeMillis() - m.deadline(), n);
+		return n;
+	}
+
+	public static long dropped(String tier) {
+		AtomicLong n = DROPPED.get(tier);
+		return n == null ? 0 : n.get();
+	}
+
+	/** Timeout de un intento: el configurado, recortado a lo que queda del plazo */
+	public static int timeoutMs(Message m, int configuredMs) {
+		return (int) Math.max(1, Math.min(configuredMs, m.remainingMs()));
+	}
+
+	public static String stats() {
+		StringBuilder sb = new StringBuilder("vencidas descartadas:");
+		Map<String, AtomicLong> sorted = new TreeMap<>(DROPPED);
+		if (sorted.isEmpty()) {
+			sb.append(" 0");
+		}
+		for (Map.Entry<String, AtomicLong> e : sorted.entrySet()) {
+			sb.append(' ').append(e.getKey()).append('=').append(e.getValue().get());
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,292 @@
+package edu.javeriana.biblioteca.messaging;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.common.Histogram;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Vista de salud de los endpoints configurados de un nivel (los GC para el PS,
+ * los GA para los actores), sin esperar a que venza el timeout de recepción.
+ *
+ * Un hilo propio mantiene por endpoint un DEALER de sondeo que no envía nada:
+ * solo conecta con heartbeats ZMTP (PING/PONG cada health.heartbeat.ivl.ms,
+ * corte a los health.heartbeat.timeout.ms sin respuesta) y un monitor de
+ * eventos. Handshake completo = LIVE; desconexión = SUSPECT mientras
+ * reconecta y DEAD si sigue caído después de health.dead.ms. La caída del
+ * proceso se ve al instante (la conexión TCP se cierra); la del host o la red,
+ * cuando vence el heartbeat. El sondeo es compatible con REP y ROUTER, así que
+ * GC y GA no necesitan cambios.
+ *
+ * El hilo que hace las solicitudes usa choose/next para preferir endpoints
+ * vivos y await para esperar la respuesta cortando antes si el endpoint cae y
+ * hay otro vivo. leaving/answered miden el tiempo de failover visto por el
+ * cliente: desde el primer intento afectado hasta la primera respuesta.
+ * Esos métodos no son thread-safe (un solo hilo de solicitudes).
+ */
+public final class EndpointHealth implements AutoCloseable {
+
+	public enum State {
+		LIVE, SUSPECT, DEAD
+	}
+
+	private static final int EVENTS = ZMQ.EVENT_CONNECTED | ZMQ.EVENT_HANDSHAKE_PROTOCOL
+			| ZMQ.EVENT_DISCONNECTED | ZMQ.EVENT_CLOSED;
+
+	private final String component; // quien consulta, para los logs ("PS", "LoanActor", ...)
+	private final String tier; // nivel vigilado ("GC" o "GA")
+	private final String[] endpoints;
+	private final boolean enabled;
+	private final int heartbeatIvlMs;
+	private final int heartbeatTimeoutMs;
+	private final int reconnectIvlMs;
+	private final long deadNs;
+	private final long checkMs;
+
+	// Escritos por el hilo monitor: 1 = handshake completo; si no, desde cuándo está caído
+	private final AtomicIntegerArray up;
+	private final AtomicLongArray downSinceNs;
+
+	private final ZMQ.Context ctx;
+	private final Thread monitor;
+	private final ZMQ.Poller waiter; // del hilo de solicitudes
+	private volatile boolean running = true;
+
+	// Métricas
+	private final Histogram failoverMs = new Histogram("ms");
+	private final AtomicLong earlyCuts = new AtomicLong(); // esperas cortadas por caída del endpoint
+	private final AtomicLong proactive = new AtomicLong(); // cambios antes de enviar
+	private long failoverStartNs = -1;
+	private int failoverFrom = -1;
+
+	public EndpointHealth(String component, String tier, String[] endpoints) {
+		this.component = component;
+		this.tier = tier;
+		this.endpoints = endpoints.clone();
+		for (int i = 0; i < this.endpoints.length; i++) {
+			this.endpoints[i] = this.endpoints[i].trim();
+		}
+		this.enabled = Boolean.parseBoolean(System.getProperty("health.enabled",
+				AppConfig.get("health.enabled", "true")));
+		this.heartbeatIvlMs = Integer.parseInt(System.getProperty("health.heartbeat.ivl.ms",
+				AppConfig.get("health.heartbeat.ivl.ms", "250")));
+		this.heartbeatTimeoutMs = Integer.parseInt(System.getProperty("health.heartbeat.timeout.ms",
+				AppConfig.get("health.heartbeat.timeout.ms", "750")));
+		this.reconnectIvlMs = Integer.parseInt(System.getProperty("health.reconnect.ivl.ms",
+				AppConfig.get("health.reconnect.ivl.ms", "100")));
+		this.deadNs = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(System.getProperty("health.dead.ms",
+				AppConfig.get("health.dead.ms", "1500"))));
+		this.checkMs = Math.max(1, Long.parseLong(System.getProperty("health.check.ms",
+				AppConfig.get("health.check.ms", "50"))));
+
+		this.up = new AtomicIntegerArray(this.endpoints.length);
+		this.downSinceNs = new AtomicLongArray(this.endpoints.length);
+		long now = System.nanoTime();
+		for (int i = 0; i < this.endpoints.length; i++) {
+			downSinceNs.set(i, now); // SUSPECT hasta el primer handshake
+		}
+
+		this.ctx = ZMQ.context(1);
+		this.waiter = ctx.poller(1);
+		this.monitor = new Thread(this::watch, component + "-health-" + tier);
+		monitor.setDaemon(true);
+		if (enabled) {
+			monitor.start();
+		}
+	}
+
+	public boolean enabled() {
+		return enabled;
+	}
+
+	/** Cada cuánto conviene revisar el estado mientras se espera una respuesta */
+	public long checkMs() {
+		return checkMs;
+	}
+
+	public State state(int index) {
+		if (!enabled || up.get(index) == 1) {
+			return State.LIVE;
+		}
+		return System.nanoTime() - downSinceNs.get(index) < deadNs ? State.SUSPECT : State.DEAD;
+	}
+
+	public boolean live(int index) {
+		return state(index) == State.LIVE;
+	}
+
+	/**
+	 * Endpoint a usar para el próximo envío: current si no hay uno más sano; si
+	 * no, el más sano siguiendo el orden de la lista.
+	 */
+	public int choose(int current) {
+		int best = healthier(current);
+		if (best != current) {
+			proactive.incrementAndGet();
+			System.out.printf("[%s] [%s] %s está %s; se cambia a %s%n", component, tier,
+					endpoints[current], state(current), endpoints[best]);
+		}
+		return best;
+	}
+
+	/** Siguiente endpoint tras abandonar current: el más sano de los demás, en orden */
+	public int next(int current) {
+		int n = endpoints.length;
+		int best = (current + 1) % n;
+		for (int k = 2; k < n; k++) {
+			int i = (current + k) % n;
+			if (state(i).ordinal() < state(best).ordinal()) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Espera hasta timeoutMs a que socket tenga una respuesta para leer. Devuelve
+	 * false si venció o si el endpoint dejó de estar vivo y hay otro más sano
+	 * (no tiene sentido seguir esperando).
+	 */
+	public boolean await(ZMQ.Socket socket, int index, long timeoutMs) {
+		int idx = waiter.register(socket, ZMQ.Poller.POLLIN);
+		try {
+			long endNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+			while (true) {
+				long leftMs = TimeUnit.NANOSECONDS.toMillis(endNs - System.nanoTime());
+				if (leftMs <= 0) {
+					return false;
+				}
+				waiter.poll(enabled ? Math.min(leftMs, checkMs) : leftMs);
+				if (waiter.pollin(idx)) {
+					return true;
+				}
+				if (enabled && !live(index) && healthier(index) != index) {
+					earlyCuts.incrementAndGet();
+					return false;
+				}
+			}
+		} finally {
+			waiter.unregister(socket);
+		}
+	}
+
+	private int healthier(int current) {
+		// El más sano en el orden de la lista a partir de current; empate = current
+		int best = current;
+		for (int k = 1; k < endpoints.length; k++) {
+			int i = (current + k) % endpoints.length;
+			if (state(i).ordinal() < state(best).ordinal()) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/** El cliente deja el endpoint from; startNs = cuándo empezó el intento afectado */
+	public void leaving(int from, long startNs) {
+		if (failoverStartNs < 0) {
+			failoverStartNs = startNs;
+			failoverFrom = from;
+		}
+	}
+
+	/** Respuesta recibida de index: cierra y reporta el failover en curso, si hay uno */
+	public void answered(int index) {
+		if (failoverStartNs < 0) {
+			return;
+		}
+		long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - failoverStartNs);
+		failoverMs.record(ms);
+		failoverStartNs = -1;
+		System.out.printf("[%s] Failover [%s] %s -> %s en %d ms%n", component, tier, endpoints[failoverFrom],
+				endpoints[index], ms);
+	}
+
+	public String stats() {
+		StringBuilder sb = new StringBuilder("salud [").append(tier).append("]:");
+		for (int i = 0; i < endpoints.length; i++) {
+			sb.append(' ').append(endpoints[i]).append('=').append(state(i));
+		}
+		return sb.append(String.format(" failover %s esperas_cortadas=%d cambios_anticipados=%d",
+				failoverMs.summary(), earlyCuts.get(), proactive.get())).toString();
+	}
+
+	private void watch() {
+		// Un DEALER de sondeo con heartbeats y un monitor por endpoint
+		int n = endpoints.length;
+		ZMQ.Socket[] probes = new ZMQ.Socket[n];
+		ZMQ.Socket[] events = new ZMQ.Socket[n];
+		State[] reported = new State[n];
+		try (ZMQ.Poller poller = ctx.poller(n)) {
+			for (int i = 0; i < n; i++) {
+				String addr = "inproc://health-" + tier + "-" + i;
+				probes[i] = ctx.socket(SocketType.DEALER);
+				probes[i].setLinger(0);
+				probes[i].setReconnectIVL(reconnectIvlMs);
+				probes[i].setHeartbeatIvl(heartbeatIvlMs);
+				probes[i].setHeartbeatTimeout(heartbeatTimeoutMs);
+				probes[i].monitor(addr, EVENTS);
+				events[i] = ctx.socket(SocketType.PAIR);
+				events[i].connect(addr);
+				poller.register(events[i], ZMQ.Poller.POLLIN);
+				probes[i].connect(endpoints[i]);
+				reported[i] = State.SUSPECT;
+			}
+
+			while (running && !Thread.currentThread().isInterrupted()) {
+				poller.poll(checkMs);
+				for (int i = 0; i < n; i++) {
+					ZMQ.Event e;
+					while (poller.pollin(i) && (e = ZMQ.Event.recv(events[i], ZMQ.DONTWAIT)) != null) {
+						int ev = e.getEvent();
+						if (ev == ZMQ.EVENT_HANDSHAKE_PROTOCOL) {
+							up.set(i, 1);
+						} else if ((ev == ZMQ.EVENT_DISCONNECTED || ev == ZMQ.EVENT_CLOSED) && up.get(i) == 1) {
+							downSinceNs.set(i, System.nanoTime());
+							up.set(i, 0);
+						}
+					}
+					// Transiciones (SUSPECT -> DEAD ocurre por tiempo, sin evento)
+					State s = state(i);
+					if (s != reported[i]) {
+						System.out.printf("[%s] [%s] %s: %s -> %s%n", component, tier, endpoints[i], reported[i], s);
+						reported[i] = s;
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			if (running) {
+				System.err.printf("[%s] Monitor de salud de [%s] detenido: %s%n", component, tier, e.getMessage());
+			}
+		} finally {
+			for (int i = 0; i < n; i++) {
+				if (probes[i] != null) {
+					probes[i].close();
+				}
+				if (events[i] != null) {
+					events[i].close();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		waiter.close();
+		if (enabled) {
+			try {
+				monitor.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		ctx.close();
+	}
+}
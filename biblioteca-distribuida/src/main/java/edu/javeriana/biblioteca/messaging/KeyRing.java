@@ -0,0 +1,305 @@
+package edu.javeriana.biblioteca.messaging;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.spec.KeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Anillo de llaves compartido por Message y StorageResult.
+ *
+ * Cada secreto se deriva con PBKDF2 una sola vez y el SecretKeySpec queda en
+ * cache; Cipher y Mac se reutilizan por hilo. Las llaves tienen un id para
+ * poder rotarlas en caliente: la llave activa firma/cifra y las anteriores
+ * siguen sirviendo para verificar mensajes en tránsito. Al recargar el archivo
+ * de llaves se retiran los ids que ya no figuran en él (salvo la activa) y se
+ * descartan sus derivaciones. El cache se indexa por un digest SHA-256 del
+ * secreto, no por el secreto en claro.
+ */
+public final class KeyRing {
+
+	private static final String AES_ALGO = "AES";
+	private static final String HMAC_ALGO = "HmacSHA256";
+	private static final String AES_GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+
+	private static final String PBKDF2_ALGO = "PBKDF2WithHmacSHA256";
+	private static final int PBKDF2_ITER = 200_000; // seguridad del derivado
+	private static final int KEY_LEN = 256; // bits de la llave AES
+	private static final int MAX_ID_LEN = 255; // el id viaja con prefijo de 1 byte
+
+	// Llave con id, lista para cifrar (AES) y firmar (HMAC)
+	public record Entry(String id, SecretKeySpec aesKey, SecretKeySpec hmacKey) {
+	}
+
+	// Cache de llaves derivadas por digest del secreto (PBKDF2 corre una vez por secreto)
+	private static final ConcurrentHashMap<String, SecretKeySpec> AES_CACHE = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, SecretKeySpec> HMAC_CACHE = new ConcurrentHashMap<>();
+
+	// Llaves registradas por id y llave activa
+	private static final ConcurrentHashMap<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+	private static volatile Entry current;
+
+	// Cipher y Mac no son thread-safe: una instancia por hilo
+	private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance(AES_GCM_TRANSFORMATION);
+		} catch (Exception e) {
+			throw new RuntimeException("Error creando Cipher AES-GCM", e);
+		}
+	});
+	private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+		try {
+			return Mac.getInstance(HMAC_ALGO);
+		} catch (Exception e) {
+			throw new RuntimeException("Error creando Mac HMAC", e);
+		}
+	});
+
+	static {
+		// Llave inicial: id configurable + secretos desde env o propiedades
+		String id = AppConfig.get("crypto.key.id", "k1");
+		String aesSecret = AppConfig.getEnvOrProp(
+				"ACTOR_ENCRYPTION_KEY",
+				"actor.encryption.key",
+				"R3p9qL0wN7sX2bV4cY8mK1tH6uP5zQ3");
+		String hmacSecret = AppConfig.getEnvOrProp(
+				"ACTOR_SHARED_SECRET",
+				"actor.shared.secret",
+				"F8kP2xZ1qW7nT4mB9sD3vL6yH0cJ5rU");
+		register(id, aesSecret, hmacSecret);
+		activate(id);
+
+		// Archivo opcional de llaves para rotar sin reiniciar el proceso
+		String file = AppConfig.getEnvOrProp("ACTOR_KEYRING_FILE", "crypto.keyring.file", "");
+		if (!file.isEmpty()) {
+			long reloadMs = Long.parseLong(AppConfig.get("crypto.keyring.reload.ms", "5000"));
+			startReloader(Paths.get(file), reloadMs);
+		}
+	}
+
+	private KeyRing() {
+	}
+
+	public static Entry current() {
+		// Llave con la que se cifran y firman los mensajes salientes
+		return current;
+	}
+
+	public static Entry byId(String id) {
+		// Busca una llave registrada (null si el id es desconocido)
+		return ENTRIES.get(id);
+	}
+
+	static Entry byId(ByteBuffer buf, int offset, int len) {
+		// Busca por id leído de un frame binario sin crear un String
+		for (Entry e : ENTRIES.values()) {
+			String id = e.id();
+			if (id.length() != len)
+				continue;
+			int i = 0;
+			while (i < len && buf.get(offset + i) == (byte) id.charAt(i))
+				i++;
+			if (i == len)
+				return e;
+		}
+		return null;
+	}
+
+	public static List<Entry> candidates() {
+		// Llave activa primero y luego las demás registradas
+		Entry cur = current;
+		List<Entry> out = new ArrayList<>(ENTRIES.size());
+		out.add(cur);
+		for (Entry e : ENTRIES.values()) {
+			if (e != cur)
+				out.add(e);
+		}
+		return out;
+	}
+
+	public static Entry register(String id, String aesSecret, String hmacSecret) {
+		// Registra (o reemplaza) una llave; la derivación queda en cache
+		if (!validId(id))
+			throw new IllegalArgumentException("Id de llave invalido: " + id);
+		Entry e = new Entry(id, aesKey(aesSecret), hmacKey(hmacSecret));
+		ENTRIES.put(id, e);
+		return e;
+	}
+
+	private static boolean validId(String id) {
+		// Ids ASCII imprimibles de 1 a 255 caracteres
+		if (id == null || id.isEmpty() || id.length() > MAX_ID_LEN)
+			return false;
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (c < 0x21 || c > 0x7E)
+				return false;
+		}
+		return true;
+	}
+
+	public static void activate(String id) {
+		// Cambia la llave activa; las anteriores siguen disponibles para verificar
+		Entry e = ENTRIES.get(id);
+		if (e == null)
+			throw new IllegalArgumentException("Llave no registrada: " + id);
+		if (current != e) {
+			current = e;
+			System.out.println("[KeyRing] Llave activa: " + id);
+		}
+	}
+
+	public static void retire(String id) {
+		// Elimina una llave antigua (nunca la activa)
+		Entry cur = current;
+		if (cur != null && cur.id().equals(id))
+			throw new IllegalArgumentException("No se puede retirar la llave activa: " + id);
+		if (ENTRIES.remove(id) != null) {
+			pruneCache();
+			System.out.println("[KeyRing] Llave retirada: " + id);
+		}
+	}
+
+	public static SecretKeySpec aesKey(String secret) {
+		// Llave AES derivada con PBKDF2, calculada una vez por secreto
+		return AES_CACHE.computeIfAbsent(digest(secret), d -> new SecretKeySpec(derive(secret), AES_ALGO));
+	}
+
+	public static SecretKeySpec hmacKey(String secret) {
+		// Llave HMAC (el secreto se usa tal cual, como antes)
+		return HMAC_CACHE.computeIfAbsent(digest(secret),
+				d -> new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGO));
+	}
+
+	private static String digest(String secret) {
+		// Índice del cache: SHA-256 del secreto (el secreto no queda como clave del mapa)
+		try {
+			byte[] h = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+			return Base64.getEncoder().encodeToString(h);
+		} catch (Exception e) {
+			throw new RuntimeException("Error calculando digest de la llave", e);
+		}
+	}
+
+	private static void pruneCache() {
+		// Descarta derivaciones que ya no usa ninguna llave registrada (un uso
+		// posterior por CryptoUtil solo vuelve a derivarla)
+		Set<SecretKeySpec> aesInUse = new HashSet<>();
+		Set<SecretKeySpec> hmacInUse = new HashSet<>();
+		for (Entry e : ENTRIES.values()) {
+			aesInUse.add(e.aesKey());
+			hmacInUse.add(e.hmacKey());
+		}
+		AES_CACHE.values().removeIf(k -> !aesInUse.contains(k));
+		HMAC_CACHE.values().removeIf(k -> !hmacInUse.contains(k));
+	}
+
+	public static byte[] derive(String secret) {
+		// Deriva llave AES con PBKDF2 usando un salt configurable (sin cache)
+		try {
+			String saltEnv = System.getenv("ACTOR_KEY_SALT");
+			byte[] salt = (saltEnv != null && !saltEnv.isEmpty())
+					? saltEnv.getBytes(StandardCharsets.UTF_8)
+					: "biblioteca_default_salt_2025".getBytes(StandardCharsets.UTF_8);
+
+			SecretKeyFactory skf = SecretKeyFactory.getInstance(PBKDF2_ALGO);
+			KeySpec spec = new PBEKeySpec(secret.toCharArray(), salt, PBKDF2_ITER, KEY_LEN);
+			return skf.generateSecret(spec).getEncoded();
+		} catch (Exception e) {
+			throw new RuntimeException("Error deriving AES key", e);
+		}
+	}
+
+	static Cipher cipher() {
+		// Cipher AES-GCM del hilo actual (se re-inicializa en cada uso)
+		return CIPHER.get();
+	}
+
+	static Mac mac() {
+		// Mac HMAC-SHA256 del hilo actual
+		return MAC.get();
+	}
+
+	public static void reload(Path file) throws IOException {
+		// Carga llaves desde archivo: current=<id>, <id>.aes=..., <id>.hmac=...
+		// El archivo es la lista completa: los ids que no figuran se retiran
+		Properties p = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			p.load(in);
+		}
+		Set<String> configured = new HashSet<>();
+		for (String name : p.stringPropertyNames()) {
+			if (!name.endsWith(".aes"))
+				continue;
+			String id = name.substring(0, name.length() - ".aes".length());
+			String aes = p.getProperty(name);
+			String hmac = p.getProperty(id + ".hmac", aes);
+			configured.add(id);
+			Entry existing = ENTRIES.get(id);
+			if (existing == null || !existing.aesKey().equals(aesKey(aes))
+					|| !existing.hmacKey().equals(hmacKey(hmac))) {
+				register(id, aes, hmac);
+			}
+		}
+		String cur = p.getProperty("current");
+		if (cur != null && !cur.isEmpty())
+			activate(cur.trim());
+		if (configured.isEmpty())
+			return; // archivo sin llaves: no se retira nada
+		for (String id : new ArrayList<>(ENTRIES.keySet())) {
+			if (configured.contains(id))
+				continue;
+			if (current != null && current.id().equals(id)) {
+				System.err.println("[KeyRing] La llave activa " + id + " no figura en " + file + "; se conserva");
+				continue;
+			}
+			retire(id);
+		}
+		pruneCache();
+	}
+
+	private static void startReloader(Path file, long intervalMs) {
+		// Hilo daemon que revisa el archivo de llaves cuando cambia
+		ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "keyring-reloader");
+			t.setDaemon(true);
+			return t;
+		});
+		long[] lastModified = { -1L };
+		s.scheduleWithFixedDelay(() -> {
+			try {
+				if (!Files.exists(file))
+					return;
+				long lm = Files.getLastModifiedTime(file).toMillis();
+				if (lm != lastModified[0]) {
+					reload(file);
+					lastModified[0] = lm;
+				}
+			} catch (Exception e) {
+				System.err.println("[KeyRing] Error recargando llaves: " + e.getMessage());
+			}
+		}, 0, intervalMs, TimeUnit.MILLISECONDS);
+	}
+}
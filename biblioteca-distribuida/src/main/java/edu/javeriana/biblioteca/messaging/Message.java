@@ -1,20 +1,17 @@
 package edu.javeriana.biblioteca.messaging;
 
-import edu.javeriana.biblioteca.common.AppConfig;
+// deadline: instante (epoch ms) hasta el que el PS espera respuesta; 0 = sin plazo
+// requestId: id único que pone el PS y se conserva en los reintentos; null = sin id
+public record Message(String type, String branchId, String userId, String bookCode, long deadline,
+    String requestId) {
 
-public record Message(String type, String branchId, String userId, String bookCode) {
-
-  // Llave AES tomada desde env o propiedades
-  private static final String AES_KEY = AppConfig.getEnvOrProp(
-      "ACTOR_ENCRYPTION_KEY",
-      "actor.encryption.key",
-      "R3p9qL0wN7sX2bV4cY8mK1tH6uP5zQ3");
+  public Message(String type, String branchId, String userId, String bookCode) {
+    this(type, branchId, userId, bookCode, 0L, null);
+  }
 
-  // Llave HMAC para firmar mensajes
-  private static final String HMAC_KEY = AppConfig.getEnvOrProp(
-      "ACTOR_SHARED_SECRET",
-      "actor.shared.secret",
-      "F8kP2xZ1qW7nT4mB9sD3vL6yH0cJ5rU");
+  public Message(String type, String branchId, String userId, String bookCode, long deadline) {
+    this(type, branchId, userId, bookCode, deadline, null);
+  }
 
   // Crea mensaje de devolucion
   public static Message devolver(String branchId, String userId, String bookCode) {
@@ -31,15 +28,41 @@ public record Message(String type, String branchId, String userId, String bookCo
     return new Message("PRESTAMO", branchId, userId, bookCode);
   }
 
+  // Misma solicitud con plazo absoluto (epoch ms)
+  public Message withDeadline(long deadline) {
+    return new Message(type, branchId, userId, bookCode, deadline, requestId);
+  }
+
+  // Misma solicitud con id (el GA responde los reintentos desde su registro)
+  public Message withRequestId(String requestId) {
+    return new Message(type, branchId, userId, bookCode, deadline, requestId);
+  }
+
+  // true si tiene plazo y ya venció
+  public boolean expired() {
+    return deadline > 0 && System.currentTimeMillis() >= deadline;
+  }
+
+  // Milisegundos que quedan del plazo (Long.MAX_VALUE si no tiene)
+  public long remainingMs() {
+    return Deadlines.remainingMs(deadline);
+  }
+
   public String serialize() {
-    // Construir payload plano
+    // Construir payload plano (plazo e id como campos quinto y sexto, solo si existen)
     String payload = String.join("|", type, branchId, userId, bookCode);
+    if (requestId != null) {
+      payload += "|" + deadline + "|" + requestId;
+    } else if (deadline > 0) {
+      payload += "|" + deadline;
+    }
 
-    // Cifrar payload con AES-GCM
-    String encrypted = CryptoUtil.encryptAesGcmBase64(AES_KEY, payload);
+    // Cifrar payload con AES-GCM usando la llave activa del KeyRing
+    KeyRing.Entry key = KeyRing.current();
+    String encrypted = CryptoUtil.encryptAesGcmBase64(key.aesKey(), payload);
 
     // Firmar ciphertext con HMAC
-    String sig = CryptoUtil.hmacBase64(HMAC_KEY, encrypted);
+    String sig = CryptoUtil.hmacBase64(key.hmacKey(), encrypted);
 
     // Regresar paquete cifrado + firma
     return encrypted + "|" + sig;
@@ -54,13 +77,14 @@ public record Message(String type, String branchId, String userId, String bookCo
     String encrypted = p[0];
     String signature = p[1];
 
-    // Verificar integridad del mensaje
-    if (!CryptoUtil.verifyHmacBase64(HMAC_KEY, encrypted, signature)) {
+    // Verificar integridad del mensaje (llave activa o una anterior en rotación)
+    KeyRing.Entry key = CryptoUtil.findSigner(encrypted, signature);
+    if (key == null) {
       throw new SecurityException("Firma HMAC invalida para mensaje seguro");
     }
 
     // Descifrar campos originales
-    String decrypted = CryptoUtil.decryptAesGcmBase64(AES_KEY, encrypted);
+    String decrypted = CryptoUtil.decryptAesGcmBase64(key.aesKey(), encrypted);
     String[] fields = decrypted.split("\\|", -1);
     if (fields.length < 4) {
       throw new IllegalArgumentException("Carga util invalida en mensaje seguro: " + decrypted);
@@ -71,7 +95,9 @@ public record Message(String type, String branchId, String userId, String bookCo
     String branchId = fields[1];
     String userId = fields[2];
     String bookCode = fields[3];
+    long deadline = fields.length > 4 && !fields[4].isEmpty() ? Long.parseLong(fields[4]) : 0L;
+    String requestId = fields.length > 5 && !fields[5].isEmpty() ? fields[5] : null;
 
-    return new Message(type, branchId, userId, bookCode);
+    return new Message(type, branchId, userId, bookCode, deadline, requestId);
   }
 }
@@ -1,32 +1,19 @@
 package edu.javeriana.biblioteca.messaging;
 
-import edu.javeriana.biblioteca.common.AppConfig;
-
 public record StorageResult(
 		boolean ok,
 		String message) {
 
-	// Llave AES tomada desde env o propiedades
-	private static final String AES_KEY = AppConfig.getEnvOrProp(
-			"ACTOR_ENCRYPTION_KEY",
-			"actor.encryption.key",
-			"R3p9qL0wN7sX2bV4cY8mK1tH6uP5zQ3");
-
-	// Llave HMAC para firmar mensajes
-	private static final String HMAC_KEY = AppConfig.getEnvOrProp(
-			"ACTOR_SHARED_SECRET",
-			"actor.shared.secret",
-			"F8kP2xZ1qW7nT4mB9sD3vL6yH0cJ5rU");
-
 	public String serialize() {
 		// Construye payload plano: "OK|mensaje" o "ERR|mensaje"
 		String payload = (ok ? "OK" : "ERR") + "|" + (message == null ? "" : message);
 
-		// Cifrar payload con AES-GCM
-		String encrypted = CryptoUtil.encryptAesGcmBase64(AES_KEY, payload);
+		// Cifrar payload con AES-GCM usando la llave activa del KeyRing
+		KeyRing.Entry key = KeyRing.current();
+		String encrypted = CryptoUtil.encryptAesGcmBase64(key.aesKey(), payload);
 
 		// Firmar ciphertext con HMAC
-		String sig = CryptoUtil.hmacBase64(HMAC_KEY, encrypted);
+		String sig = CryptoUtil.hmacBase64(key.hmacKey(), encrypted);
 
 		// Regresar paquete cifrado + firma
 		return encrypted + "|" + sig;
@@ -42,13 +29,14 @@ public record StorageResult(
 		String encrypted = p[0];
 		String signature = p[1];
 
-		// Verificar integridad del mensaje
-		if (!CryptoUtil.verifyHmacBase64(HMAC_KEY, encrypted, signature)) {
+		// Verificar integridad del mensaje (llave activa o una anterior en rotación)
+		KeyRing.Entry key = CryptoUtil.findSigner(encrypted, signature);
+		if (key == null) {
 			throw new SecurityException("Firma HMAC invalida para StorageResult");
 		}
 
 		// Descifrar payload original
-		String decrypted = CryptoUtil.decryptAesGcmBase64(AES_KEY, encrypted);
+		String decrypted = CryptoUtil.decryptAesGcmBase64(key.aesKey(), encrypted);
 
 		// Reconstruir campos "OK|mensaje" o "ERR|mensaje"
 		String[] fields = decrypted.split("\\|", 2);
@@ -0,0 +1,173 @@
+package edu.javeriana.biblioteca.messaging;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+
+import org.zeromq.ZMQ;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Envío y recepción de Message/StorageResult sobre sockets ZeroMQ.
+ *
+ * El formato de salida se elige con wire.format (text | binary); por defecto
+ * text, el que entienden los nodos sin esta clase. Al recibir se aceptan ambos,
+ * así que primero se actualizan todos los nodos y al final se pasa a binary.
+ *
+ * Un lote (comando batch) viaja como mensaje multiparte: un frame marcador
+ * seguido de un frame por Message. La respuesta es un frame StorageResult
+ * por ítem, en el mismo orden.
+ */
+public final class Wire {
+
+	public enum Format {
+		BINARY, TEXT
+	}
+
+	private static final Format FORMAT = "binary".equalsIgnoreCase(
+			System.getProperty("wire.format", AppConfig.get("wire.format", "text")).trim())
+					? Format.BINARY
+					: Format.TEXT;
+
+	private static final int MAX_FRAME = 64 * 1024;
+
+	// Frame marcador de lote; ningún Message válido (binario o Base64) lo coincide
+	private static final byte[] BATCH_MARKER = { 0x00, 'L', 'O', 'T', 'E' };
+
+	// Buffer de recepción por hilo (ZMQ copia el frame dentro)
+	private static final ThreadLocal<ByteBuffer> IN = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_FRAME));
+
+	private Wire() {
+	}
+
+	public static Format format() {
+		return FORMAT;
+	}
+
+	// ------------------------------------------------------------------
+	// Envío
+	// ------------------------------------------------------------------
+
+	public static boolean send(ZMQ.Socket socket, Message m) {
+		return send(socket, m, 0);
+	}
+
+	public static boolean send(ZMQ.Socket socket, Message m, int flags) {
+		if (FORMAT == Format.TEXT)
+			return socket.send(m.serialize(), flags);
+		return socket.sendByteBuffer(WireCodec.encode(m), flags) >= 0;
+	}
+
+	public static boolean send(ZMQ.Socket socket, StorageResult r) {
+		return send(socket, r, 0);
+	}
+
+	public static boolean send(ZMQ.Socket socket, StorageResult r, int flags) {
+		if (FORMAT == Format.TEXT)
+			return socket.send(r.serialize(), flags);
+		return socket.sendByteBuffer(WireCodec.encode(r), flags) >= 0;
+	}
+
+	public static boolean sendBatch(ZMQ.Socket socket, List<Message> items) {
+		// [marcador][Message 1]...[Message N]
+		if (items.isEmpty())
+			return socket.send(BATCH_MARKER, 0);
+		if (!socket.sendMore(BATCH_MARKER))
+			return false;
+		for (int i = 0; i < items.size(); i++) {
+			if (!send(socket, items.get(i), i < items.size() - 1 ? ZMQ.SNDMORE : 0))
+				return false;
+		}
+		return true;
+	}
+
+	public static boolean sendResults(ZMQ.Socket socket, List<StorageResult> results) {
+		// Un frame por resultado, en el orden del lote (lote vacío → un frame vacío)
+		if (results.isEmpty())
+			return socket.send(new byte[0], 0);
+		for (int i = 0; i < results.size(); i++) {
+			if (!send(socket, results.get(i), i < results.size() - 1 ? ZMQ.SNDMORE : 0))
+				return false;
+		}
+		return true;
+	}
+
+	// ------------------------------------------------------------------
+	// Recepción (null si vence el timeout del socket)
+	// ------------------------------------------------------------------
+
+	public static Message recvMessage(ZMQ.Socket socket) {
+		ByteBuffer frame = recvFrame(socket);
+		return frame == null ? null : decodeMessage(frame);
+	}
+
+	public static StorageResult recvResult(ZMQ.Socket socket) {
+		ByteBuffer frame = recvFrame(socket);
+		return frame == null ? null : decodeResult(frame);
+	}
+
+	public static Message decodeMessage(ByteBuffer frame) {
+		// Detecta el formato por el primer byte
+		if (WireCodec.isBinary(frame))
+			return WireCodec.decodeMessage(frame);
+		return Message.parse(asString(frame));
+	}
+
+	public static StorageResult decodeResult(ByteBuffer frame) {
+		if (WireCodec.isBinary(frame))
+			return WireCodec.decodeResult(frame);
+		return StorageResult.parse(asString(frame));
+	}
+
+	public static List<StorageResult> recvResults(ZMQ.Socket socket) {
+		// Respuesta multiparte de un lote (null si vence el timeout)
+		ByteBuffer frame = recvFrame(socket);
+		if (frame == null)
+			return null;
+		List<StorageResult> out = new ArrayList<>();
+		if (!frame.hasRemaining() && !socket.hasReceiveMore())
+			return out;
+		out.add(decodeResult(frame));
+		while (socket.hasReceiveMore())
+			out.add(decodeResult(recvFrame(socket)));
+		return out;
+	}
+
+	public static boolean isBatch(ByteBuffer frame) {
+		// ¿Es el frame marcador de un lote?
+		if (frame.remaining() != BATCH_MARKER.length)
+			return false;
+		for (int i = 0; i < BATCH_MARKER.length; i++) {
+			if (frame.get(frame.position() + i) != BATCH_MARKER[i])
+				return false;
+		}
+		return true;
+	}
+
+	public static List<Message> recvBatchItems(ZMQ.Socket socket) {
+		// Lee los Message que siguen al marcador de lote
+		List<Message> items = new ArrayList<>();
+		while (socket.hasReceiveMore())
+			items.add(decodeMessage(recvFrame(socket)));
+		return items;
+	}
+
+	public static ByteBuffer recvFrame(ZMQ.Socket socket) {
+		// Frame crudo en el buffer del hilo (válido hasta la siguiente recepción)
+		ByteBuffer buf = IN.get();
+		buf.clear();
+		int size = socket.recvByteBuffer(buf, 0);
+		if (size < 0)
+			return null;
+		buf.flip();
+		return buf;
+	}
+
+	private static String asString(ByteBuffer frame) {
+		// Solo para el formato de texto heredado
+		return new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(),
+				StandardCharsets.UTF_8);
+	}
+}
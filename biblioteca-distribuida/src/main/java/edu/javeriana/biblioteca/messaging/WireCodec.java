@@ -0,0 +1,324 @@
+package edu.javeriana.biblioteca.messaging;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+/**
+ * Sobre binario para Message y StorageResult.
+ *
+ * Formatos de frame según el byte de versión:
+ *
+ * <pre>
+ * v1 (hmac): [versión:1][tipo:1][largo id:1][id llave][nonce:12][largo ct:4][ciphertext + tag GCM][HMAC:32]
+ * v2 (aead): [versión:1][tipo:1][largo id:1][id llave][nonce:12][ciphertext + tag GCM]
+ * </pre>
+ *
+ * En v2 el tag GCM es la única verificación de integridad y la cabecera va
+ * como datos asociados (AAD). El emisor usa wire.envelope (hmac por defecto:
+ * v1 es lo que leen los nodos que no conocen v2); el receptor acepta las dos
+ * versiones, así que se actualizan los nodos de a uno y al final se pasa a aead.
+ *
+ * El plaintext cifrado son campos con prefijo de largo (u16 + UTF-8). Se lee
+ * y escribe sobre ByteBuffers sin pasar por Strings intermedios ni Base64.
+ * Un Message con plazo o id de solicitud agrega después de sus cuatro campos
+ * el plazo (8 bytes, epoch ms, 0 = sin plazo) y, si tiene id, un quinto campo;
+ * los receptores anteriores ignoran ese resto.
+ */
+public final class WireCodec {
+
+	public static final byte VERSION_HMAC = 0x01; // AES-GCM + HMAC sobre el frame
+	public static final byte VERSION_AEAD = 0x02; // solo AES-GCM, cabecera como AAD
+
+	// Versión con la que se emiten los frames (hmac | aead)
+	private static final byte ENVELOPE = "aead".equalsIgnoreCase(
+			System.getProperty("wire.envelope", AppConfig.get("wire.envelope", "hmac")).trim())
+					? VERSION_AEAD
+					: VERSION_HMAC;
+
+	static final byte KIND_MESSAGE = 'M';
+	static final byte KIND_RESULT = 'R';
+
+	private static final int NONCE_LEN = 12;
+	private static final int GCM_TAG_BITS = 128;
+	private static final int GCM_TAG_LEN = GCM_TAG_BITS / 8;
+	private static final int MAC_LEN = 32;
+	private static final int MAX_FIELD = 0xFFFF;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	// Buffers y codificadores reutilizados por hilo
+	private static final ThreadLocal<ByteBuffer> PLAIN = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1024));
+	private static final ThreadLocal<byte[]> NONCE = ThreadLocal.withInitial(() -> new byte[NONCE_LEN]);
+	private static final ThreadLocal<byte[]> MAC_OUT = ThreadLocal.withInitial(() -> new byte[MAC_LEN]);
+	private static final ThreadLocal<CharsetEncoder> UTF8 = ThreadLocal
+			.withInitial(StandardCharsets.UTF_8::newEncoder);
+
+	private WireCodec() {
+	}
+
+	public static boolean isBinary(ByteBuffer frame) {
+		// El formato de texto empieza con Base64; el binario con un byte de versión
+		return frame.remaining() > 0 && frame.get(frame.position()) < 0x20;
+	}
+
+	// ------------------------------------------------------------------
+	// Message
+	// ------------------------------------------------------------------
+
+	public static ByteBuffer encode(Message m) {
+		return encode(m, ENVELOPE);
+	}
+
+	public static ByteBuffer encode(Message m, byte version) {
+		// Frame nuevo de tamaño exacto (ZMQ envía sin copiar, no se puede reutilizar)
+		ByteBuffer plain = plainBuffer(
+				fieldBound(m.type()) + fieldBound(m.branchId()) + fieldBound(m.userId()) + fieldBound(m.bookCode())
+						+ Long.BYTES + (m.requestId() == null ? 0 : fieldBound(m.requestId())));
+		putField(plain, m.type());
+		putField(plain, m.branchId());
+		putField(plain, m.userId());
+		putField(plain, m.bookCode());
+		if (m.deadline() > 0 || m.requestId() != null)
+			plain.putLong(m.deadline());
+		if (m.requestId() != null)
+			putField(plain, m.requestId());
+		plain.flip();
+		return seal(KIND_MESSAGE, plain, version);
+	}
+
+	public static Message decodeMessage(ByteBuffer frame) {
+		ByteBuffer plain = open(KIND_MESSAGE, frame);
+		String type = getField(plain);
+		String branchId = getField(plain);
+		String userId = getField(plain);
+		String bookCode = getField(plain);
+		long deadline = plain.remaining() >= Long.BYTES ? plain.getLong() : 0L;
+		String requestId = plain.remaining() >= 2 ? getField(plain) : null;
+		return new Message(type, branchId, userId, bookCode, deadline, requestId);
+	}
+
+	// ------------------------------------------------------------------
+	// StorageResult
+	// ------------------------------------------------------------------
+
+	public static ByteBuffer encode(StorageResult r) {
+		return encode(r, ENVELOPE);
+	}
+
+	public static ByteBuffer encode(StorageResult r, byte version) {
+		String msg = r.message() == null ? "" : r.message();
+		ByteBuffer plain = plainBuffer(1 + fieldBound(msg));
+		plain.put(r.ok() ? (byte) 1 : (byte) 0);
+		putField(plain, msg);
+		plain.flip();
+		return seal(KIND_RESULT, plain, version);
+	}
+
+	public static StorageResult decodeResult(ByteBuffer frame) {
+		ByteBuffer plain = open(KIND_RESULT, frame);
+		if (!plain.hasRemaining())
+			throw new IllegalArgumentException("Carga util invalida en StorageResult binario");
+		boolean ok = plain.get() == 1;
+		String msg = getField(plain);
+		return new StorageResult(ok, msg);
+	}
+
+	// ------------------------------------------------------------------
+	// Sobre: cifrado + firma
+	// ------------------------------------------------------------------
+
+	public static byte envelope() {
+		return ENVELOPE;
+	}
+
+	private static ByteBuffer seal(byte kind, ByteBuffer plain, byte version) {
+		KeyRing.Entry key = KeyRing.current();
+		String id = key.id();
+		if (version != VERSION_HMAC && version != VERSION_AEAD)
+			throw new IllegalArgumentException("Version de frame no soportada: " + version);
+		boolean aead = version == VERSION_AEAD;
+		int ctLen = plain.remaining() + GCM_TAG_LEN;
+		int headerLen = 3 + id.length() + NONCE_LEN;
+		ByteBuffer out = ByteBuffer.allocate(aead
+				? headerLen + ctLen
+				: headerLen + 4 + ctLen + MAC_LEN);
+
+		try {
+			// Cabecera
+			out.put(version);
+			out.put(kind);
+			out.put((byte) id.length());
+			for (int i = 0; i < id.length(); i++)
+				out.put((byte) id.charAt(i));
+			byte[] nonce = NONCE.get();
+			RANDOM.nextBytes(nonce);
+			out.put(nonce);
+
+			Cipher cipher = KeyRing.cipher();
+			cipher.init(Cipher.ENCRYPT_MODE, key.aesKey(), new GCMParameterSpec(GCM_TAG_BITS, nonce));
+
+			if (aead) {
+				// La cabecera queda autenticada por GCM como AAD
+				ByteBuffer header = out.duplicate();
+				header.flip();
+				cipher.updateAAD(header);
+				cipher.doFinal(plain, out);
+			} else {
+				// Cifrado directo al frame + HMAC sobre cabecera y ciphertext
+				out.putInt(ctLen);
+				cipher.doFinal(plain, out);
+
+				Mac mac = KeyRing.mac();
+				mac.init(key.hmacKey());
+				ByteBuffer signed = out.duplicate();
+				signed.flip();
+				mac.update(signed);
+				byte[] tag = MAC_OUT.get();
+				mac.doFinal(tag, 0);
+				out.put(tag);
+			}
+		} catch (Exception e) {
+			throw new RuntimeException("Error cifrando frame binario", e);
+		}
+		out.flip();
+		return out;
+	}
+
+	private static ByteBuffer open(byte expectedKind, ByteBuffer frame) {
+		int start = frame.position();
+		if (frame.remaining() < 3 + NONCE_LEN + GCM_TAG_LEN)
+			throw new IllegalArgumentException("Frame binario demasiado corto");
+
+		byte version = frame.get();
+		if (version != VERSION_HMAC && version != VERSION_AEAD)
+			throw new IllegalArgumentException("Version de frame no soportada: " + version);
+		byte kind = frame.get();
+		if (kind != expectedKind)
+			throw new IllegalArgumentException("Tipo de frame inesperado: " + (char) kind);
+
+		// Llave por id (permite rotación sin reinicio)
+		int idLen = frame.get() & 0xFF;
+		if (idLen > frame.remaining())
+			throw new IllegalArgumentException("Id de llave truncado");
+		KeyRing.Entry key = KeyRing.byId(frame, frame.position(), idLen);
+		if (key == null)
+			throw new SecurityException("Llave desconocida en frame binario");
+		frame.position(frame.position() + idLen);
+
+		byte[] nonce = NONCE.get();
+		if (frame.remaining() < NONCE_LEN)
+			throw new IllegalArgumentException("Nonce truncado");
+		frame.get(nonce);
+		int headerEnd = frame.position();
+
+		try {
+			Cipher cipher = KeyRing.cipher();
+			cipher.init(Cipher.DECRYPT_MODE, key.aesKey(), new GCMParameterSpec(GCM_TAG_BITS, nonce));
+
+			int ctStart;
+			int ctLen;
+			int end;
+			if (version == VERSION_AEAD) {
+				// El tag GCM cubre ciphertext + cabecera (AAD)
+				ctStart = headerEnd;
+				ctLen = frame.limit() - ctStart;
+				end = frame.limit();
+				ByteBuffer header = frame.duplicate();
+				header.position(start).limit(headerEnd);
+				cipher.updateAAD(header);
+			} else {
+				if (frame.remaining() < 4)
+					throw new IllegalArgumentException("Frame binario demasiado corto");
+				ctLen = frame.getInt();
+				ctStart = frame.position();
+				if (ctLen > frame.remaining() - MAC_LEN)
+					throw new IllegalArgumentException("Largo de ciphertext invalido: " + ctLen);
+				end = ctStart + ctLen + MAC_LEN;
+
+				// Verificar HMAC en tiempo constante antes de descifrar
+				Mac mac = KeyRing.mac();
+				mac.init(key.hmacKey());
+				ByteBuffer signed = frame.duplicate();
+				signed.position(start).limit(ctStart + ctLen);
+				mac.update(signed);
+				byte[] expected = MAC_OUT.get();
+				mac.doFinal(expected, 0);
+				int diff = 0;
+				for (int i = 0; i < MAC_LEN; i++)
+					diff |= expected[i] ^ frame.get(ctStart + ctLen + i);
+				if (diff != 0)
+					throw new SecurityException("Firma HMAC invalida en frame binario");
+			}
+			if (ctLen < GCM_TAG_LEN)
+				throw new IllegalArgumentException("Largo de ciphertext invalido: " + ctLen);
+
+			// Descifrar al buffer de plaintext del hilo
+			ByteBuffer ct = frame.duplicate();
+			ct.position(ctStart).limit(ctStart + ctLen);
+			ByteBuffer plain = plainBuffer(ctLen - GCM_TAG_LEN);
+			cipher.doFinal(ct, plain);
+			plain.flip();
+
+			frame.position(end);
+			return plain;
+		} catch (SecurityException | IllegalArgumentException e) {
+			throw e;
+		} catch (javax.crypto.AEADBadTagException e) {
+			throw new SecurityException("Tag GCM invalido en frame binario", e);
+		} catch (Exception e) {
+			throw new RuntimeException("Error descifrando frame binario", e);
+		}
+	}
+
+	// ------------------------------------------------------------------
+	// Campos con prefijo de largo
+	// ------------------------------------------------------------------
+
+	private static ByteBuffer plainBuffer(int needed) {
+		// Buffer del hilo con capacidad suficiente (crece solo si hace falta)
+		ByteBuffer b = PLAIN.get();
+		if (b.capacity() < needed) {
+			b = ByteBuffer.allocate(Math.max(needed, b.capacity() * 2));
+			PLAIN.set(b);
+		}
+		b.clear();
+		return b;
+	}
+
+	private static int fieldBound(String s) {
+		// Cota superior del campo codificado: prefijo + 3 bytes UTF-8 por char
+		return 2 + 3 * (s == null ? 0 : s.length());
+	}
+
+	private static void putField(ByteBuffer b, String s) {
+		// [u16 largo][UTF-8] codificado directo al buffer
+		int lenPos = b.position();
+		b.position(lenPos + 2);
+		CharsetEncoder enc = UTF8.get().reset();
+		CoderResult cr = enc.encode(CharBuffer.wrap(s == null ? "" : s), b, true);
+		if (cr.isError())
+			throw new IllegalArgumentException("Campo con caracteres invalidos");
+		int len = b.position() - lenPos - 2;
+		if (len > MAX_FIELD)
+			throw new IllegalArgumentException("Campo demasiado largo: " + len + " bytes");
+		b.putShort(lenPos, (short) len);
+	}
+
+	private static String getField(ByteBuffer b) {
+		int len = b.getShort() & 0xFFFF;
+		if (len > b.remaining())
+			throw new IllegalArgumentException("Campo truncado en frame binario");
+		String s = new String(b.array(), b.arrayOffset() + b.position(), len, StandardCharsets.UTF_8);
+		b.position(b.position() + len);
+		return s;
+	}
+}
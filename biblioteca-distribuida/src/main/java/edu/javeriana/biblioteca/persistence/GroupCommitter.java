@@ -0,0 +1,255 @@
+package edu.javeriana.biblioteca.persistence;
+
+import edu.javeriana.biblioteca.common.Histogram;
+import edu.javeriana.biblioteca.messaging.Deadlines;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit: junta las operaciones que llegan dentro de una ventana corta
+ * (o hasta completar un máximo) y las aplica en una sola transacción, cada una
+ * aislada con su savepoint. Un solo commit (un solo flush del WAL) confirma
+ * todo el grupo, y cada llamador recibe su resultado recién después de ese
+ * commit, así que lo confirmado tiene la misma durabilidad que antes.
+ *
+ * La ventana solo se espera mientras pueda llegar alguien más: el grupo se
+ * confirma apenas todos los hilos que están dentro de una operación del
+ * gateway (enter/exit) ya encolaron la suya. Con un solo hilo (GA en modo REP)
+ * o con la cola vacía se confirma de inmediato. La espera de cada llamador
+ * está acotada por el plazo del mensaje o, sin plazo, por maxWaitMs.
+ */
+final class GroupCommitter {
+
+	/** Una operación del grupo y su resultado */
+	static final class Unit {
+		final String type;
+		final String branchId;
+		final String userId;
+		final String bookCode;
+		final String requestId; // null = sin registro en request_log
+		RuntimeException error; // error de negocio (o interno) de esta operación
+		boolean retry; // el grupo falló: aplicar por el camino normal
+		boolean taken; // el líder ya la tomó para un grupo (bajo lock)
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		Unit(String type, String branchId, String userId, String bookCode, String requestId) {
+			this.type = type;
+			this.branchId = branchId;
+			this.userId = userId;
+			this.bookCode = bookCode;
+			this.requestId = requestId;
+		}
+	}
+
+	/** Aplica un grupo completo en una transacción (lo implementa StorageGateway) */
+	@FunctionalInterface
+	interface GroupRunner {
+		void run(List<Unit> units) throws Exception;
+	}
+
+	private final GroupRunner runner;
+	private final long windowNs;
+	private final int maxOps;
+	private final long maxWaitMs;
+
+	// Hilos dentro de una operación del gateway que puede pasar por el grupo
+	private final AtomicInteger inside = new AtomicInteger();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition arrived = lock.newCondition();
+	private List<Unit> pending = new ArrayList<>();
+	private final Thread thread;
+
+	// Métricas
+	private final AtomicLong groups = new AtomicLong(); // commits de grupo
+	private final AtomicLong ops = new AtomicLong();
+	private final AtomicLong unitRollbacks = new AtomicLong(); // ROLLBACK TO SAVEPOINT
+	private final AtomicLong groupFailures = new AtomicLong();
+	private final AtomicLong earlyFlushes = new AtomicLong(); // sin esperar la ventana completa
+	private final AtomicLong waitTimeouts = new AtomicLong(); // llamadores que dejaron de esperar
+	private final Histogram groupSize = new Histogram("ops");
+	private final Histogram commitLatency = new Histogram("µs");
+	private long lastStatsNs = System.nanoTime();
+	private long lastStatsGroups;
+	private long lastStatsOps;
+
+	GroupCommitter(GroupRunner runner, long windowMs, int maxOps, long maxWaitMs) {
+		this.runner = runner;
+		this.windowNs = TimeUnit.MILLISECONDS.toNanos(windowMs);
+		this.maxOps = Math.max(1, maxOps);
+		this.maxWaitMs = Math.max(1, maxWaitMs);
+		this.thread = new Thread(this::loop, "ga-group-commit");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Un hilo entra a una operación que puede encolarse (el gateway llama a exit al salir) */
+	void enter() {
+		inside.incrementAndGet();
+	}
+
+	void exit() {
+		// Uno menos que esperar: el líder revisa si ya puede confirmar
+		inside.decrementAndGet();
+		lock.lock();
+		try {
+			if (!pending.isEmpty()) {
+				arrived.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Encola la operación y espera el commit de su grupo, a lo sumo hasta el plazo
+	 * (deadline, epoch ms; 0 = sin plazo, se usa maxWaitMs). Devuelve false si el
+	 * grupo falló, o si venció la espera sin que el líder la tomara, y la operación
+	 * debe aplicarse por el camino normal.
+	 */
+	boolean submit(Unit u, long deadline) throws InterruptedException {
+		lock.lock();
+		try {
+			pending.add(u);
+			arrived.signal();
+		} finally {
+			lock.unlock();
+		}
+		if (!u.done.await(Math.min(maxWaitMs, Deadlines.remainingMs(deadline)), TimeUnit.MILLISECONDS)) {
+			abandon(u, deadline); // o lanza, o deja la operación terminada
+		}
+		if (u.retry) {
+			return false;
+		}
+		if (u.error != null) {
+			throw u.error;
+		}
+		return true;
+	}
+
+	private void abandon(Unit u, long deadline) {
+		// Si el líder no la tomó se retira de la cola; si ya la tomó no se sabe si
+		// quedó confirmada (el request_id deduplica el reintento del cliente)
+		boolean taken;
+		lock.lock();
+		try {
+			taken = u.taken;
+			if (!taken) {
+				pending.remove(u);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (u.done.getCount() == 0) {
+			return; // terminó justo ahora
+		}
+		waitTimeouts.incrementAndGet();
+		if (deadline > 0 && Deadlines.remainingMs(deadline) == 0) {
+			Deadlines.count("GA");
+			throw new IllegalStateException(Deadlines.EXPIRED + " mientras se esperaba el group commit");
+		}
+		if (taken) {
+			throw new IllegalStateException("Error interno en GA: el group commit no respondió en " + maxWaitMs
+					+ " ms; resultado desconocido");
+		}
+		u.retry = true; // no llegó a tomarse: camino normal
+		u.done.countDown();
+	}
+
+	private void loop() {
+		while (true) {
+			List<Unit> group;
+			lock.lock();
+			try {
+				// Esperar la primera operación y luego la ventana, salvo que se complete
+				// el máximo o que ya no quede nadie más dentro del gateway por encolar
+				while (pending.isEmpty()) {
+					arrived.awaitUninterruptibly();
+				}
+				long deadline = System.nanoTime() + windowNs;
+				long left;
+				while (pending.size() < maxOps && pending.size() < inside.get()
+						&& (left = deadline - System.nanoTime()) > 0) {
+					try {
+						arrived.awaitNanos(left);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (pending.isEmpty()) {
+					continue; // se retiraron por plazo vencido
+				}
+				if (deadline - System.nanoTime() > 0) {
+					earlyFlushes.incrementAndGet();
+				}
+				if (pending.size() <= maxOps) {
+					group = pending;
+					pending = new ArrayList<>();
+				} else {
+					group = new ArrayList<>(pending.subList(0, maxOps));
+					pending = new ArrayList<>(pending.subList(maxOps, pending.size()));
+				}
+				for (Unit u : group) {
+					u.taken = true;
+				}
+			} finally {
+				lock.unlock();
+			}
+			runGroup(group);
+		}
+	}
+
+	private void runGroup(List<Unit> group) {
+		long t0 = System.nanoTime();
+		try {
+			runner.run(group);
+			groups.incrementAndGet();
+			ops.addAndGet(group.size());
+			groupSize.record(group.size());
+			commitLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t0));
+			for (Unit u : group) {
+				if (u.error != null) {
+					unitRollbacks.incrementAndGet();
+				}
+			}
+		} catch (Exception e) {
+			// Nada del grupo quedó confirmado: cada operación se reintenta sola (con failover)
+			groupFailures.incrementAndGet();
+			System.err.println("[GroupCommit] Grupo de " + group.size() + " fallido: " + e.getMessage());
+			for (Unit u : group) {
+				u.error = null;
+				u.retry = true;
+			}
+		} finally {
+			for (Unit u : group) {
+				u.done.countDown();
+			}
+		}
+	}
+
+	synchronized String stats() {
+		// Commits por segundo y operaciones por commit desde el último snapshot
+		long now = System.nanoTime();
+		long g = groups.get();
+		long o = ops.get();
+		double secs = Math.max(1e-9, (now - lastStatsNs) / 1e9);
+		String s = String.format(
+				"group commit: commits/s=%.1f ops/s=%.1f ops_por_commit=%.1f grupos=%d ops=%d rollback_savepoint=%d "
+						+ "grupos_fallidos=%d sin_ventana=%d esperas_vencidas=%d | tamaño: %s | commit: %s",
+				(g - lastStatsGroups) / secs, (o - lastStatsOps) / secs,
+				g == lastStatsGroups ? 0.0 : (o - lastStatsOps) / (double) (g - lastStatsGroups),
+				g, o, unitRollbacks.get(), groupFailures.get(), earlyFlushes.get(), waitTimeouts.get(),
+				groupSize.summary(), commitLatency.summary());
+		lastStatsNs = now;
+		lastStatsGroups = g;
+		lastStatsOps = o;
+		return s;
+	}
+}
@@ -0,0 +1,244 @@
+package edu.javeriana.biblioteca.persistence;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.replication.DataSourceRouter;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copias disponibles por (branch_id, book_code) en memoria del GA.
+ *
+ * Sirve para rechazar sin tomar el lock del inventario un préstamo de un libro
+ * agotado (StorageGateway antes descarta que sea un reintento ya aplicado). Cada
+ * clave tiene un índice entero (sede * libros + libro) en arreglos primitivos
+ * y las escrituras se protegen con locks por franja. Se carga desde la BD al
+ * iniciar, se actualiza con el inventario que devuelve cada commit y también
+ * con lo que lee el camino normal de préstamo.
+ *
+ * Un 0 solo se usa para rechazar durante ga.cache.zero.ttl.ms desde que se
+ * confirmó: así otro GA que escribe en la misma BD no deja un libro
+ * rechazado para siempre. Si cambia la BD de escritura (failover o failback)
+ * la tabla se recarga; reset() la recarga a pedido.
+ */
+public class InventoryCache {
+
+	private static final int UNKNOWN = -1;
+	private static final int STRIPES = 64; // potencia de dos
+
+	/** Índices fijos de una carga y los valores que se van actualizando */
+	private static final class Table {
+		final DataSource source; // BD desde la que se cargó
+		final String[] branches;
+		final String[] bookKeys; // direccionamiento abierto: código → id de libro
+		final int[] bookIds;
+		final int books;
+		final int[] available;
+		final long[] confirmedAt; // nanoTime de la última vez que se supo el valor
+
+		Table(DataSource source, String[] branches, String[] books) {
+			this.source = source;
+			this.branches = branches;
+			this.books = books.length;
+			int cap = Integer.highestOneBit(Math.max(4, books.length * 2 - 1)) << 1;
+			this.bookKeys = new String[cap];
+			this.bookIds = new int[cap];
+			for (int i = 0; i < books.length; i++) {
+				int h = books[i].hashCode() & (cap - 1);
+				while (bookKeys[h] != null) {
+					h = (h + 1) & (cap - 1);
+				}
+				bookKeys[h] = books[i];
+				bookIds[h] = i;
+			}
+			this.available = new int[branches.length * books.length];
+			this.confirmedAt = new long[available.length];
+			Arrays.fill(available, UNKNOWN);
+		}
+
+		int slot(String branchId, String bookCode) {
+			// Índice plano de la clave, o -1 si no se conocía al cargar
+			int b = -1;
+			for (int i = 0; i < branches.length; i++) {
+				if (branches[i].equals(branchId)) {
+					b = i;
+					break;
+				}
+			}
+			if (b < 0 || bookCode == null) {
+				return -1;
+			}
+			int mask = bookKeys.length - 1;
+			int h = bookCode.hashCode() & mask;
+			String k;
+			while ((k = bookKeys[h]) != null) {
+				if (k.equals(bookCode)) {
+					return b * books + bookIds[h];
+				}
+				h = (h + 1) & mask;
+			}
+			return -1;
+		}
+	}
+
+	private final DataSourceRouter router;
+	private final boolean enabled;
+	private final long zeroTtlNs;
+	private final Object[] stripes = new Object[STRIPES];
+	private final Object loadLock = new Object();
+	private volatile Table table;
+
+	// Métricas
+	private final AtomicLong hits = new AtomicLong(); // consultas con valor conocido
+	private final AtomicLong misses = new AtomicLong(); // clave desconocida o valor vencido
+	private final AtomicLong rejected = new AtomicLong(); // préstamos rechazados sin ir a la BD
+	private final AtomicLong reloads = new AtomicLong();
+
+	public InventoryCache(DataSourceRouter router) {
+		this.router = router;
+		this.enabled = Boolean.parseBoolean(System.getProperty("ga.cache.enabled",
+				AppConfig.get("ga.cache.enabled", "true")));
+		this.zeroTtlNs = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(AppConfig.get("ga.cache.zero.ttl.ms", "2000")));
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Object();
+		}
+		this.table = new Table(null, new String[0], new String[0]);
+	}
+
+	public void warm() {
+		// Carga todas las filas de branch_inventory de la BD de escritura actual
+		if (!enabled) {
+			return;
+		}
+		synchronized (loadLock) {
+			load();
+		}
+	}
+
+	private void load() {
+		// Llamar con loadLock tomado
+		DataSource ds = router.currentWrite();
+		long t0 = System.nanoTime();
+		try (Connection c = ds.getConnection()) {
+			List<String> branches = new ArrayList<>();
+			try (PreparedStatement ps = c.prepareStatement("SELECT id FROM branches ORDER BY id");
+					ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					branches.add(rs.getString(1));
+				}
+			}
+			List<String> books = new ArrayList<>();
+			try (PreparedStatement ps = c.prepareStatement("SELECT code FROM books ORDER BY code");
+					ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					books.add(rs.getString(1));
+				}
+			}
+			Table t = new Table(ds, branches.toArray(new String[0]), books.toArray(new String[0]));
+			int rows = 0;
+			long now = System.nanoTime();
+			try (PreparedStatement ps = c.prepareStatement(
+					"SELECT branch_id, book_code, available_copies FROM branch_inventory");
+					ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					int slot = t.slot(rs.getString(1), rs.getString(2));
+					if (slot >= 0) {
+						t.available[slot] = rs.getInt(3);
+						t.confirmedAt[slot] = now;
+						rows++;
+					}
+				}
+			}
+			table = t;
+			reloads.incrementAndGet();
+			System.out.printf("[GA] Caché de inventario cargada: %d filas (%d sedes x %d libros) en %d ms%n",
+					rows, branches.size(), books.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+		} catch (SQLException e) {
+			// Sin caché todo va a la BD; se vuelve a intentar en el próximo cambio de BD o reset
+			table = new Table(ds, new String[0], new String[0]);
+			System.err.println("[GA] No se pudo cargar la caché de inventario: " + e.getMessage());
+		}
+	}
+
+	public void reset() {
+		// Descarta todo y recarga desde la BD (por si la caché se desvió)
+		warm();
+	}
+
+	private Table current() {
+		// Si cambió la BD de escritura, lo cacheado ya no aplica
+		Table t = table;
+		if (t.source != router.currentWrite()) {
+			synchronized (loadLock) {
+				if (table.source != router.currentWrite()) {
+					load(); // solo el primer hilo que lo nota recarga
+				}
+			}
+			t = table;
+		}
+		return t;
+	}
+
+	/** true si se sabe que no hay ejemplares: el préstamo se puede rechazar sin ir a la BD */
+	public boolean knownUnavailable(String branchId, String bookCode) {
+		if (!enabled) {
+			return false;
+		}
+		Table t = current();
+		int slot = t.slot(branchId, bookCode);
+		if (slot < 0) {
+			misses.incrementAndGet();
+			return false;
+		}
+		int v;
+		long at;
+		synchronized (stripes[slot & (STRIPES - 1)]) {
+			v = t.available[slot];
+			at = t.confirmedAt[slot];
+		}
+		if (v == UNKNOWN || (v <= 0 && System.nanoTime() - at > zeroTtlNs)) {
+			misses.incrementAndGet();
+			return false;
+		}
+		hits.incrementAndGet();
+		if (v <= 0) {
+			rejected.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	public void update(String branchId, String bookCode, int available) {
+		// Valor confirmado por la BD (commit o lectura con FOR UPDATE)
+		if (!enabled) {
+			return;
+		}
+		Table t = table;
+		if (t.source != router.currentWrite()) {
+			return; // la tabla se recarga en la próxima consulta
+		}
+		int slot = t.slot(branchId, bookCode);
+		if (slot < 0) {
+			return;
+		}
+		synchronized (stripes[slot & (STRIPES - 1)]) {
+			t.available[slot] = available;
+			t.confirmedAt[slot] = System.nanoTime();
+		}
+	}
+
+	public String stats() {
+		long h = hits.get();
+		long m = misses.get();
+		return String.format("cache inventario: activa=%s aciertos=%d fallos=%d tasa=%.1f%% rechazos_sin_bd=%d recargas=%d",
+				enabled, h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), rejected.get(), reloads.get());
+	}
+}
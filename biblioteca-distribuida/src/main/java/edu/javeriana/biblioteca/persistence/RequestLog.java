@@ -0,0 +1,313 @@
+package edu.javeriana.biblioteca.persistence;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.messaging.Message;
+import edu.javeriana.biblioteca.messaging.StorageResult;
+import edu.javeriana.biblioteca.replication.DataSourceRouter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registro de solicitudes ya aplicadas, por request_id.
+ *
+ * En memoria: los StorageResult recientes en mapas LRU por franja, con
+ * vencimiento a los ga.dedup.ttl.ms; un reintento que llega a este GA se
+ * responde sin ir a la BD. Respaldo: la tabla request_log (Schema.sql,
+ * sección 10) con el código de resultado, que se escribe en la misma
+ * transacción que la operación. Así también un reintento que llega a otro GA
+ * se responde sin tocar loans. En modo functions el registro lo hace
+ * apply_request en el servidor; las rutas de lote y de statements usan
+ * claim/store de esta clase.
+ *
+ * Solo se recuerda lo que quedó confirmado junto con su fila en request_log.
+ * request_log no se replica: tras un failover los reintentos vuelven a pasar
+ * por las verificaciones idempotentes de siempre.
+ */
+public class RequestLog {
+
+	private static final int STRIPES = 16;
+
+	/** Código y detalle guardados de una solicitud ya aplicada */
+	record Stored(String code, String detail) {
+	}
+
+	private record Entry(StorageResult result, long expiresAtNs) {
+	}
+
+	private final DataSourceRouter router;
+	private final boolean enabled;
+	private final long ttlNs;
+	private final int stripeCapacity;
+	private final List<LinkedHashMap<String, Entry>> stripes = new ArrayList<>(STRIPES);
+
+	// Métricas
+	private final AtomicLong hits = new AtomicLong(); // respondidas desde memoria
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong dbReplays = new AtomicLong(); // respondidas desde request_log
+	private final AtomicLong batchCopies = new AtomicLong(); // ids repetidos dentro de un mismo lote
+	private final AtomicLong evictions = new AtomicLong(); // sacadas por capacidad
+	private final AtomicLong purged = new AtomicLong(); // filas borradas de request_log
+
+	public RequestLog(DataSourceRouter router) {
+		this.router = router;
+		this.enabled = Boolean.parseBoolean(System.getProperty("ga.dedup.enabled",
+				AppConfig.get("ga.dedup.enabled", "true")));
+		this.ttlNs = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(System.getProperty("ga.dedup.ttl.ms",
+				AppConfig.get("ga.dedup.ttl.ms", "600000"))));
+		int capacity = Integer.parseInt(System.getProperty("ga.dedup.cache.size",
+				AppConfig.get("ga.dedup.cache.size", "100000")));
+		this.stripeCapacity = Math.max(1, capacity / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes.add(new LinkedHashMap<>(16, 0.75f, true)); // orden de acceso (LRU)
+		}
+	}
+
+	public boolean enabled() {
+		return enabled;
+	}
+
+	private LinkedHashMap<String, Entry> stripe(String requestId) {
+		return stripes.get(requestId.hashCode() & (STRIPES - 1));
+	}
+
+	/** Resultado recordado de la solicitud, o null si no está (o venció) */
+	public StorageResult cached(String requestId) {
+		if (!enabled || requestId == null) {
+			return null;
+		}
+		LinkedHashMap<String, Entry> s = stripe(requestId);
+		Entry e;
+		synchronized (s) {
+			e = s.get(requestId);
+			if (e != null && System.nanoTime() - e.expiresAtNs() > 0) {
+				s.remove(requestId);
+				e = null;
+			}
+		}
+		if (e == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return e.result();
+	}
+
+	/** Recuerda el resultado ya confirmado (o leído de request_log) */
+	void remember(String requestId, StorageResult result) {
+		if (!enabled || requestId == null) {
+			return;
+		}
+		LinkedHashMap<String, Entry> s = stripe(requestId);
+		synchronized (s) {
+			s.put(requestId, new Entry(result, System.nanoTime() + ttlNs));
+			if (s.size() > stripeCapacity) {
+				// Sale el menos usado de la franja
+				s.remove(s.keySet().iterator().next());
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	void replayed() {
+		dbReplays.incrementAndGet();
+	}
+
+	// ------------------------------------------------------------------
+	// request_log dentro de la transacción de la operación
+	// ------------------------------------------------------------------
+
+	/**
+	 * Reserva el id (INSERT ... ON CONFLICT DO NOTHING) en la transacción abierta
+	 * en c. Devuelve null si quedó reservado (hay que aplicar la operación) o el
+	 * código guardado si la solicitud ya se había aplicado.
+	 */
+	Stored claim(Connection c, String requestId) throws SQLException {
+		if (!enabled || requestId == null) {
+			return null;
+		}
+		try (PreparedStatement ps = c.prepareStatement(
+				"INSERT INTO request_log (request_id) VALUES (?) ON CONFLICT DO NOTHING")) {
+			ps.setString(1, requestId);
+			if (ps.executeUpdate() == 1) {
+				return null;
+			}
+		}
+		try (PreparedStatement ps = c.prepareStatement(
+				"SELECT code, detail FROM request_log WHERE request_id = ?")) {
+			ps.setString(1, requestId);
+			try (ResultSet rs = ps.executeQuery()) {
+				rs.next();
+				return new Stored(rs.getString(1), rs.getString(2));
+			}
+		}
+	}
+
+	/** Guarda el código de la solicitud reservada con claim, antes del commit */
+	void store(Connection c, String requestId, String code, String detail) throws SQLException {
+		if (!enabled || requestId == null) {
+			return;
+		}
+		try (PreparedStatement ps = c.prepareStatement(
+				"UPDATE request_log SET code = ?, detail = ? WHERE request_id = ?")) {
+			ps.setString(1, code);
+			ps.setString(2, detail);
+			ps.setString(3, requestId);
+			ps.executeUpdate();
+		}
+	}
+
+	/**
+	 * claim para un lote: reserva todos los ids en una sentencia y devuelve, por
+	 * índice de ítem, el código guardado de los que ya se habían aplicado.
+	 *
+	 * Un id repetido dentro del lote (un reintento que entró por otro GC al mismo
+	 * micro-lote) se reserva una vez: firstOf[i] queda con el índice de su primera
+	 * aparición, que es la única que se aplica; las copias llevan su resultado.
+	 * Para los demás ítems firstOf[i] == i.
+	 */
+	Map<Integer, Stored> claimAll(Connection c, List<Message> items, int[] firstOf) throws SQLException {
+		Map<Integer, Stored> replays = new HashMap<>();
+		for (int i = 0; i < firstOf.length; i++) {
+			firstOf[i] = i;
+		}
+		if (!enabled) {
+			return replays;
+		}
+		Map<String, Integer> first = new HashMap<>();
+		List<String> ids = new ArrayList<>(items.size());
+		for (int i = 0; i < items.size(); i++) {
+			String id = items.get(i).requestId();
+			if (id == null) {
+				continue;
+			}
+			Integer prev = first.putIfAbsent(id, i);
+			if (prev == null) {
+				ids.add(id);
+			} else {
+				firstOf[i] = prev;
+				batchCopies.incrementAndGet();
+			}
+		}
+		if (ids.isEmpty()) {
+			return replays;
+		}
+		Set<String> claimed = new HashSet<>();
+		try (PreparedStatement ps = c.prepareStatement(
+				"INSERT INTO request_log (request_id) SELECT unnest(?::text[]) " +
+						"ON CONFLICT DO NOTHING RETURNING request_id")) {
+			ps.setArray(1, c.createArrayOf("text", ids.toArray()));
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					claimed.add(rs.getString(1));
+				}
+			}
+		}
+		if (claimed.size() == ids.size()) {
+			return replays;
+		}
+		ids.removeAll(claimed);
+		Map<String, Stored> stored = new HashMap<>();
+		try (PreparedStatement ps = c.prepareStatement(
+				"SELECT request_id, code, detail FROM request_log WHERE request_id = ANY(?::text[])")) {
+			ps.setArray(1, c.createArrayOf("text", ids.toArray()));
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					stored.put(rs.getString(1), new Stored(rs.getString(2), rs.getString(3)));
+				}
+			}
+		}
+		for (String id : ids) {
+			if (stored.containsKey(id)) {
+				replays.put(first.get(id), stored.get(id));
+			}
+		}
+		return replays;
+	}
+
+	/** store para un lote: guarda el código de cada ítem reservado (codes[i] != null) */
+	void storeAll(Connection c, List<Message> items, String[] codes, String[] details) throws SQLException {
+		if (!enabled) {
+			return;
+		}
+		List<String> ids = new ArrayList<>();
+		List<String> cs = new ArrayList<>();
+		List<String> ds = new ArrayList<>();
+		for (int i = 0; i < items.size(); i++) {
+			if (items.get(i).requestId() != null && codes[i] != null) {
+				ids.add(items.get(i).requestId());
+				cs.add(codes[i]);
+				ds.add(details[i]);
+			}
+		}
+		if (ids.isEmpty()) {
+			return;
+		}
+		try (PreparedStatement ps = c.prepareStatement(
+				"UPDATE request_log r SET code = v.code, detail = v.detail " +
+						"FROM unnest(?::text[], ?::text[], ?::text[]) AS v(request_id, code, detail) " +
+						"WHERE r.request_id = v.request_id")) {
+			ps.setArray(1, c.createArrayOf("text", ids.toArray()));
+			ps.setArray(2, c.createArrayOf("text", cs.toArray()));
+			ps.setArray(3, c.createArrayOf("text", ds.toArray()));
+			ps.executeUpdate();
+		}
+	}
+
+	// ------------------------------------------------------------------
+	// Limpieza de request_log
+	// ------------------------------------------------------------------
+
+	public void startPurge() {
+		// Borra periódicamente las filas más viejas que ga.dedup.retention.h en la BD de escritura
+		long intervalMs = Long.parseLong(AppConfig.get("ga.dedup.purge.interval.ms", "600000"));
+		long retentionH = Long.parseLong(AppConfig.get("ga.dedup.retention.h", "24"));
+		if (!enabled || intervalMs <= 0) {
+			return;
+		}
+		ScheduledExecutorService purge = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ga-request-log-purge");
+			t.setDaemon(true);
+			return t;
+		});
+		purge.scheduleWithFixedDelay(() -> {
+			try (Connection c = router.currentWrite().getConnection();
+					PreparedStatement ps = c.prepareStatement(
+							"DELETE FROM request_log WHERE created_at < now() - make_interval(hours => ?)")) {
+				c.setAutoCommit(true);
+				ps.setInt(1, (int) retentionH);
+				purged.addAndGet(ps.executeUpdate());
+			} catch (SQLException e) {
+				System.err.println("[GA] No se pudo limpiar request_log: " + e.getMessage());
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	public String stats() {
+		long h = hits.get();
+		long m = misses.get();
+		int size = 0;
+		for (LinkedHashMap<String, Entry> s : stripes) {
+			synchronized (s) {
+				size += s.size();
+			}
+		}
+		return String.format("dedup: activa=%s aciertos=%d fallos=%d tasa=%.1f%% repetidas_desde_bd=%d "
+				+ "repetidas_en_lote=%d entradas=%d expulsadas=%d purgadas_bd=%d",
+				enabled, h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), dbReplays.get(), batchCopies.get(), size,
+				evictions.get(), purged.get());
+	}
+}
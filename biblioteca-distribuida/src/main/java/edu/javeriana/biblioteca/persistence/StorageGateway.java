@@ -1,21 +1,77 @@
 package edu.javeriana.biblioteca.persistence;
 
+import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.common.Backoff;
+import edu.javeriana.biblioteca.messaging.Deadlines;
+import edu.javeriana.biblioteca.messaging.Message;
+import edu.javeriana.biblioteca.messaging.StorageResult;
 import edu.javeriana.biblioteca.replication.DataSourceRouter;
+import edu.javeriana.biblioteca.replication.InventoryState;
+import edu.javeriana.biblioteca.replication.LoanState;
 import edu.javeriana.biblioteca.replication.Replicator;
 
 import javax.sql.DataSource;
 import java.sql.*;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 public class StorageGateway {
 
 	private final DataSourceRouter router;
 	private final Replicator replicator;
+	private final InventoryCache inventoryCache;
+	// Solicitudes ya aplicadas por request_id: los reintentos se responden sin tocar loans
+	private final RequestLog requestLog;
+	// ga.sql.mode=functions: cada operación es una sola sentencia (apply_* en Schema.sql);
+	// statements: las consultas de siempre, una por paso
+	private final boolean sqlFunctions;
+	// ga.group.commit=true: operaciones sueltas concurrentes comparten commit (requiere functions)
+	private final GroupCommitter groupCommitter;
+	// Reintentos ante errores SQL: espera exponencial con jitter, dentro del plazo del mensaje
+	private final int maxAttempts;
+	private final Backoff retryBackoff;
 
 	public StorageGateway(DataSourceRouter router, Replicator replicator) {
 		// Router para elegir primaria/secundaria y replicador para sincronizar
 		this.router = router;
 		this.replicator = replicator;
+		this.sqlFunctions = "functions".equalsIgnoreCase(System.getProperty("ga.sql.mode",
+				AppConfig.get("ga.sql.mode", "functions")).trim());
+		this.maxAttempts = Math.max(1, Integer.parseInt(System.getProperty("ga.retry.max.attempts",
+				AppConfig.get("ga.retry.max.attempts", "5"))));
+		this.retryBackoff = Backoff.fromConfig("ga.retry", 100, 2000);
+		this.inventoryCache = new InventoryCache(router);
+		inventoryCache.warm();
+		this.requestLog = new RequestLog(router);
+		requestLog.startPurge();
+
+		boolean group = Boolean.parseBoolean(System.getProperty("ga.group.commit",
+				AppConfig.get("ga.group.commit", "false")));
+		if (group && !sqlFunctions) {
+			System.err.println("[StorageGateway] ga.group.commit requiere ga.sql.mode=functions; se desactiva");
+			group = false;
+		}
+		this.groupCommitter = !group ? null
+				: new GroupCommitter(this::runGroup,
+						Long.parseLong(System.getProperty("ga.group.window.ms",
+								AppConfig.get("ga.group.window.ms", "2"))),
+						Integer.parseInt(System.getProperty("ga.group.max.ops",
+								AppConfig.get("ga.group.max.ops", "50"))),
+						Long.parseLong(System.getProperty("ga.group.wait.ms",
+								AppConfig.get("ga.group.wait.ms", "5000"))));
+	}
+
+	public InventoryCache inventoryCache() {
+		return inventoryCache;
+	}
+
+	public RequestLog requestLog() {
+		return requestLog;
 	}
 
 	/** Operación genérica con reintento en secundaria si la primaria falla */
@@ -25,16 +81,27 @@ public class StorageGateway {
 		void execute() throws Exception;
 	}
 
-	private void runWithFailover(StorageOperation op) throws Exception {
-		// Ejecuta con reintentos y cambia a secundaria si la primaria falla
-		final int maxAttempts = 5;
-		final long waitMs = 2000;
+	/** Operación con resultado, ejecutada con el mismo esquema de failover */
+	@FunctionalInterface
+	private interface StorageCall<T> {
+		T execute() throws Exception;
+	}
+
+	private void runWithFailover(StorageOperation op, long deadline) throws Exception {
+		callWithFailover(() -> {
+			op.execute();
+			return null;
+		}, deadline);
+	}
 
+	private <T> T callWithFailover(StorageCall<T> call, long deadline) throws Exception {
+		// Ejecuta con reintentos y cambia a secundaria si la primaria falla. Los
+		// reintentos no pasan del plazo del mensaje (deadline, epoch ms; 0 = sin plazo):
+		// nadie espera ya esa respuesta.
 		int attempt = 1;
 		while (true) {
 			try {
-				op.execute();
-				return;
+				return executeGated(call);
 			} catch (Exception e) {
 				if (!(e instanceof java.sql.SQLException)) {
 					// Errores no SQL se propagan directamente
@@ -59,18 +126,41 @@ public class StorageGateway {
 							e);
 				}
 
+				boolean retry;
 				try {
-					Thread.sleep(waitMs); // pausa entre intentos
+					retry = retryBackoff.sleep(attempt, Deadlines.remainingMs(deadline)); // pausa entre intentos
 				} catch (InterruptedException ie) {
 					Thread.currentThread().interrupt();
 					throw new IllegalStateException("Hilo interrumpido mientras se esperaba la BD", ie);
 				}
+				if (!retry) {
+					// No alcanza el plazo para otro intento
+					Deadlines.count("GA");
+					System.err.println("[StorageGateway] Plazo vencido tras " + attempt + " intentos. Abortando.");
+					throw new IllegalStateException(Deadlines.EXPIRED + " mientras se esperaba la BD", e);
+				}
 
 				attempt++;
 			}
 		}
 	}
 
+	private <T> T executeGated(StorageCall<T> call) throws Exception {
+		// Cada intento corre dentro de la compuerta de escritura: el failback la cierra
+		// para copiar lo último sin cambios nuevos en la secundaria
+		Lock gate = router.writeGate();
+		gate.lock();
+		try {
+			return call.execute();
+		} finally {
+			gate.unlock();
+		}
+	}
+
+	// Las escrituras toman router.currentWrite() una vez y pasan esa misma BD al
+	// replicador: decide primaria/secundaria por dónde se confirmó el cambio, no
+	// por el estado del router después del commit
+
 	private Connection getWriteConnection() throws SQLException {
 		// Obtiene la conexión del nodo actual de escritura
 		DataSource ds = router.currentWrite();
@@ -78,32 +168,69 @@ public class StorageGateway {
 	}
 
 	public void applyReturn(String branchId, String userId, String bookCode) throws Exception {
+		applyReturn(branchId, userId, bookCode, 0L, null);
+	}
+
+	public void applyReturn(String branchId, String userId, String bookCode, long deadline, String requestId)
+			throws Exception {
 		// Aplica lógica de devolución con idempotencia y replicación si procede
+		if (groupCommitter != null && grouped("DEVOLUCION", branchId, userId, bookCode, deadline, requestId, null)) {
+			return;
+		}
+		if (sqlFunctions) {
+			runWithFailover(() -> returnFn(branchId, userId, bookCode, requestId), deadline);
+			return;
+		}
 		runWithFailover(() -> {
-			try (Connection c = getWriteConnection()) {
+			DataSource ds = router.currentWrite();
+			try (Connection c = ds.getConnection()) {
 				c.setAutoCommit(false);
 				try (
 						PreparedStatement psLoan = c.prepareStatement(
 								"UPDATE loans SET status='RETURNED' " +
-										"WHERE user_id=? AND book_code=? AND branch_id=? AND status='ACTIVE'");
+										"WHERE user_id=? AND book_code=? AND branch_id=? AND status='ACTIVE' " +
+										"RETURNING " + LoanState.COLUMNS);
 						PreparedStatement psInv = c.prepareStatement(
 								"UPDATE branch_inventory " +
 										"SET available_copies = available_copies + 1 " +
-										"WHERE branch_id=? AND book_code=?")) {
+										"WHERE branch_id=? AND book_code=? " +
+										"RETURNING " + InventoryState.COLUMNS)) {
+
+					// Reintento de una solicitud ya aplicada: se responde con lo guardado
+					if (replay(c, "DEVOLUCION", requestId)) {
+						c.commit();
+						return;
+					}
 
 					// Intento normal de devolver préstamo activo
 					psLoan.setString(1, userId);
 					psLoan.setString(2, bookCode);
 					psLoan.setString(3, branchId);
-					int updated = psLoan.executeUpdate();
+					List<LoanState> returned = new ArrayList<>(1);
+					try (ResultSet rs = psLoan.executeQuery()) {
+						while (rs.next()) {
+							returned.add(LoanState.read(rs, 1));
+						}
+					}
 
-					if (updated > 0) {
-						// Se devolvió → sumar inventario + replicar
+					if (!returned.isEmpty()) {
+						// Se devolvió → sumar inventario + replicar el estado resultante
 						psInv.setString(1, branchId);
 						psInv.setString(2, bookCode);
-						psInv.executeUpdate();
-						c.commit();
-						replicator.replicateIncrementAvailable(branchId, bookCode);
+						InventoryState inv = null;
+						try (ResultSet rs = psInv.executeQuery()) {
+							if (rs.next()) {
+								inv = InventoryState.read(rs, 1);
+							}
+						}
+						commitStored(c, "DEVOLUCION", requestId, "APPLIED");
+						if (inv != null) {
+							inventoryCache.update(inv.branchId(), inv.bookCode(), inv.availableCopies());
+						}
+						for (LoanState loan : returned) {
+							replicator.replicateReturn(ds, loan, inv);
+							inv = null; // el inventario viaja una sola vez
+						}
 						return;
 					}
 
@@ -126,7 +253,7 @@ public class StorageGateway {
 						String status = rs.getString("status");
 						if ("RETURNED".equalsIgnoreCase(status)) {
 							// Ya estaba devuelto → idempotente OK
-							c.commit();
+							commitStored(c, "DEVOLUCION", requestId, "ALREADY");
 							return;
 						} else {
 							throw new IllegalStateException(
@@ -138,29 +265,55 @@ public class StorageGateway {
 					throw e;
 				}
 			}
-		});
+		}, deadline);
 	}
 
 	public void applyRenewal(String branchId, String userId, String bookCode) throws Exception {
+		applyRenewal(branchId, userId, bookCode, 0L, null);
+	}
+
+	public void applyRenewal(String branchId, String userId, String bookCode, long deadline, String requestId)
+			throws Exception {
 		// Aplica una renovación si es válida; maneja idempotencia
+		if (groupCommitter != null && grouped("RENOVACION", branchId, userId, bookCode, deadline, requestId, null)) {
+			return;
+		}
+		if (sqlFunctions) {
+			runWithFailover(() -> renewalFn(branchId, userId, bookCode, requestId), deadline);
+			return;
+		}
 		runWithFailover(() -> {
-			try (Connection c = getWriteConnection()) {
+			DataSource ds = router.currentWrite();
+			try (Connection c = ds.getConnection()) {
 				c.setAutoCommit(false);
 				try (PreparedStatement ps = c.prepareStatement(
 						"UPDATE loans " +
 								"SET renewals = renewals + 1, due_date = due_date + INTERVAL '7 day' " +
 								"WHERE user_id=? AND book_code=? AND branch_id=? " +
-								"AND status='ACTIVE' AND renewals < 2")) {
+								"AND status='ACTIVE' AND renewals < 2 " +
+								"RETURNING " + LoanState.COLUMNS)) {
+
+					if (replay(c, "RENOVACION", requestId)) {
+						c.commit();
+						return;
+					}
 
 					ps.setString(1, userId);
 					ps.setString(2, bookCode);
 					ps.setString(3, branchId);
-					int updated = ps.executeUpdate();
+					List<LoanState> renewed = new ArrayList<>(1);
+					try (ResultSet rs = ps.executeQuery()) {
+						while (rs.next()) {
+							renewed.add(LoanState.read(rs, 1));
+						}
+					}
 
-					if (updated > 0) {
+					if (!renewed.isEmpty()) {
 						// Renovación válida aplicada → replicar
-						c.commit();
-						replicator.replicateRenewLoan(branchId, userId, bookCode);
+						commitStored(c, "RENOVACION", requestId, "APPLIED");
+						for (LoanState loan : renewed) {
+							replicator.replicateRenewal(ds, loan);
+						}
 						return;
 					}
 
@@ -189,7 +342,7 @@ public class StorageGateway {
 
 						if (renewals >= 2) {
 							// Renovación máxima → operación idempotente
-							c.commit();
+							commitStored(c, "RENOVACION", requestId, "ALREADY");
 							return;
 						}
 
@@ -203,77 +356,841 @@ public class StorageGateway {
 					throw e;
 				}
 			}
-		});
+		}, deadline);
+	}
+
+	private void checkAvailable(String branchId, String userId, String bookCode, long deadline, String requestId)
+			throws Exception {
+		if (inventoryCache.knownUnavailable(branchId, bookCode)
+				&& !callWithFailover(() -> mayBeApplied(branchId, userId, bookCode, requestId), deadline)) {
+			throw new IllegalStateException(NO_COPIES);
+		}
 	}
 
 	public void applyLoan(String branchId, String userId, String bookCode) throws Exception {
+		applyLoan(branchId, userId, bookCode, 0L, null);
+	}
+
+	public void applyLoan(String branchId, String userId, String bookCode, long deadline, String requestId)
+			throws Exception {
 		// Aplica un préstamo nuevo si hay inventario; idempotente si ya existe uno
-		// activo
+		// activo. Un libro que la caché sabe agotado se rechaza sin tomar el lock del
+		// inventario, salvo que sea un reintento ya registrado o ya haya un préstamo
+		// activo: esos van por el camino normal, que responde el OK idempotente.
+		StorageOperation check = () -> checkAvailable(branchId, userId, bookCode, deadline, requestId);
+		if (groupCommitter == null) {
+			check.execute();
+		} else if (grouped("PRESTAMO", branchId, userId, bookCode, deadline, requestId, check)) {
+			return;
+		}
 		runWithFailover(() -> {
-			try (Connection c = getWriteConnection()) {
+			LoanApplied created;
+			DataSource ds = router.currentWrite();
+			try (Connection c = ds.getConnection()) {
+				if (sqlFunctions) {
+					// Una sola sentencia en autocommit: apply_loan es su propia transacción
+					c.setAutoCommit(true);
+					FnResult r = callFn(c, "apply_loan", branchId, userId, bookCode, requestId);
+					remember("PRESTAMO", requestId, r);
+					created = loanFn(r);
+				} else {
+					c.setAutoCommit(false);
+					try {
+						if (replay(c, "PRESTAMO", requestId)) {
+							c.commit();
+							return;
+						}
+						created = loanInTx(c, branchId, userId, bookCode);
+						commitStored(c, "PRESTAMO", requestId, created == null ? "ALREADY" : "APPLIED");
+					} catch (Exception e) {
+						c.rollback();
+						throw e;
+					}
+				}
+			}
+
+			runAfterCommit(loanOutcome(ds, created));
+		}, deadline);
+	}
+
+	private static final String NO_COPIES = "No hay ejemplares disponibles en la sede";
+
+	// Préstamo activo de (usuario, libro, sede); usa idx_loans_active, sin locks
+	private static final String ACTIVE_LOAN_SQL = "SELECT EXISTS (SELECT 1 FROM loans " +
+			"WHERE user_id=? AND book_code=? AND branch_id=? AND status='ACTIVE')";
+
+	private boolean mayBeApplied(String branchId, String userId, String bookCode, String requestId)
+			throws SQLException {
+		// Antes de creerle a un 0 de la caché: true si la solicitud ya quedó en
+		// request_log o el usuario ya tiene el libro (la respuesta correcta es el OK)
+		try (Connection c = getWriteConnection();
+				PreparedStatement ps = c.prepareStatement(ACTIVE_LOAN_SQL +
+						" OR EXISTS (SELECT 1 FROM request_log WHERE request_id=?)")) {
+			c.setAutoCommit(true);
+			ps.setString(1, userId);
+			ps.setString(2, bookCode);
+			ps.setString(3, branchId);
+			ps.setString(4, requestLog.enabled() ? requestId : null);
+			try (ResultSet rs = ps.executeQuery()) {
+				return rs.next() && rs.getBoolean(1);
+			}
+		}
+	}
+
+	private static boolean hasActiveLoan(PreparedStatement ps, Message m) throws SQLException {
+		ps.setString(1, m.userId());
+		ps.setString(2, m.bookCode());
+		ps.setString(3, m.branchId());
+		try (ResultSet rs = ps.executeQuery()) {
+			return rs.next() && rs.getBoolean(1);
+		}
+	}
+
+	/** Filas con las que quedó un préstamo nuevo, para replicarlas */
+	private record LoanApplied(LoanState loan, InventoryState inventory) {
+	}
+
+	private LoanApplied loanInTx(Connection c, String branchId, String userId, String bookCode) throws SQLException {
+		// Pasos del préstamo dentro de la transacción abierta en c. Devuelve null si
+		// ya había un préstamo activo (idempotente). Los errores de negocio se lanzan
+		// antes de escribir, así que no dejan cambios parciales.
+		try (
+				PreparedStatement psCheckLoan = c.prepareStatement(
+						"SELECT loan_id FROM loans " +
+								"WHERE branch_id=? AND user_id=? AND book_code=? AND status='ACTIVE' " +
+								"FOR UPDATE");
+				PreparedStatement psInv = c.prepareStatement(
+						"SELECT available_copies FROM branch_inventory " +
+								"WHERE branch_id=? AND book_code=? FOR UPDATE");
+				PreparedStatement psUpdateInv = c.prepareStatement(
+						"UPDATE branch_inventory SET available_copies = available_copies - 1 " +
+								"WHERE branch_id=? AND book_code=? RETURNING " + InventoryState.COLUMNS);
+				PreparedStatement psLoan = c.prepareStatement(
+						"INSERT INTO loans (user_id, book_code, branch_id, start_date, due_date, renewals, status) "
+								+ "VALUES (?,?,?,?,?,0,'ACTIVE') RETURNING " + LoanState.COLUMNS)) {
+
+			// Idempotencia: si ya existe préstamo activo, no hacer nada
+			psCheckLoan.setString(1, branchId);
+			psCheckLoan.setString(2, userId);
+			psCheckLoan.setString(3, bookCode);
+			ResultSet rsLoan = psCheckLoan.executeQuery();
+			if (rsLoan.next()) {
+				return null;
+			}
+
+			// Inventario disponible
+			psInv.setString(1, branchId);
+			psInv.setString(2, bookCode);
+			ResultSet rs = psInv.executeQuery();
+			if (!rs.next()) {
+				throw new IllegalStateException("Libro no existe en inventario de la sede");
+			}
+			int available = rs.getInt(1);
+			if (available <= 0) {
+				// Valor leído con FOR UPDATE: la caché lo recuerda para los siguientes
+				inventoryCache.update(branchId, bookCode, available);
+				throw new IllegalStateException(NO_COPIES);
+			}
+
+			// Actualizar inventario
+			psUpdateInv.setString(1, branchId);
+			psUpdateInv.setString(2, bookCode);
+			InventoryState inv;
+			try (ResultSet rsInv = psUpdateInv.executeQuery()) {
+				rsInv.next();
+				inv = InventoryState.read(rsInv, 1);
+			}
+
+			// Crear préstamo
+			LocalDate start = LocalDate.now();
+			LocalDate due = start.plusDays(7);
+
+			psLoan.setString(1, userId);
+			psLoan.setString(2, bookCode);
+			psLoan.setString(3, branchId);
+			psLoan.setDate(4, Date.valueOf(start));
+			psLoan.setDate(5, Date.valueOf(due));
+			try (ResultSet rsNew = psLoan.executeQuery()) {
+				rsNew.next();
+				return new LoanApplied(LoanState.read(rsNew, 1), inv);
+			}
+		}
+	}
+
+	// ------------------------------------------------------------------
+	// Modo functions: una sentencia por operación (apply_* en Schema.sql)
+	// ------------------------------------------------------------------
+
+	/**
+	 * Filas de apply_loan / apply_return / apply_renewal: código y estado resultante.
+	 * replayed: resultado guardado en request_log de un intento anterior (sin filas).
+	 */
+	private record FnResult(String code, String detail, List<LoanState> loans, InventoryState inventory,
+			boolean replayed) {
+	}
+
+	private FnResult callFn(Connection c, String fn, String branchId, String userId, String bookCode,
+			String requestId) throws SQLException {
+		// SELECT * FROM fn(sede, usuario, libro): code, detail, columnas del préstamo, inventario.
+		// Con request_id pasa por apply_request, que registra la solicitud en la misma transacción.
+		boolean logged = requestId != null && requestLog.enabled();
+		String sql = logged ? "SELECT * FROM apply_request(?,?,?,?,?)" : "SELECT * FROM " + fn + "(?,?,?)";
+		try (PreparedStatement ps = c.prepareStatement(sql)) {
+			int p = 1;
+			if (logged) {
+				ps.setString(p++, requestId);
+				ps.setString(p++, fn);
+			}
+			ps.setString(p++, branchId);
+			ps.setString(p++, userId);
+			ps.setString(p, bookCode);
+			String code = null;
+			String detail = null;
+			boolean replayed = false;
+			List<LoanState> loans = new ArrayList<>(1);
+			InventoryState inv = null;
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					code = rs.getString(1);
+					detail = rs.getString(2);
+					if (rs.getObject(3) != null) {
+						loans.add(LoanState.read(rs, 3));
+					}
+					if (inv == null && rs.getObject(12) != null) {
+						inv = new InventoryState(branchId, bookCode, rs.getInt(11), rs.getInt(12));
+					}
+					replayed = logged && rs.getBoolean(13);
+				}
+			}
+			if (code == null) {
+				throw new IllegalStateException("Error interno en GA: " + fn + " no devolvió resultado");
+			}
+			if (replayed) {
+				requestLog.replayed();
+			}
+			return new FnResult(code, detail, loans, inv, replayed);
+		}
+	}
+
+	private static IllegalStateException unexpected(String fn, FnResult r) {
+		return new IllegalStateException("Error interno en GA: " + fn + " devolvió " + r.code());
+	}
+
+	/**
+	 * Respuesta al PS para el código de una operación (de apply_* o de
+	 * request_log); null si el código no se conoce. ERROR lleva el mensaje en
+	 * detail (errores del lote de préstamos en modo statements).
+	 */
+	static StorageResult outcome(String type, String code, String detail) {
+		if (code == null) {
+			return null;
+		}
+		return switch (type + ':' + code) {
+			case "PRESTAMO:APPLIED", "PRESTAMO:ALREADY" -> new StorageResult(true, "Préstamo aplicado");
+			case "DEVOLUCION:APPLIED", "DEVOLUCION:ALREADY" -> new StorageResult(true, "Devolución aplicada");
+			case "RENOVACION:APPLIED", "RENOVACION:ALREADY" -> new StorageResult(true, "Renovación aplicada");
+			case "PRESTAMO:NO_STOCK" -> new StorageResult(false, "Libro no existe en inventario de la sede");
+			case "PRESTAMO:NO_COPIES" -> new StorageResult(false, NO_COPIES);
+			case "DEVOLUCION:NO_LOAN" -> new StorageResult(false, "No existe préstamo para devolver");
+			case "DEVOLUCION:BAD_STATUS" -> new StorageResult(false,
+					"No se pudo devolver: estado actual del préstamo = " + detail);
+			case "RENOVACION:NO_LOAN" -> new StorageResult(false, "No existe préstamo para renovar");
+			case "RENOVACION:NOT_ACTIVE" -> new StorageResult(false,
+					"No se puede renovar: el préstamo no está activo (estado=" + detail + ")");
+			case "RENOVACION:INCONSISTENT" -> new StorageResult(false,
+					"No se pudo renovar (estado inconsistente: " + detail + ")");
+			default -> "ERROR".equals(code) ? new StorageResult(false, detail) : null;
+		};
+	}
+
+	private static IllegalStateException failure(String type, String fn, FnResult r) {
+		// Error de negocio con el mismo mensaje que el modo statements
+		StorageResult o = outcome(type, r.code(), r.detail());
+		return o == null || o.ok() ? unexpected(fn, r) : new IllegalStateException(o.message());
+	}
+
+	private void remember(String type, String requestId, FnResult r) {
+		// Resultado ya confirmado con su fila en request_log (autocommit o después del commit)
+		if (requestId != null) {
+			StorageResult o = outcome(type, r.code(), r.detail());
+			if (o != null) {
+				requestLog.remember(requestId, o);
+			}
+		}
+	}
+
+	private boolean replay(Connection c, String type, String requestId) throws SQLException {
+		// Modo statements: reserva el request_id en la transacción abierta. true si la
+		// solicitud ya se había aplicado (se responde lo guardado, o su error de negocio)
+		RequestLog.Stored s = requestLog.claim(c, requestId);
+		StorageResult o = s == null ? null : outcome(type, s.code(), s.detail());
+		if (o == null) {
+			return false;
+		}
+		requestLog.replayed();
+		requestLog.remember(requestId, o);
+		if (!o.ok()) {
+			throw new IllegalStateException(o.message());
+		}
+		return true;
+	}
+
+	private void commitStored(Connection c, String type, String requestId, String code) throws SQLException {
+		// Guarda el código en request_log dentro de la misma transacción y confirma
+		requestLog.store(c, requestId, code, null);
+		c.commit();
+		if (requestId != null) {
+			requestLog.remember(requestId, outcome(type, code, null));
+		}
+	}
+
+	private LoanApplied loanFn(Connection c, String branchId, String userId, String bookCode) throws SQLException {
+		return loanFn(callFn(c, "apply_loan", branchId, userId, bookCode, null));
+	}
+
+	private LoanApplied loanFn(FnResult r) {
+		// Mismo contrato que loanInTx: null si ya existía (o es un reintento ya
+		// aplicado), IllegalStateException si no se puede
+		return switch (r.code()) {
+			case "APPLIED" -> r.replayed() ? null : new LoanApplied(r.loans().get(0), r.inventory());
+			case "ALREADY" -> null;
+			case "NO_COPIES" -> {
+				if (r.inventory() != null) {
+					inventoryCache.update(r.inventory().branchId(), r.inventory().bookCode(),
+							r.inventory().availableCopies());
+				}
+				throw failure("PRESTAMO", "apply_loan", r);
+			}
+			default -> throw failure("PRESTAMO", "apply_loan", r);
+		};
+	}
+
+	private void returnFn(String branchId, String userId, String bookCode, String requestId) throws SQLException {
+		FnResult r;
+		DataSource ds = router.currentWrite();
+		try (Connection c = ds.getConnection()) {
+			c.setAutoCommit(true);
+			r = callFn(c, "apply_return", branchId, userId, bookCode, requestId);
+		}
+		remember("DEVOLUCION", requestId, r);
+		runAfterCommit(returnOutcome(ds, r));
+	}
+
+	private Runnable returnOutcome(DataSource ds, FnResult r) {
+		// Error de negocio → excepción; aplicado → acciones para después del commit
+		return switch (r.code()) {
+			case "APPLIED" -> () -> {
+				// Sumar inventario ya ocurrió en el servidor: actualizar caché y replicar
+				// (un reintento ya aplicado no trae filas: no hay nada que replicar)
+				InventoryState inv = r.inventory();
+				if (inv != null) {
+					inventoryCache.update(inv.branchId(), inv.bookCode(), inv.availableCopies());
+				}
+				for (LoanState loan : r.loans()) {
+					replicator.replicateReturn(ds, loan, inv);
+					inv = null; // el inventario viaja una sola vez
+				}
+			};
+			case "ALREADY" -> null; // ya estaba devuelto → idempotente OK
+			default -> throw failure("DEVOLUCION", "apply_return", r);
+		};
+	}
+
+	private void renewalFn(String branchId, String userId, String bookCode, String requestId) throws SQLException {
+		FnResult r;
+		DataSource ds = router.currentWrite();
+		try (Connection c = ds.getConnection()) {
+			c.setAutoCommit(true);
+			r = callFn(c, "apply_renewal", branchId, userId, bookCode, requestId);
+		}
+		remember("RENOVACION", requestId, r);
+		runAfterCommit(renewalOutcome(ds, r));
+	}
+
+	private Runnable renewalOutcome(DataSource ds, FnResult r) {
+		return switch (r.code()) {
+			case "APPLIED" -> () -> {
+				for (LoanState loan : r.loans()) {
+					replicator.replicateRenewal(ds, loan);
+				}
+			};
+			case "ALREADY" -> null; // renovación máxima → operación idempotente
+			default -> throw failure("RENOVACION", "apply_renewal", r);
+		};
+	}
+
+	private Runnable loanOutcome(DataSource ds, LoanApplied created) {
+		// Replicar solo en caso de préstamo nuevo
+		if (created == null) {
+			return null;
+		}
+		return () -> {
+			InventoryState inv = created.inventory();
+			inventoryCache.update(inv.branchId(), inv.bookCode(), inv.availableCopies());
+			replicator.replicateNewLoan(ds, created.loan(), created.inventory());
+		};
+	}
+
+	private static void runAfterCommit(Runnable action) {
+		if (action != null) {
+			action.run();
+		}
+	}
+
+	// ------------------------------------------------------------------
+	// Group commit: varias operaciones por transacción, una por savepoint
+	// ------------------------------------------------------------------
+
+	private boolean grouped(String type, String branchId, String userId, String bookCode, long deadline,
+			String requestId, StorageOperation check) throws Exception {
+		// true si el grupo la confirmó (o lanzó su error de negocio); false si hay que
+		// aplicarla por el camino normal porque el grupo completo falló o no la tomó a
+		// tiempo. Mientras corre la validación previa (check) el hilo ya cuenta como
+		// "por encolar": el líder lo espera en vez de confirmar sin él.
+		groupCommitter.enter();
+		try {
+			if (check != null) {
+				check.execute();
+			}
+			return groupCommitter.submit(new GroupCommitter.Unit(type, branchId, userId, bookCode, requestId),
+					deadline);
+		} finally {
+			groupCommitter.exit();
+		}
+	}
+
+	private void runGroup(List<GroupCommitter.Unit> units) throws Exception {
+		// Una transacción para todo el grupo; cada unidad aislada con su savepoint
+		executeGated(() -> {
+			List<Runnable> after = new ArrayList<>(units.size());
+			DataSource ds = router.currentWrite();
+			try (Connection c = ds.getConnection()) {
+				c.setAutoCommit(false);
+				try {
+					for (GroupCommitter.Unit u : units) {
+						Savepoint sp = c.setSavepoint();
+						FnResult r = null;
+						try {
+							Runnable action = switch (u.type) {
+								case "PRESTAMO" -> loanOutcome(ds, loanFn(r = callFn(c, "apply_loan",
+										u.branchId, u.userId, u.bookCode, u.requestId)));
+								case "DEVOLUCION" -> returnOutcome(ds, r = callFn(c, "apply_return",
+										u.branchId, u.userId, u.bookCode, u.requestId));
+								case "RENOVACION" -> renewalOutcome(ds, r = callFn(c, "apply_renewal",
+										u.branchId, u.userId, u.bookCode, u.requestId));
+								default -> throw new IllegalStateException("Tipo de comando desconocido: " + u.type);
+							};
+							if (action != null) {
+								after.add(action);
+							}
+							FnResult done = r;
+							after.add(() -> remember(u.type, u.requestId, done));
+						} catch (IllegalStateException e) {
+							// Error de negocio: se deshace solo esta operación (y su fila de
+							// request_log, salvo que sea un reintento ya registrado)
+							c.rollback(sp);
+							u.error = e;
+							if (r != null && r.replayed()) {
+								remember(u.type, u.requestId, r);
+							}
+						} catch (SQLException e) {
+							// Error SQL de la operación: si la conexión sigue viva se aísla con el
+							// savepoint; si no, el rollback falla y cae todo el grupo
+							c.rollback(sp);
+							u.error = new IllegalStateException("Error interno en GA: " + e.getMessage(), e);
+						}
+					}
+					c.commit();
+				} catch (Exception e) {
+					c.rollback();
+					throw e;
+				}
+			}
+			after.forEach(Runnable::run);
+			return null;
+		});
+	}
+
+	public String groupCommitStats() {
+		return groupCommitter == null ? "group commit: inactivo" : groupCommitter.stats();
+	}
+
+	// ------------------------------------------------------------------
+	// Lotes: una transacción por tramo, resultado por ítem
+	// ------------------------------------------------------------------
+
+	public List<StorageResult> applyBatch(List<Message> items) {
+		// Lote mixto: cada tramo consecutivo del mismo tipo va en su propia transacción,
+		// así se respeta el orden entre operaciones de distinto tipo
+		List<StorageResult> out = new ArrayList<>(items.size());
+		int i = 0;
+		while (i < items.size()) {
+			String type = items.get(i).type();
+			int j = i + 1;
+			while (j < items.size() && type.equals(items.get(j).type())) {
+				j++;
+			}
+			List<Message> run = items.subList(i, j);
+			try {
+				switch (type) {
+					case "DEVOLUCION" -> out.addAll(applyReturns(run));
+					case "RENOVACION" -> out.addAll(applyRenewals(run));
+					case "PRESTAMO" -> out.addAll(applyLoans(run));
+					default -> run.forEach(
+							m -> out.add(new StorageResult(false, "Tipo de comando desconocido: " + type)));
+				}
+			} catch (Exception e) {
+				// El tramo completo falló (BD no disponible): mismo error para cada ítem
+				String msg = e instanceof IllegalStateException
+						? e.getMessage()
+						: "Error interno en GA: " + e.getMessage();
+				System.err.println("[StorageGateway] Lote fallido: " + msg);
+				run.forEach(m -> out.add(new StorageResult(false, msg)));
+			}
+			i = j;
+		}
+		return out;
+	}
+
+	public List<StorageResult> applyReturns(List<Message> items) throws Exception {
+		// Devoluciones en una transacción: UPDATE por conjunto + verificación por conjunto
+		return callWithFailover(() -> {
+			StorageResult[] results = new StorageResult[items.size()];
+			String[] codes = new String[items.size()];
+			String[] details = new String[items.size()];
+			int[] firstOf = new int[items.size()];
+			List<Message> applied = new ArrayList<>();
+			List<LoanState> loans = new ArrayList<>();
+			Map<String, InventoryState> inventory = new HashMap<>();
+			DataSource ds = router.currentWrite();
+			try (Connection c = ds.getConnection()) {
 				c.setAutoCommit(false);
 				try (
-						PreparedStatement psCheckLoan = c.prepareStatement(
-								"SELECT loan_id FROM loans " +
-										"WHERE branch_id=? AND user_id=? AND book_code=? AND status='ACTIVE' " +
-										"FOR UPDATE");
-						PreparedStatement psInv = c.prepareStatement(
-								"SELECT available_copies FROM branch_inventory " +
-										"WHERE branch_id=? AND book_code=? FOR UPDATE");
-						PreparedStatement psUpdateInv = c.prepareStatement(
-								"UPDATE branch_inventory SET available_copies = available_copies - 1 " +
-										"WHERE branch_id=? AND book_code=?");
 						PreparedStatement psLoan = c.prepareStatement(
-								"INSERT INTO loans (user_id, book_code, branch_id, start_date, due_date, renewals, status) "
-										+ "VALUES (?,?,?,?,?,0,'ACTIVE')")) {
-
-					// Idempotencia: si ya existe préstamo activo, no hacer nada
-					psCheckLoan.setString(1, branchId);
-					psCheckLoan.setString(2, userId);
-					psCheckLoan.setString(3, bookCode);
-					ResultSet rsLoan = psCheckLoan.executeQuery();
-					if (rsLoan.next()) {
-						c.commit();
-						return;
-					}
+								"UPDATE loans l SET status='RETURNED' " +
+										"FROM unnest(?::text[], ?::text[], ?::text[]) WITH ORDINALITY " +
+										"  AS v(user_id, book_code, branch_id, ord) " +
+										"WHERE l.user_id=v.user_id AND l.book_code=v.book_code " +
+										"  AND l.branch_id=v.branch_id AND l.status='ACTIVE' " +
+										"RETURNING v.ord, " + LoanState.columns("l"));
+						PreparedStatement psCheck = c.prepareStatement(LATEST_LOAN_SQL)) {
+
+					claimBatch(c, "DEVOLUCION", items, results, firstOf);
+					for (List<Integer> round : rounds(items)) {
+						round.removeIf(i -> settled(results, firstOf, i)); // reintentos y copias
+						if (round.isEmpty()) {
+							continue;
+						}
+						boolean[] updated = updateRound(c, psLoan, items, round, loans);
+						List<Integer> pending = new ArrayList<>();
+						for (int k = 0; k < round.size(); k++) {
+							if (updated[k]) {
+								applied.add(items.get(round.get(k)));
+								codes[round.get(k)] = "APPLIED";
+							} else {
+								pending.add(round.get(k));
+							}
+						}
 
-					// Inventario disponible
-					psInv.setString(1, branchId);
-					psInv.setString(2, bookCode);
-					ResultSet rs = psInv.executeQuery();
-					if (!rs.next()) {
-						throw new IllegalStateException("Libro no existe en inventario de la sede");
+						// Casos no actualizados: idempotente (ya devuelto) o error por ítem
+						checkLatest(c, psCheck, items, pending, (idx, status, renewals) -> {
+							if (status == null) {
+								codes[idx] = "NO_LOAN";
+							} else if ("RETURNED".equalsIgnoreCase(status)) {
+								codes[idx] = "ALREADY";
+							} else {
+								codes[idx] = "BAD_STATUS";
+								details[idx] = status;
+							}
+						});
 					}
-					int available = rs.getInt(1);
-					if (available <= 0) {
-						throw new IllegalStateException("No hay ejemplares disponibles en la sede");
+
+					// Sumar inventario de todas las devoluciones aplicadas en un solo UPDATE
+					if (!applied.isEmpty()) {
+						try (PreparedStatement psInv = c.prepareStatement(
+								"UPDATE branch_inventory bi SET available_copies = bi.available_copies + v.n " +
+										"FROM (SELECT branch_id, book_code, COUNT(*) AS n " +
+										"      FROM unnest(?::text[], ?::text[]) AS t(branch_id, book_code) " +
+										"      GROUP BY branch_id, book_code) v " +
+										"WHERE bi.branch_id=v.branch_id AND bi.book_code=v.book_code " +
+										"RETURNING " + InventoryState.columns("bi"))) {
+							psInv.setArray(1, c.createArrayOf("text",
+									applied.stream().map(Message::branchId).toArray()));
+							psInv.setArray(2, c.createArrayOf("text",
+									applied.stream().map(Message::bookCode).toArray()));
+							try (ResultSet rs = psInv.executeQuery()) {
+								while (rs.next()) {
+									InventoryState inv = InventoryState.read(rs, 1);
+									inventory.put(inv.branchId() + '|' + inv.bookCode(), inv);
+								}
+							}
+						}
 					}
+					requestLog.storeAll(c, items, codes, details);
+					c.commit();
+				} catch (Exception e) {
+					c.rollback();
+					throw e;
+				}
+			}
 
-					// Actualizar inventario
-					psUpdateInv.setString(1, branchId);
-					psUpdateInv.setString(2, bookCode);
-					psUpdateInv.executeUpdate();
+			for (InventoryState inv : inventory.values()) {
+				inventoryCache.update(inv.branchId(), inv.bookCode(), inv.availableCopies());
+			}
+			// Cada libro lleva su inventario final con la primera devolución que lo tocó
+			for (LoanState loan : loans) {
+				replicator.replicateReturn(ds, loan, inventory.remove(loan.branchId() + '|' + loan.bookCode()));
+			}
+			return finishBatch("DEVOLUCION", items, results, codes, details, firstOf);
+		}, latestDeadline(items));
+	}
 
-					// Crear préstamo
-					LocalDate start = LocalDate.now();
-					LocalDate due = start.plusDays(7);
+	public List<StorageResult> applyRenewals(List<Message> items) throws Exception {
+		// Renovaciones en una transacción: UPDATE por conjunto + verificación por conjunto
+		return callWithFailover(() -> {
+			StorageResult[] results = new StorageResult[items.size()];
+			String[] codes = new String[items.size()];
+			String[] details = new String[items.size()];
+			int[] firstOf = new int[items.size()];
+			List<LoanState> renewed = new ArrayList<>();
+			DataSource ds = router.currentWrite();
+			try (Connection c = ds.getConnection()) {
+				c.setAutoCommit(false);
+				try (
+						PreparedStatement psRenew = c.prepareStatement(
+								"UPDATE loans l " +
+										"SET renewals = l.renewals + 1, due_date = l.due_date + INTERVAL '7 day' " +
+										"FROM unnest(?::text[], ?::text[], ?::text[]) WITH ORDINALITY " +
+										"  AS v(user_id, book_code, branch_id, ord) " +
+										"WHERE l.user_id=v.user_id AND l.book_code=v.book_code " +
+										"  AND l.branch_id=v.branch_id AND l.status='ACTIVE' AND l.renewals < 2 " +
+										"RETURNING v.ord, " + LoanState.columns("l"));
+						PreparedStatement psCheck = c.prepareStatement(LATEST_LOAN_SQL)) {
 
-					psLoan.setString(1, userId);
-					psLoan.setString(2, bookCode);
-					psLoan.setString(3, branchId);
-					psLoan.setDate(4, Date.valueOf(start));
-					psLoan.setDate(5, Date.valueOf(due));
-					psLoan.executeUpdate();
+					claimBatch(c, "RENOVACION", items, results, firstOf);
+					for (List<Integer> round : rounds(items)) {
+						round.removeIf(i -> settled(results, firstOf, i)); // reintentos y copias
+						if (round.isEmpty()) {
+							continue;
+						}
+						boolean[] updated = updateRound(c, psRenew, items, round, renewed);
+						List<Integer> pending = new ArrayList<>();
+						for (int k = 0; k < round.size(); k++) {
+							if (updated[k]) {
+								codes[round.get(k)] = "APPLIED";
+							} else {
+								pending.add(round.get(k));
+							}
+						}
 
+						// Casos no actualizados: validar por qué, igual que applyRenewal
+						checkLatest(c, psCheck, items, pending, (idx, status, renewals) -> {
+							if (status == null) {
+								codes[idx] = "NO_LOAN";
+							} else if (!"ACTIVE".equalsIgnoreCase(status)) {
+								codes[idx] = "NOT_ACTIVE";
+								details[idx] = status;
+							} else if (renewals >= 2) {
+								codes[idx] = "ALREADY";
+							} else {
+								codes[idx] = "INCONSISTENT";
+								details[idx] = "renewals=" + renewals + ", status=" + status;
+							}
+						});
+					}
+					requestLog.storeAll(c, items, codes, details);
 					c.commit();
+				} catch (Exception e) {
+					c.rollback();
+					throw e;
+				}
+			}
 
-					// Replicar solo en caso de préstamo nuevo
-					replicator.replicateNewLoan(branchId, userId, bookCode);
+			for (LoanState loan : renewed) {
+				replicator.replicateRenewal(ds, loan);
+			}
+			return finishBatch("RENOVACION", items, results, codes, details, firstOf);
+		}, latestDeadline(items));
+	}
+
+	public List<StorageResult> applyLoans(List<Message> items) throws Exception {
+		// Préstamos en una transacción y un solo commit. Cada préstamo depende del
+		// inventario que dejó el anterior, así que se aplican en orden.
+		return callWithFailover(() -> {
+			StorageResult[] results = new StorageResult[items.size()];
+			String[] codes = new String[items.size()];
+			String[] details = new String[items.size()];
+			int[] firstOf = new int[items.size()];
+			List<LoanApplied> applied = new ArrayList<>();
+			DataSource ds = router.currentWrite();
+			try (Connection c = ds.getConnection()) {
+				c.setAutoCommit(false);
+				try (PreparedStatement psActive = c.prepareStatement(ACTIVE_LOAN_SQL)) {
+					claimBatch(c, "PRESTAMO", items, results, firstOf);
+					for (int i = 0; i < items.size(); i++) {
+						Message m = items.get(i);
+						if (settled(results, firstOf, i)) {
+							continue; // reintento ya aplicado o copia de otro ítem
+						}
+						// Un 0 de la caché solo se cree sin préstamo activo (con uno, loanInTx
+						// responde ALREADY); los reintentos ya salieron con claimBatch
+						if (inventoryCache.knownUnavailable(m.branchId(), m.bookCode()) && !hasActiveLoan(psActive, m)) {
+							codes[i] = "NO_COPIES";
+							continue;
+						}
+						try {
+							// Sin request_id: el lote ya lo reservó con claimBatch
+							LoanApplied created = sqlFunctions
+									? loanFn(c, m.branchId(), m.userId(), m.bookCode())
+									: loanInTx(c, m.branchId(), m.userId(), m.bookCode());
+							if (created != null) {
+								applied.add(created);
+							}
+							codes[i] = created == null ? "ALREADY" : "APPLIED";
+						} catch (IllegalStateException e) {
+							// Error de negocio del ítem: no escribió nada, el lote sigue
+							codes[i] = "ERROR";
+							details[i] = e.getMessage();
+						}
+					}
+					requestLog.storeAll(c, items, codes, details);
+					c.commit();
 				} catch (Exception e) {
 					c.rollback();
 					throw e;
 				}
 			}
-		});
+
+			for (LoanApplied a : applied) {
+				InventoryState inv = a.inventory();
+				inventoryCache.update(inv.branchId(), inv.bookCode(), inv.availableCopies());
+				replicator.replicateNewLoan(ds, a.loan(), a.inventory());
+			}
+			return finishBatch("PRESTAMO", items, results, codes, details, firstOf);
+		}, latestDeadline(items));
+	}
+
+	private void claimBatch(Connection c, String type, List<Message> items, StorageResult[] results,
+			int[] firstOf) throws SQLException {
+		// Reserva los request_id del lote; los ya aplicados se responden con lo guardado.
+		// Llena firstOf: las copias de un id repetido (firstOf[i] != i) no se aplican
+		for (Map.Entry<Integer, RequestLog.Stored> e : requestLog.claimAll(c, items, firstOf).entrySet()) {
+			StorageResult o = outcome(type, e.getValue().code(), e.getValue().detail());
+			if (o != null) {
+				results[e.getKey()] = o;
+				requestLog.replayed();
+			}
+		}
+	}
+
+	private static boolean settled(StorageResult[] results, int[] firstOf, int i) {
+		// Ítem que no se aplica: reintento ya registrado o copia de otro del lote
+		return results[i] != null || firstOf[i] != i;
+	}
+
+	private List<StorageResult> finishBatch(String type, List<Message> items, StorageResult[] results,
+			String[] codes, String[] details, int[] firstOf) {
+		// Ya confirmado: resultado de cada ítem por su código y registro en memoria;
+		// las copias responden lo mismo que su primera aparición
+		for (int i = 0; i < results.length; i++) {
+			if (firstOf[i] != i) {
+				results[i] = results[firstOf[i]];
+				continue;
+			}
+			if (codes[i] != null) {
+				results[i] = outcome(type, codes[i], details[i]);
+			}
+			if (items.get(i).requestId() != null) {
+				requestLog.remember(items.get(i).requestId(), results[i]);
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	// Último préstamo (por fecha) de cada (usuario, libro, sede) del arreglo
+	private static final String LATEST_LOAN_SQL = "SELECT v.ord, l.status, l.renewals " +
+			"FROM unnest(?::text[], ?::text[], ?::text[]) WITH ORDINALITY AS v(user_id, book_code, branch_id, ord) " +
+			"LEFT JOIN LATERAL (SELECT status, renewals FROM loans " +
+			"  WHERE user_id=v.user_id AND book_code=v.book_code AND branch_id=v.branch_id " +
+			"  ORDER BY start_date DESC LIMIT 1) l ON true";
+
+	@FunctionalInterface
+	private interface LatestLoanHandler {
+		void accept(int itemIndex, String status, int renewals);
+	}
+
+	private static long latestDeadline(List<Message> items) {
+		// Plazo de un lote: el del ítem que más espera (0 si alguno no tiene plazo)
+		long latest = 0;
+		for (Message m : items) {
+			if (m.deadline() <= 0) {
+				return 0;
+			}
+			latest = Math.max(latest, m.deadline());
+		}
+		return latest;
+	}
+
+	private static List<List<Integer>> rounds(List<Message> items) {
+		// La k-ésima aparición de cada (usuario, libro, sede) va a la ronda k: dentro de
+		// una ronda no hay claves repetidas y se conserva la semántica secuencial
+		Map<String, Integer> seen = new HashMap<>();
+		List<List<Integer>> rounds = new ArrayList<>();
+		for (int i = 0; i < items.size(); i++) {
+			Message m = items.get(i);
+			int r = seen.merge(m.userId() + '|' + m.bookCode() + '|' + m.branchId(), 1, Integer::sum) - 1;
+			while (rounds.size() <= r) {
+				rounds.add(new ArrayList<>());
+			}
+			rounds.get(r).add(i);
+		}
+		return rounds;
+	}
+
+	private static void bindKeys(Connection c, PreparedStatement ps, List<Message> items, List<Integer> idx)
+			throws SQLException {
+		// Arreglos (user_id, book_code, branch_id) en el orden de idx
+		String[] users = new String[idx.size()];
+		String[] books = new String[idx.size()];
+		String[] branches = new String[idx.size()];
+		for (int k = 0; k < idx.size(); k++) {
+			Message m = items.get(idx.get(k));
+			users[k] = m.userId();
+			books[k] = m.bookCode();
+			branches[k] = m.branchId();
+		}
+		ps.setArray(1, c.createArrayOf("text", users));
+		ps.setArray(2, c.createArrayOf("text", books));
+		ps.setArray(3, c.createArrayOf("text", branches));
+	}
+
+	private static boolean[] updateRound(Connection c, PreparedStatement ps, List<Message> items,
+			List<Integer> round, List<LoanState> states) throws SQLException {
+		// Ejecuta el UPDATE por conjunto, marca qué posiciones de la ronda se aplicaron
+		// y agrega a states las filas resultantes (RETURNING v.ord + columnas del préstamo)
+		boolean[] updated = new boolean[round.size()];
+		bindKeys(c, ps, items, round);
+		try (ResultSet rs = ps.executeQuery()) {
+			while (rs.next()) {
+				updated[(int) rs.getLong(1) - 1] = true;
+				states.add(LoanState.read(rs, 2));
+			}
+		}
+		return updated;
+	}
+
+	private static void checkLatest(Connection c, PreparedStatement ps, List<Message> items,
+			List<Integer> pending, LatestLoanHandler handler) throws SQLException {
+		// Consulta el último préstamo de cada ítem pendiente en un solo SELECT
+		if (pending.isEmpty()) {
+			return;
+		}
+		bindKeys(c, ps, items, pending);
+		try (ResultSet rs = ps.executeQuery()) {
+			while (rs.next()) {
+				int idx = pending.get((int) rs.getLong(1) - 1);
+				handler.accept(idx, rs.getString(2), rs.getInt(3));
+			}
+		}
 	}
 }
@@ -0,0 +1,344 @@
+package edu.javeriana.biblioteca.processes;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.common.AuditLogger;
+import edu.javeriana.biblioteca.common.Histogram;
+import edu.javeriana.biblioteca.messaging.Deadlines;
+import edu.javeriana.biblioteca.messaging.EndpointHealth;
+import edu.javeriana.biblioteca.messaging.Message;
+import edu.javeriana.biblioteca.messaging.StorageResult;
+import edu.javeriana.biblioteca.messaging.Wire;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Modo asíncrono de ReturnActor y RenewalActor: agrupa las notificaciones del
+ * GC en lotes (por cantidad o por tiempo) y envía cada lote al GA como un solo
+ * comando.
+ *
+ * El hilo del SUB solo arma lotes y los deja en una cola acotada
+ * (actor.batch.queue lotes); otro hilo los envía al GA con REQ y failover. Así
+ * el SUB se sigue vaciando mientras un lote está en vuelo, aun con un GA lento o
+ * en failover. El límite: si la cola se llena, el hilo del SUB espera a que se
+ * libere un lugar y, mientras tanto, los mensajes se acumulan en el SUB hasta
+ * actor.sub.hwm (pasado eso ZeroMQ descarta). En total caben unos
+ * actor.batch.queue × actor.batch.max ítems más actor.sub.hwm.
+ */
+final class GaBatchForwarder {
+
+	private final String actor; // nombre para logs y auditoría
+	private final String type; // tópico y tipo de comando
+	private final String failStatus; // estado de auditoría en caso de error
+	private final String[] subEndpoints;
+	private final String[] gaEndpoints;
+
+	private final int maxBatch;
+	private final long lingerNs;
+	private final int subHwm;
+	private final int queueBatches;
+	private final int gaSendTimeout; // timeout envío GA
+	private final int gaRecvTimeout; // timeout recepción GA
+
+	private final Histogram batchSizes = new Histogram("ítems");
+	private final Histogram flushLatency = new Histogram("µs");
+	private final AtomicLong queueFullWaits = new AtomicLong(); // el SUB esperó por cola llena
+	private volatile BlockingQueue<List<Message>> ready; // lotes listos para el GA
+	private volatile EndpointHealth health; // vista de salud de los GA (la lee también el hilo de stats)
+
+	GaBatchForwarder(String actor, String type, String failStatus, String[] subEndpoints, String[] gaEndpoints) {
+		this.actor = actor;
+		this.type = type;
+		this.failStatus = failStatus;
+		this.subEndpoints = subEndpoints;
+		this.gaEndpoints = gaEndpoints;
+		this.maxBatch = Math.max(1, Integer.parseInt(System.getProperty("actor.batch.max",
+				AppConfig.get("actor.batch.max", "64"))));
+		this.lingerNs = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(System.getProperty("actor.batch.linger.ms",
+				AppConfig.get("actor.batch.linger.ms", "5"))));
+		this.subHwm = Integer.parseInt(System.getProperty("actor.sub.hwm",
+				AppConfig.get("actor.sub.hwm", "10000")));
+		this.queueBatches = Math.max(1, Integer.parseInt(System.getProperty("actor.batch.queue",
+				AppConfig.get("actor.batch.queue", "16"))));
+		this.gaSendTimeout = Integer.parseInt(System.getProperty("actor.ga.snd.timeout.ms",
+				AppConfig.get("actor.ga.snd.timeout.ms", "2000")));
+		this.gaRecvTimeout = Integer.parseInt(System.getProperty("actor.ga.rcv.timeout.ms",
+				AppConfig.get("actor.ga.rcv.timeout.ms", "2000")));
+	}
+
+	void run() {
+		startStats();
+
+		try (ZMQ.Context ctx = ZMQ.context(1);
+				ZMQ.Socket sub = ctx.socket(SocketType.SUB);
+				EndpointHealth gaHealth = new EndpointHealth(actor, "GA", gaEndpoints)) {
+			health = gaHealth;
+
+			// Conectar a los endpoints de suscripción
+			sub.setRcvHWM(subHwm);
+			for (String ep : subEndpoints) {
+				sub.connect(ep.trim());
+			}
+
+			// Suscribirse al tópico del actor
+			sub.subscribe(type.getBytes(ZMQ.CHARSET));
+			System.out.printf("[%s] se suscribio al topic %s (lote max=%d, espera=%d ms)%n",
+					actor, type, maxBatch, TimeUnit.NANOSECONDS.toMillis(lingerNs));
+
+			// Hilo de envío al GA: dueño del REQ y único usuario de gaHealth
+			BlockingQueue<List<Message>> queue = new ArrayBlockingQueue<>(queueBatches);
+			ready = queue;
+			Thread sender = new Thread(() -> send(ctx, queue), actor + "-ga");
+			sender.setDaemon(true);
+			sender.start();
+
+			try (ZMQ.Poller poller = ctx.poller(1)) {
+				poller.register(sub, ZMQ.Poller.POLLIN);
+
+				List<Message> batch = new ArrayList<>(maxBatch);
+				long firstNs = 0; // llegada del primer ítem del lote
+
+				while (!Thread.currentThread().isInterrupted()) {
+					// Sin lote pendiente se espera indefinidamente; con lote, hasta que venza
+					long timeoutMs = -1;
+					if (!batch.isEmpty()) {
+						long left = firstNs + lingerNs - System.nanoTime();
+						timeoutMs = Math.max(0, TimeUnit.NANOSECONDS.toMillis(left + 999_999));
+					}
+					poller.poll(timeoutMs);
+
+					// Vaciar lo que haya en el SUB hasta completar el lote
+					while (batch.size() < maxBatch) {
+						String topic = sub.recvStr(ZMQ.DONTWAIT);
+						if (topic == null) {
+							break;
+						}
+						Message msg = Wire.recvMessage(sub);
+						System.out.printf("[GC] -> [%s] -> [GA]: %s %s %s %s%n",
+								actor, msg.type(), msg.branchId(), msg.userId(), msg.bookCode());
+
+						if (batch.isEmpty()) {
+							firstNs = System.nanoTime();
+						}
+						batch.add(new Message(type, msg.branchId(), msg.userId(), msg.bookCode(), msg.deadline(),
+								msg.requestId()));
+					}
+
+					if (!batch.isEmpty()
+							&& (batch.size() >= maxBatch || System.nanoTime() - firstNs >= lingerNs)) {
+						if (!handOff(queue, batch)) {
+							break;
+						}
+						batch = new ArrayList<>(maxBatch);
+					}
+				}
+			} finally {
+				// El REQ es del hilo de envío: se cierra allí antes de cerrar el contexto
+				sender.interrupt();
+				try {
+					sender.join(2L * gaRecvTimeout);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private boolean handOff(BlockingQueue<List<Message>> queue, List<Message> batch) {
+		// Sin lugar en la cola el SUB deja de vaciarse hasta que el GA avance
+		if (queue.offer(batch)) {
+			return true;
+		}
+		queueFullWaits.incrementAndGet();
+		try {
+			queue.put(batch);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void send(ZMQ.Context ctx, BlockingQueue<List<Message>> queue) {
+		GaLink ga = new GaLink(ctx);
+		System.out.printf("[%s] se conecto a [GA]: %s%n", actor, ga.endpoint());
+		System.out.println();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				flush(ga, queue.take());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			ga.close();
+		}
+	}
+
+	private void flush(GaLink ga, List<Message> batch) {
+		// El GC publica sin plazo lo que ya confirmó al PS; si un ítem trae plazo y
+		// venció mientras esperaba en el lote, no se envía
+		batch.removeIf(m -> {
+			if (!m.expired()) {
+				return false;
+			}
+			Deadlines.drop(actor, m);
+			AuditLogger.log(actor, type + "_FAIL",
+					String.format("branch=%s user=%s book=%s error=%s",
+							m.branchId(), m.userId(), m.bookCode(), Deadlines.EXPIRED),
+					failStatus);
+			return true;
+		});
+		if (batch.isEmpty()) {
+			return;
+		}
+		long t0 = System.nanoTime();
+		List<StorageResult> results = ga.apply(batch);
+		flushLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t0));
+		batchSizes.record(batch.size());
+
+		if (results == null) {
+			// Falló con todos los GA
+			StorageResult fail = new StorageResult(false, "No se pudo conectar con ningún Gestor de Almacenamiento");
+			System.err.println("[" + actor + "] " + fail.message());
+			results = Collections.nCopies(batch.size(), fail);
+		}
+
+		// Auditoría y log por ítem, en el orden del lote
+		for (int i = 0; i < batch.size(); i++) {
+			Message m = batch.get(i);
+			StorageResult res = results.get(i);
+			if (res.ok()) {
+				AuditLogger.log(actor, type + "_OK",
+						String.format("branch=%s user=%s book=%s", m.branchId(), m.userId(), m.bookCode()),
+						"OK");
+			} else {
+				AuditLogger.log(actor, type + "_FAIL",
+						String.format("branch=%s user=%s book=%s error=%s",
+								m.branchId(), m.userId(), m.bookCode(), res.message()),
+						failStatus);
+			}
+			System.out.printf("[GA] -> [%s]: %s (%s)%n", actor, res.ok() ? "OK" : "ERROR", res.message());
+		}
+		System.out.println();
+	}
+
+	private void startStats() {
+		// Histogramas de tamaño de lote y latencia de envío al GA
+		long statsMs = Long.parseLong(AppConfig.get("actor.stats.interval.ms", "30000"));
+		if (statsMs <= 0) {
+			return;
+		}
+		ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, actor + "-stats");
+			t.setDaemon(true);
+			return t;
+		});
+		stats.scheduleAtFixedRate(() -> {
+			System.out.println("[" + actor + "] stats lote: " + batchSizes.summary());
+			System.out.println("[" + actor + "] stats envio GA: " + flushLatency.summary());
+			BlockingQueue<List<Message>> q = ready;
+			System.out.printf("[%s] stats cola GA: lotes=%d/%d esperas_cola_llena=%d%n", actor,
+					q == null ? 0 : q.size(), queueBatches, queueFullWaits.get());
+			System.out.println("[" + actor + "] stats auditoria: " + AuditLogger.stats());
+			System.out.println("[" + actor + "] stats " + Deadlines.stats());
+			EndpointHealth h = health;
+			if (h != null) {
+				System.out.println("[" + actor + "] stats " + h.stats());
+			}
+		}, statsMs, statsMs, TimeUnit.MILLISECONDS);
+	}
+
+	/** REQ hacia el GA con failover entre los endpoints configurados, prefiriendo los vivos */
+	private final class GaLink {
+		private final ZMQ.Context ctx;
+		private ZMQ.Socket req;
+		private int index; // GA activo
+
+		GaLink(ZMQ.Context ctx) {
+			this.ctx = ctx;
+			this.req = connect();
+		}
+
+		String endpoint() {
+			return gaEndpoints[index].trim();
+		}
+
+		List<StorageResult> apply(List<Message> batch) {
+			// Un ítem viaja como comando simple; varios, como lote. null si ningún GA responde.
+			int attempts = 0;
+			while (attempts < gaEndpoints.length) {
+				// Si el GA actual no responde a los heartbeats y hay otro vivo, cambiar antes de enviar
+				int healthy = health.choose(index);
+				if (healthy != index) {
+					health.leaving(index, System.nanoTime());
+					index = healthy;
+					req.close();
+					req = connect();
+				}
+				long attemptNs = System.nanoTime();
+				try {
+					List<StorageResult> results;
+					if (batch.size() == 1) {
+						Wire.send(req, batch.get(0));
+						StorageResult r = health.await(req, index, gaRecvTimeout) ? Wire.recvResult(req) : null;
+						results = r == null ? null : List.of(r);
+					} else {
+						Wire.sendBatch(req, batch);
+						results = health.await(req, index, gaRecvTimeout) ? Wire.recvResults(req) : null;
+					}
+					if (results == null) {
+						throw new RuntimeException("Timeout al recibir respuesta de GA");
+					}
+					if (results.size() != batch.size()) {
+						throw new RuntimeException("Respuesta de GA con " + results.size()
+								+ " resultados para " + batch.size() + " comandos");
+					}
+					health.answered(index);
+					return results;
+
+				} catch (Exception e) {
+					// Error con el GA actual
+					System.err.println("[" + actor + "] Error con GA " + endpoint() + ": " + e.getMessage());
+
+					health.leaving(index, attemptNs);
+					attempts++;
+					if (attempts >= gaEndpoints.length) {
+						break;
+					}
+
+					// Pasar al siguiente GA y recrear el socket
+					index = health.next(index);
+					req.close();
+					req = connect();
+					System.out.printf("[%s] Reintentando con GA: %s%n", actor, endpoint());
+				}
+			}
+			// El REQ quedó esperando respuesta: se recrea para el siguiente lote
+			req.close();
+			req = connect();
+			return null;
+		}
+
+		void close() {
+			req.close();
+		}
+
+		private ZMQ.Socket connect() {
+			ZMQ.Socket s = ctx.socket(SocketType.REQ);
+			s.setSendTimeOut(gaSendTimeout);
+			s.setReceiveTimeOut(gaRecvTimeout);
+			s.connect(endpoint());
+			return s;
+		}
+	}
+}
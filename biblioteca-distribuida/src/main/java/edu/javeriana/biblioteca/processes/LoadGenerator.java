@@ -0,0 +1,351 @@
+package edu.javeriana.biblioteca.processes;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.common.Histogram;
+import edu.javeriana.biblioteca.messaging.Deadlines;
+import edu.javeriana.biblioteca.messaging.Message;
+import edu.javeriana.biblioteca.messaging.Wire;
+
+import org.zeromq.ZMQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Modo carga del PS: solicitudes a tasa fija (lazo abierto) desde N clientes.
+ *
+ * Un hilo planificador agenda la solicitud i en t0 + i / ps.load.rate sin
+ * esperar respuestas; los clientes (un REQ cada uno) toman de la cola lo que
+ * ya venció. Si el sistema se atrasa la cola crece, pero la carga ofrecida no
+ * baja. La latencia se mide desde el instante agendado, no desde el envío,
+ * así incluye la espera en cola (sin omisión coordinada).
+ *
+ * Histogramas por operación y por sede; cada ps.load.report.s se imprimen
+ * p50/p99/p99.9 y throughput del intervalo, y al final se escribe un resumen
+ * JSON en ps.load.summary.file para comparar corridas.
+ */
+public class LoadGenerator {
+
+	/** Origen de las solicitudes; null = no hay más. Lo llama solo el hilo planificador */
+	@FunctionalInterface
+	public interface RequestSource {
+		Message next();
+	}
+
+	/** Solicitud agendada para intendedNs (System.nanoTime) */
+	private record Task(Message msg, long intendedNs) {
+	}
+
+	private static final Task STOP = new Task(null, 0);
+
+	/** Histogramas (µs) y contadores de una operación o sede */
+	private static final class Stats {
+		final Histogram total = new Histogram("µs");
+		final Histogram interval = new Histogram("µs");
+		final AtomicLong rejected = new AtomicLong();
+		final AtomicLong timeouts = new AtomicLong();
+
+		void record(long us) {
+			total.record(us);
+			interval.record(us);
+		}
+	}
+
+	private final String[] endpoints;
+	private final int sndTimeout;
+	private final int rcvTimeout;
+	private final long deadlineMs;
+	private final double rate;
+	private final int clients;
+	private final long durationS;
+	private final long reportS;
+	private final String summaryFile;
+
+	private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+	private final Map<String, Stats> byOp = new ConcurrentHashMap<>();
+	private final Map<String, Stats> byBranch = new ConcurrentHashMap<>();
+	private final AtomicLong offered = new AtomicLong(); // agendadas
+	private final AtomicLong completed = new AtomicLong(); // con respuesta (aceptada o rechazada)
+	private final AtomicLong seq = new AtomicLong();
+	private final String psId = SolicitingProcess.processId();
+	private final List<Map<String, Object>> intervals = new ArrayList<>();
+
+	public LoadGenerator(String[] endpoints, int sndTimeout, int rcvTimeout, long deadlineMs) {
+		this.endpoints = endpoints;
+		this.sndTimeout = sndTimeout;
+		this.rcvTimeout = rcvTimeout;
+		this.deadlineMs = deadlineMs;
+		this.rate = Double.parseDouble(System.getProperty("ps.load.rate",
+				AppConfig.get("ps.load.rate", "100")));
+		this.clients = Integer.parseInt(System.getProperty("ps.load.clients",
+				AppConfig.get("ps.load.clients", "16")));
+		this.durationS = Long.parseLong(System.getProperty("ps.load.duration.s",
+				AppConfig.get("ps.load.duration.s", "30")));
+		this.reportS = Long.parseLong(System.getProperty("ps.load.report.s",
+				AppConfig.get("ps.load.report.s", "5")));
+		this.summaryFile = System.getProperty("ps.load.summary.file",
+				AppConfig.get("ps.load.summary.file", "load-summary.json"));
+	}
+
+	/** Ejecuta la corrida completa y escribe el resumen; label describe el origen */
+	public void run(RequestSource source, String label) throws Exception {
+		System.out.printf("[PS] Carga: %.1f sol/s, %d clientes, %s, origen=%s%n", rate, clients,
+				durationS > 0 ? durationS + " s" : "hasta agotar el origen", label);
+
+		// Llaves y cifrado se inicializan antes de t0: el arranque no cuenta como latencia
+		Message.prestar("S0", "warmup", "BK-0000").serialize();
+
+		CountDownLatch done = new CountDownLatch(clients);
+		try (ZMQ.Context ctx = ZMQ.context(1)) {
+			for (int c = 0; c < clients; c++) {
+				// Cada cliente reparte sus conexiones entre los GC configurados
+				String endpoint = endpoints[c % endpoints.length].trim();
+				Thread t = new Thread(() -> {
+					try {
+						client(ctx, endpoint);
+					} finally {
+						done.countDown();
+					}
+				}, "ps-load-" + c);
+				t.setDaemon(true);
+				t.start();
+			}
+
+			long t0 = System.nanoTime();
+			Thread reporter = new Thread(() -> report(t0), "ps-load-report");
+			reporter.setDaemon(true);
+			reporter.start();
+
+			schedule(source, t0);
+			for (int c = 0; c < clients; c++) {
+				queue.put(STOP);
+			}
+			done.await();
+			reporter.interrupt();
+			reporter.join();
+
+			long elapsedNs = System.nanoTime() - t0;
+			printTotals(elapsedNs);
+			writeSummary(label, elapsedNs);
+			System.out.println("[PS] " + Deadlines.stats());
+		}
+	}
+
+	private void schedule(RequestSource source, long t0) throws InterruptedException {
+		// Lazo abierto: la solicitud i sale en t0 + i * período, pase lo que pase con las anteriores
+		long periodNs = (long) (1e9 / rate);
+		long endNs = durationS > 0 ? t0 + TimeUnit.SECONDS.toNanos(durationS) : Long.MAX_VALUE;
+		for (long i = 0;; i++) {
+			long intended = t0 + i * periodNs;
+			if (intended - endNs >= 0) {
+				return;
+			}
+			long wait;
+			while ((wait = intended - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			Message msg = source.next();
+			if (msg == null) {
+				return;
+			}
+			offered.incrementAndGet();
+			queue.put(new Task(msg.withRequestId(psId + "-" + seq.incrementAndGet()), intended));
+		}
+	}
+
+	private void client(ZMQ.Context ctx, String endpoint) {
+		ZMQ.Socket req = SolicitingProcess.connect(ctx, endpoint, sndTimeout, rcvTimeout);
+		try {
+			while (true) {
+				Task task = queue.take();
+				if (task == STOP) {
+					return;
+				}
+				Message msg = task.msg();
+				if (deadlineMs > 0) {
+					// Plazo contado desde el instante agendado
+					long lateMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.intendedNs());
+					msg = msg.withDeadline(System.currentTimeMillis() - lateMs + deadlineMs);
+					if (msg.expired()) {
+						Deadlines.drop("PS", msg);
+						stats(byOp, msg.type()).timeouts.incrementAndGet();
+						stats(byBranch, msg.branchId()).timeouts.incrementAndGet();
+						continue;
+					}
+					req.setReceiveTimeOut(Deadlines.timeoutMs(msg, rcvTimeout));
+				}
+
+				String ack = null;
+				if (Wire.send(req, msg)) {
+					ack = req.recvStr();
+				}
+				if (ack == null) {
+					// Sin respuesta: se cuenta y el REQ se recrea (quedó esperando)
+					stats(byOp, msg.type()).timeouts.incrementAndGet();
+					stats(byBranch, msg.branchId()).timeouts.incrementAndGet();
+					req.close();
+					req = SolicitingProcess.connect(ctx, endpoint, sndTimeout, rcvTimeout);
+					continue;
+				}
+
+				long us = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - task.intendedNs());
+				completed.incrementAndGet();
+				boolean rejected = rejected(ack);
+				for (Stats s : new Stats[] { stats(byOp, msg.type()), stats(byBranch, msg.branchId()) }) {
+					s.record(us);
+					if (rejected) {
+						s.rejected.incrementAndGet();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			req.close();
+		}
+	}
+
+	static boolean rejected(String ack) {
+		// Respuestas del GC que no aplicaron la solicitud (ver LoadManager)
+		return ack.startsWith("No se pudo") || ack.startsWith("Solicitud invalida")
+				|| ack.startsWith("Tipo de operación no soportado") || ack.contains(Deadlines.EXPIRED);
+	}
+
+	private static Stats stats(Map<String, Stats> map, String key) {
+		return map.computeIfAbsent(key, k -> new Stats());
+	}
+
+	// ------------------------------------------------------------------
+	// Reportes
+	// ------------------------------------------------------------------
+
+	private void report(long t0) {
+		long lastNs = t0;
+		long lastCompleted = 0;
+		long lastOffered = 0;
+		while (true) {
+			try {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(Math.max(1, reportS)));
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.nanoTime();
+			long c = completed.get();
+			long o = offered.get();
+			double secs = (now - lastNs) / 1e9;
+			double tput = (c - lastCompleted) / secs;
+			double offeredRate = (o - lastOffered) / secs;
+			System.out.printf("[PS] t=%.0fs ofrecidas/s=%.1f completadas/s=%.1f en_cola=%d%n",
+					(now - t0) / 1e9, offeredRate, tput, queue.size());
+
+			Map<String, Object> snapshot = new LinkedHashMap<>();
+			snapshot.put("t_s", Math.round((now - t0) / 1e9));
+			snapshot.put("offered_per_s", offeredRate);
+			snapshot.put("throughput_per_s", tput);
+			snapshot.put("queued", queue.size());
+			Map<String, Object> ops = new TreeMap<>();
+			for (Map.Entry<String, Stats> e : new TreeMap<>(byOp).entrySet()) {
+				Histogram h = e.getValue().interval;
+				System.out.printf("[PS]   %-10s %s%n", e.getKey(), h.summary());
+				ops.put(e.getKey(), latency(h));
+				h.reset();
+			}
+			snapshot.put("latency_us", ops);
+			for (Stats s : byBranch.values()) {
+				s.interval.reset();
+			}
+			synchronized (intervals) {
+				intervals.add(snapshot);
+			}
+
+			lastNs = now;
+			lastCompleted = c;
+			lastOffered = o;
+		}
+	}
+
+	private void printTotals(long elapsedNs) {
+		double secs = elapsedNs / 1e9;
+		System.out.printf("[PS] Total: ofrecidas=%d completadas=%d (%.1f/s) en %.1f s%n", offered.get(),
+				completed.get(), completed.get() / secs, secs);
+		for (Map.Entry<String, Stats> e : new TreeMap<>(byOp).entrySet()) {
+			Stats s = e.getValue();
+			System.out.printf("[PS]   %-10s %s rechazadas=%d sin_respuesta=%d%n", e.getKey(), s.total.summary(),
+					s.rejected.get(), s.timeouts.get());
+		}
+		for (Map.Entry<String, Stats> e : new TreeMap<>(byBranch).entrySet()) {
+			Stats s = e.getValue();
+			System.out.printf("[PS]   sede %-5s %s rechazadas=%d sin_respuesta=%d%n", e.getKey(), s.total.summary(),
+					s.rejected.get(), s.timeouts.get());
+		}
+	}
+
+	private static Map<String, Object> latency(Histogram h) {
+		Map<String, Object> m = new LinkedHashMap<>();
+		m.put("count", h.count());
+		m.put("mean", h.mean());
+		m.put("p50", h.percentile(50));
+		m.put("p99", h.percentile(99));
+		m.put("p99_9", h.percentile(99.9));
+		m.put("max", h.max());
+		return m;
+	}
+
+	private static Map<String, Object> totals(Map<String, Stats> map) {
+		Map<String, Object> out = new TreeMap<>();
+		for (Map.Entry<String, Stats> e : map.entrySet()) {
+			Map<String, Object> m = latency(e.getValue().total);
+			m.put("rejected", e.getValue().rejected.get());
+			m.put("no_response", e.getValue().timeouts.get());
+			out.put(e.getKey(), m);
+		}
+		return out;
+	}
+
+	private void writeSummary(String label, long elapsedNs) {
+		// Resumen de la corrida en JSON (latencias en µs desde el instante agendado)
+		if (summaryFile.isBlank()) {
+			return;
+		}
+		Map<String, Object> config = new LinkedHashMap<>();
+		config.put("source", label);
+		config.put("rate_per_s", rate);
+		config.put("clients", clients);
+		config.put("duration_s", durationS);
+		config.put("deadline_ms", deadlineMs);
+		config.put("endpoints", endpoints);
+
+		Map<String, Object> summary = new LinkedHashMap<>();
+		summary.put("finished_at", Instant.now().toString());
+		summary.put("config", config);
+		summary.put("elapsed_s", elapsedNs / 1e9);
+		summary.put("offered", offered.get());
+		summary.put("completed", completed.get());
+		summary.put("throughput_per_s", completed.get() / (elapsedNs / 1e9));
+		summary.put("by_operation", totals(byOp));
+		summary.put("by_branch", totals(byBranch));
+		synchronized (intervals) {
+			summary.put("intervals", intervals);
+		}
+		try {
+			new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(new File(summaryFile), summary);
+			System.out.println("[PS] Resumen escrito en " + summaryFile);
+		} catch (IOException e) {
+			System.err.println("[PS] No se pudo escribir el resumen: " + e.getMessage());
+		}
+	}
+}
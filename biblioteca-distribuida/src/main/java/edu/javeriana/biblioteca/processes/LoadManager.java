@@ -2,27 +2,46 @@ package edu.javeriana.biblioteca.processes;
 
 import edu.javeriana.biblioteca.common.AppConfig;
 import edu.javeriana.biblioteca.common.AuditLogger;
+import edu.javeriana.biblioteca.messaging.Deadlines;
 import edu.javeriana.biblioteca.messaging.Message;
 import edu.javeriana.biblioteca.messaging.StorageResult;
+import edu.javeriana.biblioteca.messaging.Wire;
 
 import org.zeromq.ZMQ;
 import org.zeromq.SocketType;
+import org.zeromq.ZMQException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 public class LoadManager {
+
+  private static final String WORKERS_INPROC = "inproc://gc-workers";
+  private static final String PUB_INPROC = "inproc://gc-pub";
+
   public static void main(String[] args) {
 
-    // Determinar si el modo debe ser síncrono o asíncrono
+    // Determinar si el modo debe ser síncrono, asíncrono o router (concurrente)
     boolean syncMode = false;
+    boolean routerMode = false;
     for (String a : args) {
       if ("sync".equalsIgnoreCase(a) || "--sync".equalsIgnoreCase(a)) {
         syncMode = true;
-        break;
+      } else if ("router".equalsIgnoreCase(a) || "--router".equalsIgnoreCase(a)) {
+        routerMode = true;
       }
     }
 
     // Ejecutar el modo correspondiente
     if (syncMode) {
       runSync();
+    } else if (routerMode) {
+      runRouter();
     } else {
       runAsync();
     }
@@ -33,70 +52,352 @@ public class LoadManager {
     String repConnectPS = System.getProperty("gc.rep", AppConfig.get("gc.rep", "tcp://127.0.0.1:5555"));
     String pubConnect = System.getProperty("gc.pub", AppConfig.get("gc.pub", "tcp://127.0.0.1:5556"));
     String reqConnectAc = System.getProperty("actor.loan.req", AppConfig.get("actor.loan.req", "tcp://127.0.0.1:5557"));
+    long loanTimeoutMs = Long.parseLong(
+        System.getProperty("gc.loan.timeout.ms", AppConfig.get("gc.loan.timeout.ms", "5000")));
+
+    // Préstamos enviados al LoanActor y aún sin respuesta, por id de correlación.
+    // El plazo del PS puede acortar la espera, así que los vencimientos van en un
+    // heap aparte; las entradas ya respondidas se descartan al salir de él.
+    Map<Long, PendingLoan> pending = new HashMap<>();
+    PriorityQueue<PendingLoan> expiries = new PriorityQueue<>(Comparator.comparingLong(PendingLoan::deadlineNs));
+    long nextCorrelationId = 1;
 
     try (ZMQ.Context ctx = ZMQ.context(1);
-        ZMQ.Socket rep = ctx.socket(SocketType.REP); // recibe solicitudes PS
+        ZMQ.Socket front = ctx.socket(SocketType.ROUTER); // recibe solicitudes PS (REQ)
         ZMQ.Socket pub = ctx.socket(SocketType.PUB); // publica a actores asíncronos
-        ZMQ.Socket req = ctx.socket(SocketType.REQ)) { // canal sincrónico al LoanActor
+        ZMQ.Socket loan = ctx.socket(SocketType.DEALER)) { // préstamos al LoanActor sin bloquear
 
-      rep.bind(repConnectPS);
+      front.bind(repConnectPS);
       pub.bind(pubConnect);
-      req.connect(reqConnectAc);
+      loan.connect(reqConnectAc);
 
       System.out.printf("[GC] se conecto a [PS] y [LoanActor]: %s y %s%n", repConnectPS, pubConnect);
       System.out.println();
 
+      ZMQ.Poller poller = ctx.poller(2);
+      int frontIdx = poller.register(front, ZMQ.Poller.POLLIN);
+      int loanIdx = poller.register(loan, ZMQ.Poller.POLLIN);
+
       // Bucle principal del GC modo async
-      while (true) {
-        String reqString = rep.recvStr(); // recibir petición del PS
-        Message msg = Message.parse(reqString);
+      while (!Thread.currentThread().isInterrupted()) {
+        long waitMs = 100;
+        if (!expiries.isEmpty()) {
+          waitMs = Math.max(0, (expiries.peek().deadlineNs() - System.nanoTime()) / 1_000_000);
+        }
+        poller.poll(waitMs);
+
+        // Respuestas del LoanActor: [id correlación][vacío][StorageResult]. Una
+        // respuesta malformada se descarta; su préstamo vence por el camino normal
+        if (poller.pollin(loanIdx)) {
+          byte[] corr = loan.recv(0);
+          byte[] delimiter = loan.hasReceiveMore() ? loan.recv(0) : null;
+          if (corr == null || corr.length != Long.BYTES || delimiter == null || delimiter.length != 0
+              || !loan.hasReceiveMore()) {
+            skipRest(loan);
+            System.err.println("[GC] Respuesta de préstamo malformada descartada");
+            continue;
+          }
+          StorageResult loanRes;
+          try {
+            loanRes = Wire.recvResult(loan);
+          } catch (RuntimeException e) {
+            skipRest(loan);
+            System.err.println("[GC] Respuesta de préstamo invalida descartada: " + e.getMessage());
+            continue;
+          }
+          skipRest(loan);
+          PendingLoan p = pending.remove(ByteBuffer.wrap(corr).getLong());
+          if (p == null) {
+            System.err.println("[GC] Respuesta de préstamo tardía descartada");
+          } else {
+            replyLoan(front, p, loanRes);
+          }
+        }
 
-        System.out.printf("[PS] -> [GC]: %s %s %s %s%n",
-            msg.type(), msg.branchId(), msg.userId(), msg.bookCode());
+        // Solicitudes del PS: [envelope...][vacío][Message]
+        if (poller.pollin(frontIdx)) {
+          List<byte[]> envelope = recvEnvelope(front);
+          Message msg;
+          try {
+            msg = Wire.recvMessage(front); // recibir petición del PS
+          } catch (RuntimeException e) {
+            System.err.println("[GC] Solicitud invalida: " + e.getMessage());
+            reply(front, envelope, "Solicitud invalida: " + e.getMessage());
+            continue;
+          }
 
-        switch (msg.type()) {
-          case "DEVOLUCION":
-            // Responder rápido al PS y publicar para ReturnActor
-            rep.send("Se ha recibido su solicitud de DEVOLUCION para el libro " + msg.bookCode());
-            pub.sendMore("DEVOLUCION");
-            pub.send(msg.serialize());
-            break;
+          System.out.printf("[PS] -> [GC]: %s %s %s %s%n",
+              msg.type(), msg.branchId(), msg.userId(), msg.bookCode());
 
-          case "RENOVACION":
-            // Responder rápido al PS y publicar para RenewalActor
-            rep.send("Se ha recibido su solicitud de RENOVACION para el libro " + msg.bookCode());
-            pub.sendMore("RENOVACION");
-            pub.send(msg.serialize());
-            break;
+          if (msg.expired()) {
+            reply(front, envelope, expired(msg));
+            continue;
+          }
 
-          case "PRESTAMO":
-            // Canal síncrono: bloquear hasta obtener respuesta del LoanActor
-            req.send(msg.serialize());
-            String loanResStr = req.recvStr();
-            StorageResult loanRes = StorageResult.parse(loanResStr);
+          switch (msg.type()) {
+            case "DEVOLUCION":
+              // Responder rápido al PS y publicar para ReturnActor
+              reply(front, envelope, "Se ha recibido su solicitud de DEVOLUCION para el libro " + msg.bookCode());
+              pub.sendMore("DEVOLUCION");
+              Wire.send(pub, accepted(msg));
+              break;
+
+            case "RENOVACION":
+              // Responder rápido al PS y publicar para RenewalActor
+              reply(front, envelope, "Se ha recibido su solicitud de RENOVACION para el libro " + msg.bookCode());
+              pub.sendMore("RENOVACION");
+              Wire.send(pub, accepted(msg));
+              break;
+
+            case "PRESTAMO":
+              // Enviar al LoanActor con id de correlación y seguir atendiendo al PS;
+              // se espera hasta gc.loan.timeout.ms o hasta el plazo del PS, lo que llegue
+              // antes, y el préstamo viaja con ese corte como plazo
+              long corrId = nextCorrelationId++;
+              long waitLoanMs = Math.min(loanTimeoutMs, msg.remainingMs());
+              PendingLoan loanReq = new PendingLoan(corrId, envelope, msg, System.nanoTime() + waitLoanMs * 1_000_000L);
+              pending.put(corrId, loanReq);
+              expiries.add(loanReq);
+              loan.sendMore(ByteBuffer.allocate(Long.BYTES).putLong(corrId).array());
+              loan.sendMore(new byte[0]);
+              Wire.send(loan, withWaitCutoff(msg, waitLoanMs));
+              break;
+
+            default:
+              // Tipo desconocido
+              reply(front, envelope, "Tipo de operación no soportado por GC: " + msg.type());
+          }
+        }
 
-            if (loanRes.ok()) {
-              rep.send("Préstamo concedido para el libro " + msg.bookCode() + ": " + loanRes.message());
-              AuditLogger.log("GC", "PRESTAMO_OK",
-                  String.format("branch=%s user=%s book=%s", msg.branchId(), msg.userId(), msg.bookCode()),
-                  "OK");
-            } else {
-              rep.send("No se pudo realizar el préstamo de " + msg.bookCode() + ": " + loanRes.message());
-              AuditLogger.log("GC", "PRESTAMO_FAIL",
-                  String.format("branch=%s user=%s book=%s error=%s", msg.branchId(), msg.userId(), msg.bookCode(),
-                      loanRes.message()),
-                  "FAIL");
-            }
-            break;
+        // Préstamos vencidos: responder con error al PS
+        long now = System.nanoTime();
+        while (!expiries.isEmpty() && expiries.peek().deadlineNs() <= now) {
+          PendingLoan p = expiries.poll();
+          if (pending.remove(p.corrId()) == null) {
+            continue; // ya respondido
+          }
+          if (p.msg().expired()) {
+            reply(front, p.envelope(), expired(p.msg()));
+          } else {
+            reply(front, p.envelope(), loanUnknown(p.msg()));
+          }
+        }
+      }
+    }
+  }
 
-          default:
-            // Tipo desconocido
-            rep.send("Tipo de operación no soportado por GC: " + msg.type());
+  // Préstamo en vuelo: a quién responder, qué se pidió y hasta cuándo esperar
+  private record PendingLoan(long corrId, List<byte[]> envelope, Message msg, long deadlineNs) {
+  }
+
+  private static void replyLoan(ZMQ.Socket front, PendingLoan p, StorageResult loanRes) {
+    // Responde al PS dueño del préstamo y registra auditoría
+    Message msg = p.msg();
+    if (loanRes.ok()) {
+      reply(front, p.envelope(), "Préstamo concedido para el libro " + msg.bookCode() + ": " + loanRes.message());
+      AuditLogger.log("GC", "PRESTAMO_OK",
+          String.format("branch=%s user=%s book=%s", msg.branchId(), msg.userId(), msg.bookCode()),
+          "OK");
+    } else {
+      reply(front, p.envelope(), "No se pudo realizar el préstamo de " + msg.bookCode() + ": " + loanRes.message());
+      AuditLogger.log("GC", "PRESTAMO_FAIL",
+          String.format("branch=%s user=%s book=%s error=%s", msg.branchId(), msg.userId(), msg.bookCode(),
+              loanRes.message()),
+          "FAIL");
+    }
+  }
+
+  private static Message withWaitCutoff(Message msg, long waitMs) {
+    // Préstamo hacia el LoanActor con plazo = cuándo deja de esperarlo el GC (sin
+    // pasar el del PS): LoanActor y GA lo descartan si ya nadie espera la respuesta
+    long cutoff = System.currentTimeMillis() + waitMs;
+    return msg.withDeadline(msg.deadline() > 0 ? Math.min(msg.deadline(), cutoff) : cutoff);
+  }
+
+  private static String loanUnknown(Message msg) {
+    // El GC dejó de esperar: el GA pudo confirmarlo justo antes del corte, así que
+    // no es un fallo seguro (un reintento con el mismo request_id lo aclara)
+    AuditLogger.log("GC", "PRESTAMO_UNKNOWN",
+        String.format("branch=%s user=%s book=%s error=%s", msg.branchId(), msg.userId(), msg.bookCode(),
+            "Tiempo de espera agotado con LoanActor"),
+        "UNKNOWN");
+    return "Resultado desconocido del préstamo de " + msg.bookCode()
+        + ": tiempo de espera agotado con LoanActor; reintente con la misma solicitud para confirmarlo";
+  }
+
+  private static void skipRest(ZMQ.Socket socket) {
+    while (socket.hasReceiveMore()) {
+      socket.recv(0);
+    }
+  }
+
+  private static String expired(Message msg) {
+    // Cuenta el descarte y arma la respuesta para el PS
+    Deadlines.drop("GC", msg);
+    return "Solicitud de " + msg.type() + " descartada para el libro " + msg.bookCode() + ": " + Deadlines.EXPIRED;
+  }
+
+  private static Message accepted(Message msg) {
+    // Devolución/renovación ya confirmada al PS: el actor debe aplicarla aunque
+    // pase el plazo, así que se publica sin él
+    return msg.withDeadline(0);
+  }
+
+  private static List<byte[]> recvEnvelope(ZMQ.Socket router) {
+    // Lee los frames de ruteo hasta el delimitador vacío (identidad del PS, etc.)
+    List<byte[]> envelope = new ArrayList<>(2);
+    while (true) {
+      byte[] frame = router.recv(0);
+      if (frame == null || frame.length == 0) {
+        return envelope;
+      }
+      envelope.add(frame);
+    }
+  }
+
+  private static void reply(ZMQ.Socket router, List<byte[]> envelope, String text) {
+    // Responde por ROUTER repitiendo el envelope recibido
+    for (byte[] frame : envelope) {
+      router.sendMore(frame);
+    }
+    router.sendMore(new byte[0]);
+    router.send(text);
+  }
+
+  private static void runRouter() {
+    // Modo concurrente: ROUTER al frente y un pool de workers, cada uno con su
+    // propio canal al LoanActor. Un PRESTAMO lento ya no bloquea al resto.
+    String repConnectPS = System.getProperty("gc.rep", AppConfig.get("gc.rep", "tcp://127.0.0.1:5555"));
+    String pubConnect = System.getProperty("gc.pub", AppConfig.get("gc.pub", "tcp://127.0.0.1:5556"));
+    String reqConnectAc = System.getProperty("actor.loan.req", AppConfig.get("actor.loan.req", "tcp://127.0.0.1:5557"));
+    int workers = Integer.parseInt(System.getProperty("gc.workers", AppConfig.get("gc.workers", "8")));
+    int loanTimeoutMs = Integer.parseInt(
+        System.getProperty("gc.loan.timeout.ms", AppConfig.get("gc.loan.timeout.ms", "5000")));
+
+    try (ZMQ.Context ctx = ZMQ.context(1);
+        ZMQ.Socket frontend = ctx.socket(SocketType.ROUTER); // recibe solicitudes PS
+        ZMQ.Socket backend = ctx.socket(SocketType.DEALER); // reparte a los workers
+        ZMQ.Socket pubIn = ctx.socket(SocketType.PULL); // recoge publicaciones de los workers
+        ZMQ.Socket pub = ctx.socket(SocketType.PUB)) { // publica a actores asíncronos
+
+      frontend.bind(repConnectPS);
+      backend.bind(WORKERS_INPROC);
+      pubIn.bind(PUB_INPROC);
+      pub.bind(pubConnect);
+
+      // PUB no es thread-safe: un solo hilo reenvía lo que publican los workers
+      Thread forwarder = new Thread(() -> ZMQ.proxy(pubIn, pub, null), "gc-pub-forwarder");
+      forwarder.setDaemon(true);
+      forwarder.start();
+
+      for (int i = 0; i < workers; i++) {
+        Thread t = new Thread(() -> runWorker(ctx, reqConnectAc, loanTimeoutMs), "gc-worker-" + i);
+        t.setDaemon(true);
+        t.start();
+      }
+
+      System.out.printf("[GC] modo router: [PS] %s, [PUB] %s, [LoanActor] %s, workers=%d%n",
+          repConnectPS, pubConnect, reqConnectAc, workers);
+      System.out.println();
+
+      // El envelope ROUTER/DEALER conserva la identidad del PS en la respuesta
+      ZMQ.proxy(frontend, backend, null);
+    }
+  }
+
+  private static void runWorker(ZMQ.Context ctx, String reqConnectAc, int loanTimeoutMs) {
+    // Worker: REP sobre el DEALER interno, PUSH hacia el PUB y REQ propio al LoanActor
+    ZMQ.Socket req = null;
+    try (ZMQ.Socket rep = ctx.socket(SocketType.REP);
+        ZMQ.Socket push = ctx.socket(SocketType.PUSH)) {
+
+      rep.connect(WORKERS_INPROC);
+      push.connect(PUB_INPROC);
+      req = ctx.socket(SocketType.REQ);
+      req.connect(reqConnectAc);
+
+      while (!Thread.currentThread().isInterrupted()) {
+        Message msg = Wire.recvMessage(rep);
+        if (msg == null) {
+          break; // contexto cerrado
         }
+        if (!handleAsync(msg, rep, push, req, loanTimeoutMs)) {
+          // El REQ quedó esperando una respuesta que no llegó a tiempo: se recrea
+          req.close();
+          req = ctx.socket(SocketType.REQ);
+          req.connect(reqConnectAc);
+        }
+      }
+    } catch (ZMQException e) {
+      // El contexto se cerró: terminar el worker
+    } finally {
+      if (req != null) {
+        req.close();
       }
     }
   }
 
+  private static boolean handleAsync(Message msg, ZMQ.Socket rep, ZMQ.Socket pub, ZMQ.Socket req,
+      int loanTimeoutMs) {
+    // Atiende una solicitud del PS en modo asíncrono y responde por rep. Devuelve
+    // false si el REQ al LoanActor quedó inutilizable (venció la espera)
+    System.out.printf("[PS] -> [GC]: %s %s %s %s%n",
+        msg.type(), msg.branchId(), msg.userId(), msg.bookCode());
+
+    if (msg.expired()) {
+      rep.send(expired(msg));
+      return true;
+    }
+
+    switch (msg.type()) {
+      case "DEVOLUCION":
+        // Responder rápido al PS y publicar para ReturnActor
+        rep.send("Se ha recibido su solicitud de DEVOLUCION para el libro " + msg.bookCode());
+        pub.sendMore("DEVOLUCION");
+        Wire.send(pub, accepted(msg));
+        break;
+
+      case "RENOVACION":
+        // Responder rápido al PS y publicar para RenewalActor
+        rep.send("Se ha recibido su solicitud de RENOVACION para el libro " + msg.bookCode());
+        pub.sendMore("RENOVACION");
+        Wire.send(pub, accepted(msg));
+        break;
+
+      case "PRESTAMO":
+        // Canal síncrono: esperar al LoanActor hasta gc.loan.timeout.ms o hasta el
+        // plazo del PS, lo que llegue antes (sin plazo, igual hay límite); el préstamo
+        // viaja con ese corte como plazo para que nadie lo aplique después
+        int waitLoanMs = Deadlines.timeoutMs(msg, loanTimeoutMs);
+        req.setReceiveTimeOut(waitLoanMs);
+        Wire.send(req, withWaitCutoff(msg, waitLoanMs));
+        StorageResult loanRes = Wire.recvResult(req);
+        if (loanRes == null) {
+          rep.send(msg.expired() ? expired(msg) : loanUnknown(msg));
+          return false;
+        }
+
+        if (loanRes.ok()) {
+          rep.send("Préstamo concedido para el libro " + msg.bookCode() + ": " + loanRes.message());
+          AuditLogger.log("GC", "PRESTAMO_OK",
+              String.format("branch=%s user=%s book=%s", msg.branchId(), msg.userId(), msg.bookCode()),
+              "OK");
+        } else {
+          rep.send("No se pudo realizar el préstamo de " + msg.bookCode() + ": " + loanRes.message());
+          AuditLogger.log("GC", "PRESTAMO_FAIL",
+              String.format("branch=%s user=%s book=%s error=%s", msg.branchId(), msg.userId(), msg.bookCode(),
+                  loanRes.message()),
+              "FAIL");
+        }
+        break;
+
+      default:
+        // Tipo desconocido
+        rep.send("Tipo de operación no soportado por GC: " + msg.type());
+    }
+    return true;
+  }
+
   private static void runSync() {
     // Endpoints para modo totalmente síncrono
     String repConnectPS = System.getProperty("gc.rep", AppConfig.get("gc.rep", "tcp://127.0.0.1:5555"));
@@ -125,21 +426,24 @@ public class LoadManager {
 
       // Bucle principal modo sync
       while (true) {
-        String reqString = rep.recvStr();
-        Message msg = Message.parse(reqString);
+        Message msg = Wire.recvMessage(rep);
 
         System.out.printf("[PS] -> [GC]: %s %s %s %s%n",
             msg.type(), msg.branchId(), msg.userId(), msg.bookCode());
 
+        if (msg.expired()) {
+          rep.send(expired(msg));
+          continue;
+        }
+
         switch (msg.type()) {
 
           case "PRESTAMO":
             // Enviar al LoanActor
-            loanReq.send(msg.serialize());
-            String loanResStr = loanReq.recvStr();
-            StorageResult loanRes = StorageResult.parse(loanResStr);
+            Wire.send(loanReq, msg);
+            StorageResult loanRes = Wire.recvResult(loanReq);
 
-            System.out.printf("[GC] -> [LoanActor]: %s%n", loanResStr);
+            System.out.printf("[GC] -> [LoanActor]: %s (%s)%n", loanRes.ok() ? "OK" : "ERROR", loanRes.message());
 
             if (loanRes.ok()) {
               rep.send("Préstamo concedido para el libro " + msg.bookCode() + ": " + loanRes.message());
@@ -157,11 +461,10 @@ public class LoadManager {
 
           case "DEVOLUCION": {
             // Envío síncrono al ReturnActor
-            returnReq.send(msg.serialize());
-            String rawRes = returnReq.recvStr();
-            StorageResult resMsg = StorageResult.parse(rawRes);
+            Wire.send(returnReq, msg);
+            StorageResult resMsg = Wire.recvResult(returnReq);
 
-            System.out.printf("[GC] -> [ReturnActor]: %s%n", rawRes);
+            System.out.printf("[GC] -> [ReturnActor]: %s (%s)%n", resMsg.ok() ? "OK" : "ERROR", resMsg.message());
 
             if (resMsg.ok()) {
               rep.send("Devolucion concedido para el libro " + msg.bookCode() + ": " + resMsg.message());
@@ -180,11 +483,10 @@ public class LoadManager {
 
           case "RENOVACION": {
             // Envío síncrono al RenewalActor
-            renewalReq.send(msg.serialize());
-            String rawRes = renewalReq.recvStr();
-            StorageResult resMsg = StorageResult.parse(rawRes);
+            Wire.send(renewalReq, msg);
+            StorageResult resMsg = Wire.recvResult(renewalReq);
 
-            System.out.printf("[GC] -> [RenewalActor]: %s%n", rawRes);
+            System.out.printf("[GC] -> [RenewalActor]: %s (%s)%n", resMsg.ok() ? "OK" : "ERROR", resMsg.message());
 
             if (resMsg.ok()) {
               rep.send("Renovacion concedido para el libro " + msg.bookCode() + ": " + resMsg.message());
@@ -1,8 +1,11 @@
 package edu.javeriana.biblioteca.processes;
 
 import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.messaging.Deadlines;
+import edu.javeriana.biblioteca.messaging.EndpointHealth;
 import edu.javeriana.biblioteca.messaging.Message;
 import edu.javeriana.biblioteca.messaging.StorageResult;
+import edu.javeriana.biblioteca.messaging.Wire;
 
 import org.zeromq.ZMQ;
 import org.zeromq.SocketType;
@@ -22,11 +25,12 @@ public class LoanActor {
 		String[] gaEndpoints = gaEndpointsConf.split(",");
 
 		int gaSendTimeout = 2000; // timeout envío al GA
-		int gaRecvTimeout = 2000; // timeout recepción del GA
+		int gaRecvTimeout = 2000; // timeout recepción del GA (recortado al plazo del mensaje)
 		int gaIndex = 0; // índice del GA actual
 
 		try (ZMQ.Context ctx = ZMQ.context(1);
-				ZMQ.Socket gcRep = ctx.socket(SocketType.REP)) {
+				ZMQ.Socket gcRep = ctx.socket(SocketType.REP);
+				EndpointHealth health = new EndpointHealth("LoanActor", "GA", gaEndpoints)) {
 
 			// Escuchar solicitudes REQ desde el GC
 			gcRep.bind(repConnect);
@@ -42,61 +46,87 @@ public class LoanActor {
 
 			while (true) {
 				// Recibir comando desde GC
-				String rawCmd = gcRep.recvStr();
-				Message cmd = Message.parse(rawCmd);
+				Message cmd = Wire.recvMessage(gcRep);
 
 				System.out.printf("[GC] -> [LoanActor] -> [GA]: %s %s %s %s%n",
 						cmd.type(), cmd.branchId(), cmd.userId(), cmd.bookCode());
 
+				// Vencida en la cola o en camino: el PS ya no espera la respuesta
+				if (cmd.expired()) {
+					Deadlines.drop("LoanActor", cmd);
+					Wire.send(gcRep, new StorageResult(false, Deadlines.EXPIRED));
+					continue;
+				}
+
 				StorageResult result = null;
 				boolean sent = false;
 				int attempts = 0;
 
 				// Intentar mandar la solicitud al GA con failover entre múltiples nodos
-				while (!sent && attempts < gaEndpoints.length) {
+				while (!sent && attempts < gaEndpoints.length && !cmd.expired()) {
+					// Si el GA actual no responde a los heartbeats y hay otro vivo, cambiar antes de enviar
+					int healthy = health.choose(gaIndex);
+					if (healthy != gaIndex) {
+						health.leaving(gaIndex, System.nanoTime());
+						gaIndex = healthy;
+						gaReq.close();
+						gaReq = ctx.socket(SocketType.REQ);
+						gaReq.setSendTimeOut(gaSendTimeout);
+						gaReq.setReceiveTimeOut(gaRecvTimeout);
+						gaReq.connect(gaEndpoints[gaIndex].trim());
+					}
+					long attemptNs = System.nanoTime();
 					try {
-						gaReq.send(cmd.serialize());
-						String rawRes = gaReq.recvStr();
-						if (rawRes == null) {
+						gaReq.setReceiveTimeOut(Deadlines.timeoutMs(cmd, gaRecvTimeout));
+						Wire.send(gaReq, cmd);
+						// La espera se corta antes del timeout si el GA se cae y hay otro vivo
+						result = health.await(gaReq, gaIndex, Deadlines.timeoutMs(cmd, gaRecvTimeout))
+								? Wire.recvResult(gaReq)
+								: null;
+						if (result == null) {
 							throw new RuntimeException("Timeout al recibir respuesta de GA");
 						}
-
-						result = StorageResult.parse(rawRes);
 						System.out.printf("[GA] -> [LoanActor]: %s (%s)%n",
 								result.ok() ? "OK" : "ERROR", result.message());
 						System.out.println();
 
+						health.answered(gaIndex);
 						sent = true; // solicitud exitosa
 					} catch (Exception e) {
 						System.err.println(
 								"[LoanActor] Error con GA " + gaEndpoints[gaIndex].trim() + ": " + e.getMessage());
 
+						// Cambiar al siguiente GA (si queda alguno)
+						health.leaving(gaIndex, attemptNs);
 						attempts++;
-						if (attempts >= gaEndpoints.length) {
-							break; // no quedan GA disponibles
+						if (attempts < gaEndpoints.length) {
+							gaIndex = health.next(gaIndex);
 						}
 
-						// Cambiar al siguiente GA
-						gaIndex = (gaIndex + 1) % gaEndpoints.length;
-
-						// Recrear socket REQ para el nuevo GA
+						// Recrear socket REQ: el anterior quedó esperando respuesta
 						gaReq.close();
 						gaReq = ctx.socket(SocketType.REQ);
 						gaReq.setSendTimeOut(gaSendTimeout);
 						gaReq.setReceiveTimeOut(gaRecvTimeout);
 						gaReq.connect(gaEndpoints[gaIndex].trim());
-						System.out.printf("[LoanActor] Reintentando con GA: %s%n", gaEndpoints[gaIndex].trim());
+						if (attempts < gaEndpoints.length && !cmd.expired()) {
+							System.out.printf("[LoanActor] Reintentando con GA: %s%n", gaEndpoints[gaIndex].trim());
+						}
 					}
 				}
 
-				// Si no se pudo conectar a ningún GA
-				if (!sent) {
+				if (!sent && cmd.expired()) {
+					// Se acabó el plazo esperando al GA
+					Deadlines.drop("LoanActor", cmd);
+					result = new StorageResult(false, Deadlines.EXPIRED);
+				} else if (!sent) {
+					// Si no se pudo conectar a ningún GA
 					result = new StorageResult(false, "No se pudo conectar con ningún Gestor de Almacenamiento");
 					System.err.println("[LoanActor] " + result.message());
 				}
 
 				// Responder al GC con resultado
-				gcRep.send(result.serialize());
+				Wire.send(gcRep, result);
 			}
 		}
 	}
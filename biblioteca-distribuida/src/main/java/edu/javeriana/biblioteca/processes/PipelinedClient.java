@@ -0,0 +1,303 @@
+package edu.javeriana.biblioteca.processes;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.common.Backoff;
+import edu.javeriana.biblioteca.common.Histogram;
+import edu.javeriana.biblioteca.messaging.Deadlines;
+import edu.javeriana.biblioteca.messaging.EndpointHealth;
+import edu.javeriana.biblioteca.messaging.Message;
+import edu.javeriana.biblioteca.messaging.Wire;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Modo ventana del PS (args: "archivo.csv pipeline"): hasta ps.pipeline.window
+ * solicitudes en vuelo sobre un DEALER, en vez de una por RTT con REQ.
+ *
+ * Cada solicitud viaja como [id de correlación][vacío][Message]. El GC (ROUTER
+ * en modos async y router, REP en sync) toma el id como parte del envelope y
+ * lo repite en la respuesta, así que no necesita cambios; en modo sync atiende
+ * de a una, pero las siguientes ya esperan en su cola.
+ *
+ * Cada solicitud tiene su timeout (ps.rcv.timeout.ms recortado al plazo). Si
+ * alguna vence se pasa al siguiente GC de ps.gc.endpoints y se reenvían solo
+ * las que siguen sin respuesta, con el mismo request_id (el GA no repite las
+ * que ya aplicó). Tras una vuelta entera por los GC sin respuesta se espera
+ * con backoff, como en el modo de a una. Si el GC deja de responder a los
+ * heartbeats (EndpointHealth) y hay otro vivo, el cambio se hace en ese
+ * momento, sin esperar el timeout.
+ */
+public class PipelinedClient {
+
+	/** Solicitud enviada y aún sin respuesta */
+	private static final class InFlight {
+		final long corrId;
+		final Message msg;
+		final long recordOffset; // inicio de su línea en el archivo
+		final long firstSentNs;
+		long sentNs; // último envío
+		long timeoutNs;
+
+		InFlight(long corrId, Message msg, long recordOffset) {
+			this.corrId = corrId;
+			this.msg = msg;
+			this.recordOffset = recordOffset;
+			this.firstSentNs = System.nanoTime();
+		}
+	}
+
+	private final String[] endpoints;
+	private final int sndTimeout;
+	private final int rcvTimeout;
+	private final long deadlineMs;
+	private final Backoff backoff;
+	private final int window;
+
+	// En orden de archivo (el id de correlación no cambia al reenviar): la
+	// primera es el punto de reanudación
+	private final Map<Long, InFlight> inFlight = new LinkedHashMap<>();
+	private final Histogram latency = new Histogram("µs");
+	private ZMQ.Socket dealer;
+	private ZMQ.Poller poller;
+	private long nextCorrId = 1;
+	private long sent;
+	private long resent;
+	private long acked;
+	private long late; // respuestas de solicitudes ya respondidas o abandonadas
+	private long abandoned;
+	private long failovers;
+
+	public PipelinedClient(String[] endpoints, int sndTimeout, int rcvTimeout, long deadlineMs, Backoff backoff) {
+		this.endpoints = endpoints;
+		this.sndTimeout = sndTimeout;
+		this.rcvTimeout = rcvTimeout;
+		this.deadlineMs = deadlineMs;
+		this.backoff = backoff;
+		this.window = Math.max(1, Integer.parseInt(System.getProperty("ps.pipeline.window",
+				AppConfig.get("ps.pipeline.window", "32"))));
+	}
+
+	/** Envía todo el archivo; checkpoint puede ser null */
+	public void run(RequestFileReader reader, RequestFileReader.Checkpoint checkpoint, String psId)
+			throws IOException {
+		int gcIndex = 0;
+		int silentEndpoints = 0; // GC seguidos que no respondieron a tiempo
+		int rounds = 0;
+		long saved = -1;
+		boolean exhausted = false;
+		// Llaves y cifrado se inicializan antes del primer envío: el arranque no
+		// debe vencer el timeout de la primera ventana
+		Message.prestar("S0", "warmup", "BK-0000").serialize();
+		long t0 = System.nanoTime();
+
+		try (ZMQ.Context ctx = ZMQ.context(1);
+				EndpointHealth health = new EndpointHealth("PS", "GC", endpoints)) {
+			try {
+				connect(ctx, endpoints[gcIndex].trim());
+				System.out.printf("[PS] se conectó a [GC]: %s (ventana de %d solicitudes)%n", endpoints[gcIndex].trim(),
+						window);
+				System.out.println();
+
+				while (!exhausted || !inFlight.isEmpty()) {
+					// Llenar la ventana con las siguientes líneas del archivo
+					while (!exhausted && inFlight.size() < window) {
+						Message msg = reader.next();
+						if (msg == null) {
+							exhausted = true;
+							break;
+						}
+						msg = msg.withRequestId(psId + "-" + reader.recordOffset());
+						if (deadlineMs > 0) {
+							msg = msg.withDeadline(System.currentTimeMillis() + deadlineMs);
+						}
+						InFlight f = new InFlight(nextCorrId++, msg, reader.recordOffset());
+						inFlight.put(f.corrId, f);
+						send(f);
+						sent++;
+					}
+					if (inFlight.isEmpty()) {
+						continue;
+					}
+
+					// Esperar respuestas hasta el primer timeout
+					long now = System.nanoTime();
+					long firstTimeout = Long.MAX_VALUE;
+					for (InFlight f : inFlight.values()) {
+						firstTimeout = Math.min(firstTimeout, f.timeoutNs);
+					}
+					if (firstTimeout - now > 0) {
+						// En tramos cortos, para ver a tiempo si el GC deja de estar vivo
+						poller.poll(Math.max(1, Math.min(health.checkMs(),
+								TimeUnit.NANOSECONDS.toMillis(firstTimeout - now))));
+					}
+					if (receive() > 0) {
+						health.answered(gcIndex);
+						silentEndpoints = 0;
+						rounds = 0;
+					}
+
+					// Solicitudes sin respuesta a tiempo: las vencidas se abandonan y,
+					// si queda alguna, se cambia de GC y se reenvían las pendientes
+					now = System.nanoTime();
+					boolean timedOut = false;
+					boolean down = !inFlight.isEmpty() && !health.live(gcIndex) && health.choose(gcIndex) != gcIndex;
+					long affectedNs = now;
+					for (Iterator<InFlight> it = inFlight.values().iterator(); it.hasNext();) {
+						InFlight f = it.next();
+						affectedNs = Math.min(affectedNs, f.sentNs);
+						if (f.timeoutNs - now > 0) {
+							continue;
+						}
+						if (f.msg.expired()) {
+							Deadlines.drop("PS", f.msg);
+							abandoned++;
+							it.remove();
+						} else {
+							timedOut = true;
+						}
+					}
+					if (timedOut || (down && !inFlight.isEmpty())) {
+						health.leaving(gcIndex, affectedNs);
+						silentEndpoints++;
+						if (silentEndpoints >= endpoints.length) {
+							// Vuelta completa sin respuesta: espera exponencial con jitter,
+							// hasta donde alcance el plazo más largo de las pendientes
+							silentEndpoints = 0;
+							rounds++;
+							if (!pause(rounds)) {
+								break;
+							}
+						}
+						gcIndex = health.next(gcIndex);
+						connect(ctx, endpoints[gcIndex].trim());
+						failovers++;
+						System.out.printf("[PS] %s; reenviando %d pendientes a [GC]: %s%n",
+								timedOut ? "Sin respuesta a tiempo" : "GC caído", inFlight.size(),
+								endpoints[gcIndex].trim());
+						for (InFlight f : inFlight.values()) {
+							send(f);
+							resent++;
+						}
+					}
+
+					// Punto de reanudación: la primera línea sin terminar
+					long resumeAt = inFlight.isEmpty() ? reader.offset()
+							: inFlight.values().iterator().next().recordOffset;
+					if (checkpoint != null && resumeAt != saved) {
+						checkpoint.save(psId, resumeAt);
+						saved = resumeAt;
+					}
+				}
+			} finally {
+				// El contexto no termina mientras quede un socket abierto
+				disconnect();
+				System.out.println("[PS] " + health.stats());
+			}
+		} finally {
+			double elapsedS = (System.nanoTime() - t0) / 1e9;
+			System.out.printf("[PS] Ventana: enviadas=%d respondidas=%d reenviadas=%d failovers=%d abandonadas=%d "
+					+ "tardías=%d, %.1f sol/s, latencia %s%n", sent, acked, resent, failovers, abandoned, late,
+					elapsedS > 0 ? acked / elapsedS : 0.0, latency.summary());
+			System.out.println("[PS] " + Deadlines.stats());
+		}
+	}
+
+	private void send(InFlight f) {
+		// [id de correlación][vacío][Message]; si no sale, vence ya y provoca el failover
+		f.sentNs = System.nanoTime();
+		f.timeoutNs = f.sentNs + TimeUnit.MILLISECONDS.toNanos(Deadlines.timeoutMs(f.msg, rcvTimeout));
+		boolean ok = dealer.sendMore(ByteBuffer.allocate(Long.BYTES).putLong(f.corrId).array())
+				&& dealer.sendMore(new byte[0])
+				&& Wire.send(dealer, f.msg);
+		if (!ok) {
+			f.timeoutNs = System.nanoTime();
+		}
+	}
+
+	private int receive() {
+		// Respuestas disponibles: [id de correlación][vacío][texto]
+		int n = 0;
+		byte[] corr;
+		while ((corr = dealer.recv(ZMQ.DONTWAIT)) != null) {
+			if (corr.length != Long.BYTES || !dealer.hasReceiveMore()) {
+				skipRest(dealer);
+				continue;
+			}
+			dealer.recv(0); // delimitador
+			String ack = dealer.recvStr(0);
+			skipRest(dealer);
+			n++;
+
+			InFlight f = inFlight.remove(ByteBuffer.wrap(corr).getLong());
+			if (f == null) {
+				late++;
+				continue;
+			}
+			acked++;
+			latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - f.firstSentNs));
+			System.out.printf("[GC] -> [PS]: %s%n", ack);
+		}
+		return n;
+	}
+
+	private static void skipRest(ZMQ.Socket socket) {
+		while (socket.hasReceiveMore()) {
+			socket.recv(0);
+		}
+	}
+
+	private boolean pause(int round) {
+		// Duerme el backoff de la vuelta; si ya no alcanza el plazo de ninguna
+		// pendiente, se abandonan todas
+		long remainingMs = 0;
+		for (InFlight f : inFlight.values()) {
+			remainingMs = Math.max(remainingMs, f.msg.remainingMs());
+		}
+		try {
+			if (!backoff.sleep(round, remainingMs)) {
+				for (InFlight f : inFlight.values()) {
+					Deadlines.drop("PS", f.msg);
+				}
+				abandoned += inFlight.size();
+				inFlight.clear();
+			}
+			return true;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void connect(ZMQ.Context ctx, String endpoint) {
+		// DEALER nuevo hacia un GC (las respuestas tardías del anterior se pierden
+		// con él); los timeouts los lleva cada solicitud
+		disconnect();
+		dealer = ctx.socket(SocketType.DEALER);
+		dealer.setSendTimeOut(sndTimeout);
+		dealer.setLinger(0);
+		dealer.setRcvHWM(Math.max(1000, window * 2));
+		dealer.setSndHWM(Math.max(1000, window * 2));
+		dealer.connect(endpoint);
+		poller = ctx.poller(1);
+		poller.register(dealer, ZMQ.Poller.POLLIN);
+	}
+
+	private void disconnect() {
+		if (poller != null) {
+			poller.close();
+			poller = null;
+		}
+		if (dealer != null) {
+			dealer.close();
+			dealer = null;
+		}
+	}
+}
@@ -1,9 +1,11 @@
 package edu.javeriana.biblioteca.processes;
 
 import edu.javeriana.biblioteca.common.AppConfig;
-import edu.javeriana.biblioteca.common.AuditLogger;
+import edu.javeriana.biblioteca.messaging.Deadlines;
+import edu.javeriana.biblioteca.messaging.EndpointHealth;
 import edu.javeriana.biblioteca.messaging.Message;
 import edu.javeriana.biblioteca.messaging.StorageResult;
+import edu.javeriana.biblioteca.messaging.Wire;
 
 import org.zeromq.ZMQ;
 import org.zeromq.SocketType;
@@ -37,108 +39,8 @@ public class RenewalActor {
 		String gaEndpointsConf = AppConfig.get("ga.rep.endpoints", "tcp://10.43.97.18:5560");
 		String[] gaEndpoints = gaEndpointsConf.split(",");
 
-		int gaSendTimeout = 2000; // tiempo de envío al GA
-		int gaRecvTimeout = 2000; // tiempo de respuesta del GA
-		int gaIndex = 0; // GA activo
-
-		try (ZMQ.Context ctx = ZMQ.context(1);
-				ZMQ.Socket sub = ctx.socket(SocketType.SUB)) {
-
-			// Conectarse a los endpoints de suscripción
-			sub.connect(subEndpoints[0].trim());
-			if (subEndpoints.length == 2) {
-				sub.connect(subEndpoints[1].trim());
-			}
-
-			// Suscribir al tópico RENOVACION
-			sub.subscribe("RENOVACION".getBytes(ZMQ.CHARSET));
-			System.out.println("[RenewalActor] se suscribio al topic RENOVACION");
-
-			// Crear socket REQ para comunicación con GA
-			ZMQ.Socket gaReq = ctx.socket(SocketType.REQ);
-			gaReq.setSendTimeOut(gaSendTimeout);
-			gaReq.setReceiveTimeOut(gaRecvTimeout);
-			gaReq.connect(gaEndpoints[gaIndex].trim());
-			System.out.printf("[RenewalActor] se conecto a [GA]: %s%n", gaEndpoints[gaIndex].trim());
-			System.out.println();
-
-			while (true) {
-				// Recibir notificación del GC
-				String topic = sub.recvStr();
-				String payload = sub.recvStr();
-
-				Message msg = Message.parse(payload);
-				System.out.printf("[GC] -> [RenewalActor] -> [GA]: %s %s %s %s%n",
-						msg.type(), msg.branchId(), msg.userId(), msg.bookCode());
-
-				// Crear mensaje de almacenamiento
-				Message cmd = new Message("RENOVACION", msg.branchId(), msg.userId(), msg.bookCode());
-
-				boolean sent = false;
-				int attempts = 0;
-				StorageResult res = null;
-
-				// Intentos con failover entre nodos GA
-				while (!sent && attempts < gaEndpoints.length) {
-					try {
-						gaReq.send(cmd.serialize());
-						String rawRes = gaReq.recvStr();
-						if (rawRes == null) {
-							throw new RuntimeException("Timeout al recibir respuesta de GA");
-						}
-
-						res = StorageResult.parse(rawRes);
-
-						// Log según resultado
-						if (res.ok()) {
-							AuditLogger.log("RenewalActor", "RENOVACION_OK",
-									String.format("branch=%s user=%s book=%s",
-											msg.branchId(), msg.userId(), msg.bookCode()),
-									"OK");
-						} else {
-							AuditLogger.log("RenewalActor", "RENOVACION_FAIL",
-									String.format("branch=%s user=%s book=%s error=%s",
-											msg.branchId(), msg.userId(), msg.bookCode(), res.message()),
-									"ERROR");
-						}
-
-						System.out.printf("[GA] -> [RenewalActor]: %s (%s)%n",
-								res.ok() ? "OK" : "ERROR", res.message());
-						System.out.println();
-
-						sent = true;
-
-					} catch (Exception e) {
-						// Error -> cambiar a otro GA
-						System.err.println("[RenewalActor] Error con GA "
-								+ gaEndpoints[gaIndex].trim() + ": " + e.getMessage());
-
-						gaIndex = gaIndex + 1; // avanzar al siguiente GA
-
-						// Recrear socket hacia nuevo GA
-						gaReq.close();
-						gaReq = ctx.socket(SocketType.REQ);
-						gaReq.setSendTimeOut(gaSendTimeout);
-						gaReq.setReceiveTimeOut(gaRecvTimeout);
-						gaReq.connect(gaEndpoints[gaIndex].trim());
-						System.out.printf("[RenewalActor] Reintentando con GA: %s%n", gaEndpoints[gaIndex].trim());
-
-						attempts++;
-					}
-				}
-
-				// Si no fue posible contactar ningún GA
-				if (!sent) {
-					res = new StorageResult(false, "No se pudo conectar con ningún Gestor de Almacenamiento");
-					System.err.println("[RenewalActor] " + res.message());
-
-					AuditLogger.log("RenewalActor", "RENOVACION_FAIL",
-							String.format("branch=%s user=%s book=%s error=%s",
-									msg.branchId(), msg.userId(), msg.bookCode(), res.message()),
-							"ERROR");
-				}
-			}
-		}
+		// Renovaciones agrupadas en lotes hacia el GA
+		new GaBatchForwarder("RenewalActor", "RENOVACION", "ERROR", subEndpoints, gaEndpoints).run();
 	}
 
 	private static void runSync() throws Exception {
@@ -158,7 +60,8 @@ public class RenewalActor {
 		int gaIndex = 0;
 
 		try (ZMQ.Context ctx = ZMQ.context(1);
-				ZMQ.Socket gcRep = ctx.socket(SocketType.REP)) {
+				ZMQ.Socket gcRep = ctx.socket(SocketType.REP);
+				EndpointHealth health = new EndpointHealth("RenewalActor", "GA", gaEndpoints)) {
 
 			// Recibir comandos del GC
 			gcRep.bind(repConnect);
@@ -173,60 +76,87 @@ public class RenewalActor {
 
 			while (true) {
 				// Recibir comando del GC
-				String rawCmd = gcRep.recvStr();
-				Message cmd = Message.parse(rawCmd);
+				Message cmd = Wire.recvMessage(gcRep);
 				System.out.printf("[GC] -> [RenewalActor] -> [GA]: %s %s %s %s%n",
 						cmd.type(), cmd.branchId(), cmd.userId(), cmd.bookCode());
 
+				// Vencida en la cola o en camino: nadie espera la respuesta
+				if (cmd.expired()) {
+					Deadlines.drop("RenewalActor", cmd);
+					Wire.send(gcRep, new StorageResult(false, Deadlines.EXPIRED));
+					continue;
+				}
+
 				StorageResult result = null;
 				boolean sent = false;
 				int attempts = 0;
 
-				// Intentar contactar GA con failover
-				while (!sent && attempts < gaEndpoints.length) {
+				// Intentar contactar GA con failover, dentro del plazo
+				while (!sent && attempts < gaEndpoints.length && !cmd.expired()) {
+					// Si el GA actual no responde a los heartbeats y hay otro vivo, cambiar antes de enviar
+					int healthy = health.choose(gaIndex);
+					if (healthy != gaIndex) {
+						health.leaving(gaIndex, System.nanoTime());
+						gaIndex = healthy;
+						gaReq.close();
+						gaReq = ctx.socket(SocketType.REQ);
+						gaReq.setSendTimeOut(gaSendTimeout);
+						gaReq.setReceiveTimeOut(gaRecvTimeout);
+						gaReq.connect(gaEndpoints[gaIndex].trim());
+					}
+					long attemptNs = System.nanoTime();
 					try {
-						gaReq.send(cmd.serialize());
-						String rawRes = gaReq.recvStr();
-						if (rawRes == null) {
+						gaReq.setReceiveTimeOut(Deadlines.timeoutMs(cmd, gaRecvTimeout));
+						Wire.send(gaReq, cmd);
+						// La espera se corta antes del timeout si el GA se cae y hay otro vivo
+						result = health.await(gaReq, gaIndex, Deadlines.timeoutMs(cmd, gaRecvTimeout))
+								? Wire.recvResult(gaReq)
+								: null;
+						if (result == null) {
 							throw new RuntimeException("Timeout esperando GA");
 						}
-
-						result = StorageResult.parse(rawRes);
 						System.out.printf("[GA] -> [RenewalActor]: %s (%s)%n",
 								result.ok() ? "OK" : "ERROR", result.message());
 
+						health.answered(gaIndex);
 						sent = true;
 
 					} catch (Exception e) {
 						System.err.printf("[RenewalActor] Error con GA %s: %s%n",
 								gaEndpoints[gaIndex], e.getMessage());
 
+						// Cambiar GA (si queda alguno)
+						health.leaving(gaIndex, attemptNs);
 						attempts++;
-						if (attempts >= gaEndpoints.length) {
-							break;
+						if (attempts < gaEndpoints.length) {
+							gaIndex = health.next(gaIndex);
 						}
 
-						// Cambiar GA
-						gaIndex = (gaIndex + 1) % gaEndpoints.length;
-
+						// El REQ quedó esperando respuesta: se recrea
 						gaReq.close();
 						gaReq = ctx.socket(SocketType.REQ);
 						gaReq.setSendTimeOut(gaSendTimeout);
 						gaReq.setReceiveTimeOut(gaRecvTimeout);
 						gaReq.connect(gaEndpoints[gaIndex].trim());
-						System.out.printf("[RenewalActor] Reintentando con GA %s%n",
-								gaEndpoints[gaIndex]);
+						if (attempts < gaEndpoints.length && !cmd.expired()) {
+							System.out.printf("[RenewalActor] Reintentando con GA %s%n",
+									gaEndpoints[gaIndex]);
+						}
 					}
 				}
 
-				// Fallo total
-				if (!sent) {
+				if (!sent && cmd.expired()) {
+					// Se acabó el plazo esperando al GA
+					Deadlines.drop("RenewalActor", cmd);
+					result = new StorageResult(false, Deadlines.EXPIRED);
+				} else if (!sent) {
+					// Fallo total
 					result = new StorageResult(false, "No se pudo contactar ningún GA");
 					System.err.println("[RenewalActor] " + result.message());
 				}
 
 				// Responder al GC
-				gcRep.send(result.serialize());
+				Wire.send(gcRep, result);
 			}
 		}
 	}
@@ -0,0 +1,298 @@
+package edu.javeriana.biblioteca.processes;
+
+import edu.javeriana.biblioteca.messaging.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Lector de archivos de solicitudes (OPERACION,branchId,userId,bookCode por
+ * línea) que recorre el archivo mapeado en memoria por ventanas, sin cargarlo
+ * entero ni crear un String por línea: los campos se separan sobre los bytes
+ * del mapeo, la operación se reconoce por sus bytes y sedes y libros se
+ * reutilizan desde una tabla pequeña. Solo el usuario (y las líneas
+ * inválidas, para el log) se convierten a String.
+ *
+ * Puede empezar en cualquier desplazamiento de bytes; si cae en medio de una
+ * línea, sigue desde la próxima. offset() es el desplazamiento después de la
+ * última solicitud entregada: guardado en un Checkpoint permite retomar la
+ * reproducción tras reiniciar el PS.
+ */
+public final class RequestFileReader implements LoadGenerator.RequestSource, AutoCloseable {
+
+	private static final long WINDOW = 64L << 20; // bytes mapeados a la vez
+	private static final int INTERN_SLOTS = 4096;
+
+	private static final byte[] PRESTAMO = "PRESTAMO".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] DEVOLUCION = "DEVOLUCION".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] RENOVACION = "RENOVACION".getBytes(StandardCharsets.US_ASCII);
+
+	private final FileChannel channel;
+	private final long size;
+	private MappedByteBuffer window;
+	private long windowStart; // desplazamiento del archivo donde empieza window
+	private long pos; // próximo byte sin leer
+	private long recordOffset = -1; // inicio de la última solicitud entregada
+	private long offset; // fin de la última solicitud entregada
+	private long skipped;
+
+	// Sedes y libros se repiten mucho: un String por valor distinto
+	private final byte[][] internKeys = new byte[INTERN_SLOTS][];
+	private final String[] internValues = new String[INTERN_SLOTS];
+	private byte[] scratch = new byte[256];
+
+	public RequestFileReader(Path file, long startOffset) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		this.size = channel.size();
+		this.pos = Math.max(0, Math.min(startOffset, size));
+		if (pos > 0 && pos < size && byteAt(pos - 1) != '\n') {
+			// Desplazamiento en medio de una línea: esa línea ya se había empezado
+			while (pos < size && byteAt(pos) != '\n') {
+				pos++;
+			}
+			pos = Math.min(size, pos + 1);
+		}
+		this.offset = pos;
+	}
+
+	/** Desplazamiento de bytes después de la última solicitud entregada */
+	public long offset() {
+		return offset;
+	}
+
+	/** Desplazamiento donde empieza la última solicitud entregada */
+	public long recordOffset() {
+		return recordOffset;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/** Líneas no vacías que no son solicitudes válidas */
+	public long skipped() {
+		return skipped;
+	}
+
+	/** Vuelve al principio del archivo */
+	public void rewind() {
+		pos = 0;
+		offset = 0;
+		recordOffset = -1;
+	}
+
+	@Override
+	public Message next() {
+		while (pos < size) {
+			long start = pos;
+			long end = start;
+			while (end < size && byteAt(end) != '\n') {
+				end++;
+			}
+			pos = Math.min(size, end + 1);
+			Message m = parse(start, end);
+			if (m != null) {
+				recordOffset = start;
+				offset = pos;
+				return m;
+			}
+		}
+		offset = pos;
+		return null;
+	}
+
+	private byte byteAt(long p) {
+		if (window == null || p < windowStart || p >= windowStart + window.limit()) {
+			map(p);
+		}
+		return window.get((int) (p - windowStart));
+	}
+
+	private void map(long p) {
+		// La ventana empieza en p (nunca más de WINDOW bytes: cabe en un int)
+		try {
+			window = channel.map(FileChannel.MapMode.READ_ONLY, p, Math.min(WINDOW, size - p));
+			windowStart = p;
+		} catch (IOException e) {
+			throw new IllegalStateException("No se pudo mapear el archivo en " + p + ": " + e.getMessage(), e);
+		}
+	}
+
+	private Message parse(long start, long end) {
+		// Recortar espacios y \r; las vacías y los comentarios no cuentan
+		long s = start;
+		long e = end;
+		while (s < e && isSpace(byteAt(s))) {
+			s++;
+		}
+		while (e > s && isSpace(byteAt(e - 1))) {
+			e--;
+		}
+		if (s == e || byteAt(s) == '#') {
+			return null;
+		}
+
+		// Los tres primeros separadores; el cuarto campo se lleva el resto (como split(",", 4))
+		long[] cut = new long[3];
+		int found = 0;
+		for (long p = s; p < e && found < 3; p++) {
+			if (byteAt(p) == ',') {
+				cut[found++] = p;
+			}
+		}
+		if (found < 3) {
+			skip("formato inválido", start, end);
+			return null;
+		}
+
+		long[] bounds = { s, cut[0], cut[0] + 1, cut[1], cut[1] + 1, cut[2], cut[2] + 1, e };
+		for (int f = 0; f < 4; f++) {
+			// Recortar cada campo
+			while (bounds[2 * f] < bounds[2 * f + 1] && isSpace(byteAt(bounds[2 * f]))) {
+				bounds[2 * f]++;
+			}
+			while (bounds[2 * f + 1] > bounds[2 * f] && isSpace(byteAt(bounds[2 * f + 1] - 1))) {
+				bounds[2 * f + 1]--;
+			}
+		}
+
+		String branchId = intern(bounds[2], bounds[3]);
+		String userId = string(bounds[4], bounds[5]);
+		String bookCode = intern(bounds[6], bounds[7]);
+		if (matches(bounds[0], bounds[1], PRESTAMO)) {
+			return Message.prestar(branchId, userId, bookCode);
+		}
+		if (matches(bounds[0], bounds[1], DEVOLUCION)) {
+			return Message.devolver(branchId, userId, bookCode);
+		}
+		if (matches(bounds[0], bounds[1], RENOVACION)) {
+			return Message.renovar(branchId, userId, bookCode);
+		}
+		skip("operación desconocida", start, end);
+		return null;
+	}
+
+	private void skip(String reason, long start, long end) {
+		skipped++;
+		System.out.printf("[PS] Línea ignorada (%s): %s%n", reason, string(start, end).trim());
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	private boolean matches(long s, long e, byte[] word) {
+		// Comparación sin distinguir mayúsculas (el CSV puede traer "prestamo")
+		if (e - s != word.length) {
+			return false;
+		}
+		for (int i = 0; i < word.length; i++) {
+			byte b = byteAt(s + i);
+			if (b >= 'a' && b <= 'z') {
+				b -= 'a' - 'A';
+			}
+			if (b != word[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int copy(long s, long e) {
+		int len = (int) (e - s);
+		if (scratch.length < len) {
+			scratch = new byte[Math.max(len, scratch.length * 2)];
+		}
+		for (int i = 0; i < len; i++) {
+			scratch[i] = byteAt(s + i);
+		}
+		return len;
+	}
+
+	private String string(long s, long e) {
+		int len = copy(s, e);
+		return new String(scratch, 0, len, StandardCharsets.UTF_8);
+	}
+
+	private String intern(long s, long e) {
+		int len = copy(s, e);
+		int h = 1;
+		for (int i = 0; i < len; i++) {
+			h = 31 * h + scratch[i];
+		}
+		int slot = h & (INTERN_SLOTS - 1);
+		byte[] key = internKeys[slot];
+		if (key != null && Arrays.equals(key, 0, key.length, scratch, 0, len)) {
+			return internValues[slot];
+		}
+		// Vacío u ocupado por otro valor: el último visto se queda con el lugar
+		String value = new String(scratch, 0, len, StandardCharsets.UTF_8);
+		internKeys[slot] = Arrays.copyOf(scratch, len);
+		internValues[slot] = value;
+		return value;
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+
+	/**
+	 * Punto de reanudación de una reproducción: prefijo de los ids de solicitud
+	 * y desplazamiento de bytes, en una línea de ancho fijo que se sobrescribe en
+	 * el lugar. Sobrevive a la caída del PS (queda en la caché de páginas del SO).
+	 */
+	public static final class Checkpoint implements AutoCloseable {
+
+		/** Lo guardado: prefijo de ids y desplazamiento */
+		public record Saved(String prefix, long offset) {
+		}
+
+		private final FileChannel channel;
+		private final ByteBuffer line = ByteBuffer.allocate(64);
+
+		public Checkpoint(Path file) throws IOException {
+			this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		}
+
+		/** Lo guardado en file, o null si no existe o no se entiende */
+		public static Saved read(Path file) throws IOException {
+			if (!Files.exists(file)) {
+				return null;
+			}
+			String[] p = Files.readString(file, StandardCharsets.US_ASCII).trim().split("\\s+");
+			if (p.length != 2) {
+				return null;
+			}
+			try {
+				return new Saved(p[0], Long.parseLong(p[1]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		public void save(String prefix, long offset) throws IOException {
+			line.clear();
+			line.put(String.format("%s %020d%n", prefix, offset).getBytes(StandardCharsets.US_ASCII));
+			line.flip();
+			int len = line.limit();
+			channel.write(line, 0);
+			if (channel.size() > len) {
+				channel.truncate(len);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -2,8 +2,11 @@ package edu.javeriana.biblioteca.processes;
 
 import edu.javeriana.biblioteca.common.AppConfig;
 import edu.javeriana.biblioteca.common.AuditLogger;
+import edu.javeriana.biblioteca.messaging.Deadlines;
+import edu.javeriana.biblioteca.messaging.EndpointHealth;
 import edu.javeriana.biblioteca.messaging.Message;
 import edu.javeriana.biblioteca.messaging.StorageResult;
+import edu.javeriana.biblioteca.messaging.Wire;
 
 import org.zeromq.ZMQ;
 import org.zeromq.SocketType;
@@ -41,123 +44,8 @@ public class ReturnActor {
         AppConfig.get("ga.rep.endpoints", "tcp://10.43.97.18:5560"));
     String[] gaEndpoints = gaEndpointsConf.split(",");
 
-    int gaSendTimeout = 2000; // timeout envío GA
-    int gaRecvTimeout = 2000; // timeout recepción GA
-    int gaIndex = 0; // índice GA activo
-
-    try (ZMQ.Context ctx = ZMQ.context(1);
-        ZMQ.Socket sub = ctx.socket(SocketType.SUB)) {
-
-      // Conectar a los endpoints de suscripción
-      sub.connect(subEndpoints[0].trim());
-      if (subEndpoints.length == 2) {
-        sub.connect(subEndpoints[1].trim());
-      }
-
-      // Suscribirse al tópico DEVOLUCION
-      sub.subscribe("DEVOLUCION".getBytes(ZMQ.CHARSET));
-      System.out.println("[ReturnActor] se suscribio al topic DEVOLUCION");
-
-      // Crear socket REQ hacia GA
-      ZMQ.Socket gaReq = ctx.socket(SocketType.REQ);
-      gaReq.setSendTimeOut(gaSendTimeout);
-      gaReq.setReceiveTimeOut(gaRecvTimeout);
-      gaReq.connect(gaEndpoints[gaIndex].trim());
-      System.out.printf("[ReturnActor] se conecto a [GA]: %s%n", gaEndpoints[gaIndex].trim());
-      System.out.println();
-
-      while (true) {
-        // Recibir mensaje de devolución desde el GC
-        String topic = sub.recvStr();
-        String payload = sub.recvStr();
-        Message msg = Message.parse(payload);
-
-        System.out.printf("[GC] -> [ReturnActor] -> [GA]: %s %s %s %s%n",
-            msg.type(), msg.branchId(), msg.userId(), msg.bookCode());
-
-        // Construir comando para el GA
-        Message cmd = new Message(
-            "DEVOLUCION",
-            msg.branchId(),
-            msg.userId(),
-            msg.bookCode());
-
-        boolean sent = false;
-        int attempts = 0;
-        StorageResult res = null;
-
-        // Intentar enviar a GA con failover
-        while (!sent && attempts < gaEndpoints.length) {
-          try {
-            gaReq.send(cmd.serialize());
-            String rawRes = gaReq.recvStr();
-            if (rawRes == null) {
-              throw new RuntimeException("Timeout al recibir respuesta de GA");
-            }
-
-            res = StorageResult.parse(rawRes);
-
-            // Registrar auditoría
-            if (res.ok()) {
-              AuditLogger.log(
-                  "ReturnActor",
-                  "DEVOLUCION_OK",
-                  String.format("branch=%s user=%s book=%s",
-                      msg.branchId(), msg.userId(), msg.bookCode()),
-                  "OK");
-            } else {
-              AuditLogger.log(
-                  "ReturnActor",
-                  "DEVOLUCION_FAIL",
-                  String.format("branch=%s user=%s book=%s error=%s",
-                      msg.branchId(), msg.userId(), msg.bookCode(), res.message()),
-                  "FAIL");
-            }
-
-            // Log de consola
-            System.out.printf("[GA] -> [ReturnActor]: %s (%s)%n",
-                res.ok() ? "OK" : "ERROR", res.message());
-            System.out.println();
-
-            sent = true;
-
-          } catch (Exception e) {
-            // Error con el GA actual
-            System.err.println(
-                "[ReturnActor] Error con GA " + gaEndpoints[gaIndex].trim() + ": " + e.getMessage());
-
-            attempts++;
-            if (attempts >= gaEndpoints.length) {
-              break;
-            }
-
-            // Pasar al siguiente GA disponible
-            gaIndex = (gaIndex + 1) % gaEndpoints.length;
-
-            // Recrear socket para conectar al nuevo GA
-            gaReq.close();
-            gaReq = ctx.socket(SocketType.REQ);
-            gaReq.setSendTimeOut(gaSendTimeout);
-            gaReq.setReceiveTimeOut(gaRecvTimeout);
-            gaReq.connect(gaEndpoints[gaIndex].trim());
-            System.out.printf("[ReturnActor] Reintentando con GA: %s%n",
-                gaEndpoints[gaIndex].trim());
-          }
-        }
-
-        // Falló con todos los GA
-        if (!sent) {
-          res = new StorageResult(false, "No se pudo conectar con ningún Gestor de Almacenamiento");
-          System.err.println("[ReturnActor] " + res.message());
-          AuditLogger.log(
-              "ReturnActor",
-              "DEVOLUCION_FAIL",
-              String.format("branch=%s user=%s book=%s error=%s",
-                  msg.branchId(), msg.userId(), msg.bookCode(), res.message()),
-              "FAIL");
-        }
-      }
-    }
+    // Devoluciones agrupadas en lotes hacia el GA
+    new GaBatchForwarder("ReturnActor", "DEVOLUCION", "FAIL", subEndpoints, gaEndpoints).run();
   }
 
   private static void runSync() throws Exception {
@@ -177,7 +65,8 @@ public class ReturnActor {
     int gaIndex = 0;
 
     try (ZMQ.Context ctx = ZMQ.context(1);
-        ZMQ.Socket gcRep = ctx.socket(SocketType.REP)) {
+        ZMQ.Socket gcRep = ctx.socket(SocketType.REP);
+        EndpointHealth health = new EndpointHealth("ReturnActor", "GA", gaEndpoints)) {
 
       // Escuchar solicitudes del GC
       gcRep.bind(repConnect);
@@ -193,26 +82,46 @@ public class ReturnActor {
 
       while (true) {
         // Recibir comando desde el GC
-        String rawCmd = gcRep.recvStr();
-        Message cmd = Message.parse(rawCmd);
+        Message cmd = Wire.recvMessage(gcRep);
 
         System.out.printf("[GC] -> [ReturnActor] -> [GA]: %s %s %s %s%n",
             cmd.type(), cmd.branchId(), cmd.userId(), cmd.bookCode());
 
+        // Vencida en la cola o en camino: nadie espera la respuesta
+        if (cmd.expired()) {
+          Deadlines.drop("ReturnActor", cmd);
+          Wire.send(gcRep, new StorageResult(false, Deadlines.EXPIRED));
+          continue;
+        }
+
         StorageResult result = null;
         boolean sent = false;
         int attempts = 0;
 
-        // Intentar contactar GA con failover
-        while (!sent && attempts < gaEndpoints.length) {
+        // Intentar contactar GA con failover, dentro del plazo
+        while (!sent && attempts < gaEndpoints.length && !cmd.expired()) {
+          // Si el GA actual no responde a los heartbeats y hay otro vivo, cambiar antes de enviar
+          int healthy = health.choose(gaIndex);
+          if (healthy != gaIndex) {
+            health.leaving(gaIndex, System.nanoTime());
+            gaIndex = healthy;
+            gaReq.close();
+            gaReq = ctx.socket(SocketType.REQ);
+            gaReq.setSendTimeOut(gaSendTimeout);
+            gaReq.setReceiveTimeOut(gaRecvTimeout);
+            gaReq.connect(gaEndpoints[gaIndex].trim());
+          }
+          long attemptNs = System.nanoTime();
           try {
-            gaReq.send(cmd.serialize());
-            String rawRes = gaReq.recvStr();
-            if (rawRes == null) {
+            gaReq.setReceiveTimeOut(Deadlines.timeoutMs(cmd, gaRecvTimeout));
+            Wire.send(gaReq, cmd);
+            // La espera se corta antes del timeout si el GA se cae y hay otro vivo
+            result = health.await(gaReq, gaIndex, Deadlines.timeoutMs(cmd, gaRecvTimeout))
+                ? Wire.recvResult(gaReq)
+                : null;
+            if (result == null) {
               throw new RuntimeException("Timeout al recibir respuesta de GA");
             }
-
-            result = StorageResult.parse(rawRes);
             System.out.printf("[GA] -> [ReturnActor]: %s (%s)%n",
                 result.ok() ? "OK" : "ERROR", result.message());
             System.out.println();
@@ -225,6 +134,7 @@ public class ReturnActor {
                     cmd.branchId(), cmd.userId(), cmd.bookCode()),
                 result.ok() ? "OK" : "FAIL");
 
+            health.answered(gaIndex);
             sent = true;
 
           } catch (Exception e) {
@@ -232,33 +142,38 @@ public class ReturnActor {
             System.err.printf("[ReturnActor] Error con GA %s: %s%n",
                 gaEndpoints[gaIndex].trim(), e.getMessage());
 
+            // Pasar al siguiente GA (si queda alguno)
+            health.leaving(gaIndex, attemptNs);
             attempts++;
-            if (attempts >= gaEndpoints.length) {
-              break;
+            if (attempts < gaEndpoints.length) {
+              gaIndex = health.next(gaIndex);
             }
 
-            // Pasar al siguiente GA
-            gaIndex = (gaIndex + 1) % gaEndpoints.length;
-
-            // Re-crear socket para el nuevo GA
+            // Re-crear socket: el REQ quedó esperando respuesta
             gaReq.close();
             gaReq = ctx.socket(SocketType.REQ);
             gaReq.setSendTimeOut(gaSendTimeout);
             gaReq.setReceiveTimeOut(gaRecvTimeout);
             gaReq.connect(gaEndpoints[gaIndex].trim());
-            System.out.printf("[ReturnActor] Reintentando con GA: %s%n",
-                gaEndpoints[gaIndex].trim());
+            if (attempts < gaEndpoints.length && !cmd.expired()) {
+              System.out.printf("[ReturnActor] Reintentando con GA: %s%n",
+                  gaEndpoints[gaIndex].trim());
+            }
           }
         }
 
-        // Si falló con todos los GA
-        if (!sent) {
+        if (!sent && cmd.expired()) {
+          // Se acabó el plazo esperando al GA
+          Deadlines.drop("ReturnActor", cmd);
+          result = new StorageResult(false, Deadlines.EXPIRED);
+        } else if (!sent) {
+          // Si falló con todos los GA
           result = new StorageResult(false, "No se pudo conectar con ningún Gestor de Almacenamiento");
           System.err.println("[ReturnActor] " + result.message());
         }
 
         // Responder al GC
-        gcRep.send(result.serialize());
+        Wire.send(gcRep, result);
       }
     }
   }
@@ -1,12 +1,17 @@
 package edu.javeriana.biblioteca.processes;
 
 import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.common.Backoff;
+import edu.javeriana.biblioteca.messaging.Deadlines;
+import edu.javeriana.biblioteca.messaging.EndpointHealth;
 import edu.javeriana.biblioteca.messaging.Message;
+import edu.javeriana.biblioteca.messaging.Wire;
 import org.zeromq.ZMQ;
 import org.zeromq.SocketType;
 
 import java.nio.file.*;
-import java.util.List;
+import java.security.SecureRandom;
+import java.util.HexFormat;
 
 public class SolicitingProcess {
 	public static void main(String[] args) throws Exception {
@@ -15,7 +20,7 @@ public class SolicitingProcess {
 			System.err.println(
 					"Uso: mvn exec:java " +
 							"-Dexec.mainClass=\"edu.javeriana.biblioteca.processes.SolicitingProcess\" " +
-							"-Dexec.args=\"ruta/archivo.csv\"");
+							"-Dexec.args=\"ruta/archivo.csv [load|pipeline]\" (o \"zipf load\")");
 			System.exit(1);
 		}
 
@@ -25,99 +30,153 @@ public class SolicitingProcess {
 				AppConfig.get("ps.gc.endpoints", "tcp://127.0.0.1:5555"));
 		String[] endpoints = endpointsConfig.split(",");
 
-		int sndTimeout = 2000; // timeout envío
-		int rcvTimeout = 2000; // timeout recepción
-		long retryBackoffMs = 2000; // espera antes de reintentar GC
-		int gcIndex = 0; // índice actual del GC
+		int sndTimeout = Integer.parseInt(System.getProperty("ps.snd.timeout.ms",
+				AppConfig.get("ps.snd.timeout.ms", "2000"))); // timeout envío
+		int rcvTimeout = Integer.parseInt(System.getProperty("ps.rcv.timeout.ms",
+				AppConfig.get("ps.rcv.timeout.ms", "2000"))); // timeout recepción (por intento)
+		long delayMs = Long.parseLong(System.getProperty("ps.delay.ms",
+				AppConfig.get("ps.delay.ms", "500"))); // pausa entre solicitudes
+		// Plazo de cada solicitud desde que sale del PS (0 = sin plazo, reintenta siempre)
+		long deadlineMs = Long.parseLong(System.getProperty("ps.deadline.ms",
+				AppConfig.get("ps.deadline.ms", "8000")));
+		Backoff backoff = Backoff.fromConfig("ps.retry", 200, 2000); // espera antes de reintentar GC
+
+		// Id de cada solicitud: prefijo al azar de este PS + desplazamiento de la línea en
+		// el archivo. Los reintentos llevan el mismo id y el GA responde los ya aplicados
+		// sin repetirlos; al reanudar se conserva el prefijo guardado.
+		String psId = processId();
+
+		// Modo carga con carga sintética: no hay archivo que leer
+		boolean load = false;
+		boolean pipeline = false;
+		for (int i = 1; i < args.length; i++) {
+			load |= "load".equalsIgnoreCase(args[i]) || "--load".equalsIgnoreCase(args[i]);
+			pipeline |= "pipeline".equalsIgnoreCase(args[i]) || "--pipeline".equalsIgnoreCase(args[i]);
+		}
+		if (load && "zipf".equalsIgnoreCase(args[0])) {
+			new LoadGenerator(endpoints, sndTimeout, rcvTimeout, deadlineMs).run(new WorkloadGenerator(), "zipf");
+			return;
+		}
 
-		// Leer solicitudes desde archivo CSV
+		// Reanudación: desde ps.replay.offset o, con ps.replay.resume=true, desde el
+		// último punto guardado en ps.replay.checkpoint (por defecto archivo.offset)
 		Path path = Paths.get(args[0]);
-		List<String> lines = Files.readAllLines(path);
+		long startOffset = Long.parseLong(System.getProperty("ps.replay.offset",
+				AppConfig.get("ps.replay.offset", "0")));
+		boolean resume = Boolean.parseBoolean(System.getProperty("ps.replay.resume",
+				AppConfig.get("ps.replay.resume", "false")));
+		String checkpointFile = System.getProperty("ps.replay.checkpoint",
+				AppConfig.get("ps.replay.checkpoint", "")).trim();
+		Path checkpointPath = Paths.get(checkpointFile.isEmpty() ? args[0] + ".offset" : checkpointFile);
+		if (resume) {
+			RequestFileReader.Checkpoint.Saved saved = RequestFileReader.Checkpoint.read(checkpointPath);
+			if (saved != null) {
+				psId = saved.prefix();
+				startOffset = saved.offset();
+				System.out.printf("[PS] Reanudando %s desde el byte %d (%s)%n", path, startOffset, checkpointPath);
+			}
+		}
+
+		try (RequestFileReader reader = new RequestFileReader(path, startOffset);
+				RequestFileReader.Checkpoint checkpoint = resume ? new RequestFileReader.Checkpoint(checkpointPath)
+						: null) {
+			if (load) {
+				// Modo carga: tasa fija desde varios clientes, con percentiles y resumen JSON
+				runLoad(reader, args[0], endpoints, sndTimeout, rcvTimeout, deadlineMs);
+				if (checkpoint != null) {
+					checkpoint.save(psId, reader.offset());
+				}
+				return;
+			}
+			if (pipeline) {
+				// Modo ventana: varias solicitudes en vuelo por un DEALER, sin pausa entre ellas
+				new PipelinedClient(endpoints, sndTimeout, rcvTimeout, deadlineMs, backoff).run(reader, checkpoint,
+						psId);
+				return;
+			}
+			replay(reader, checkpoint, psId, endpoints, sndTimeout, rcvTimeout, delayMs, deadlineMs, backoff);
+		}
+	}
 
-		try (ZMQ.Context ctx = ZMQ.context(1)) {
+	private static void replay(RequestFileReader reader, RequestFileReader.Checkpoint checkpoint, String psId,
+			String[] endpoints, int sndTimeout, int rcvTimeout, long delayMs, long deadlineMs, Backoff backoff)
+			throws Exception {
+		int gcIndex = 0; // índice actual del GC
+		try (ZMQ.Context ctx = ZMQ.context(1);
+				EndpointHealth health = new EndpointHealth("PS", "GC", endpoints)) {
 
 			// Crear socket hacia GC inicial
-			ZMQ.Socket req = ctx.socket(SocketType.REQ);
-			req.setSendTimeOut(sndTimeout);
-			req.setReceiveTimeOut(rcvTimeout);
-			req.setLinger(0);
-			req.connect(endpoints[gcIndex].trim());
+			ZMQ.Socket req = connect(ctx, endpoints[gcIndex].trim(), sndTimeout, rcvTimeout);
 
 			System.out.printf("[PS] se conectó a [GC]: %s%n", endpoints[gcIndex].trim());
 			System.out.println();
 
-			for (String line : lines) {
-				line = line.trim();
-				if (line.isEmpty() || line.startsWith("#")) {
-					continue; // ignorar líneas vacías o comentarios
-				}
-
-				// Formato esperado: OPERACION,branchId,userId,bookCode
-				String[] p = line.split(",", 4);
-				if (p.length < 4) {
-					System.out.printf("[PS] Línea ignorada (formato inválido): %s%n", line);
-					continue;
-				}
-
-				String op = p[0].trim().toUpperCase();
-				String branchId = p[1].trim();
-				String userId = p[2].trim();
-				String bookCode = p[3].trim();
-
-				// Crear mensaje según operación
-				Message msg = switch (op) {
-					case "DEVOLUCION" -> Message.devolver(branchId, userId, bookCode);
-					case "RENOVACION" -> Message.renovar(branchId, userId, bookCode);
-					case "PRESTAMO" -> Message.prestar(branchId, userId, bookCode);
-					default -> null;
-				};
-
-				if (msg == null) {
-					System.out.printf("[PS] Línea ignorada (operación desconocida): %s%n", line);
-					continue;
+			// Formato esperado: OPERACION,branchId,userId,bookCode (el lector salta e
+			// informa las líneas vacías, comentarios e inválidas)
+			Message msg;
+			while ((msg = reader.next()) != null) {
+				msg = msg.withRequestId(psId + "-" + reader.recordOffset());
+				if (deadlineMs > 0) {
+					// Cada nivel descarta la solicitud si le llega vencida
+					msg = msg.withDeadline(System.currentTimeMillis() + deadlineMs);
 				}
 
 				boolean sent = false;
+				int rounds = 0;
 
-				// Envío con failover entre múltiples GC
+				// Envío con failover entre múltiples GC, dentro del plazo
 				while (!sent) {
 					int attempts = 0;
 
-					while (!sent && attempts < endpoints.length) {
+					while (!sent && attempts < endpoints.length && !msg.expired()) {
+						// Si el GC actual no responde a los heartbeats y hay otro vivo, cambiar antes de enviar
+						int healthy = health.choose(gcIndex);
+						if (healthy != gcIndex) {
+							health.leaving(gcIndex, System.nanoTime());
+							gcIndex = healthy;
+							req.close();
+							req = connect(ctx, endpoints[gcIndex].trim(), sndTimeout, rcvTimeout);
+						}
+						long attemptNs = System.nanoTime();
 						try {
-							req.send(msg.serialize());
-							String ack = req.recvStr();
+							req.setReceiveTimeOut(Deadlines.timeoutMs(msg, rcvTimeout));
+							Wire.send(req, msg);
+							// La espera se corta antes del timeout si el GC se cae y hay otro vivo
+							String ack = health.await(req, gcIndex, Deadlines.timeoutMs(msg, rcvTimeout))
+									? req.recvStr()
+									: null;
 
 							if (ack == null) {
 								throw new Exception("No se recibió respuesta");
 							}
 
 							System.out.printf("[GC] -> [PS]: %s%n", ack);
+							health.answered(gcIndex);
 							sent = true;
 
 						} catch (Exception e) {
-							// Pasar al siguiente GC
+							// Pasar al siguiente GC (si queda alguno en esta vuelta), prefiriendo los vivos
+							health.leaving(gcIndex, attemptNs);
 							attempts++;
-							if (attempts >= endpoints.length) {
-								break;
+							if (attempts < endpoints.length) {
+								gcIndex = health.next(gcIndex);
 							}
 
-							gcIndex = (gcIndex + 1) % endpoints.length;
-
-							// Re-crear socket hacia nuevo GC
+							// Re-crear socket: el REQ quedó esperando una respuesta que no llegó
 							req.close();
-							req = ctx.socket(SocketType.REQ);
-							req.setSendTimeOut(sndTimeout);
-							req.setReceiveTimeOut(rcvTimeout);
-							req.setLinger(0);
-							req.connect(endpoints[gcIndex].trim());
+							req = connect(ctx, endpoints[gcIndex].trim(), sndTimeout, rcvTimeout);
 						}
 					}
 
 					if (!sent) {
-						// Espera antes de reintentar con la lista completa
+						// Espera exponencial con jitter antes de reintentar con la lista completa;
+						// si ya no alcanza el plazo, la solicitud se abandona
+						rounds++;
 						try {
-							Thread.sleep(retryBackoffMs);
+							if (msg.expired() || !backoff.sleep(rounds, msg.remainingMs())) {
+								Deadlines.drop("PS", msg);
+								break;
+							}
 						} catch (InterruptedException ie) {
 							Thread.currentThread().interrupt();
 							return;
@@ -125,14 +184,59 @@ public class SolicitingProcess {
 					}
 				}
 
+				// Solicitud terminada (respondida o abandonada): punto de reanudación
+				if (checkpoint != null) {
+					checkpoint.save(psId, reader.offset());
+				}
+
 				// Pequeño delay entre solicitudes
 				try {
-					Thread.sleep(500);
+					Thread.sleep(delayMs);
 				} catch (InterruptedException ie) {
 					Thread.currentThread().interrupt();
 					return;
 				}
 			}
+			// El contexto no termina mientras quede un socket abierto
+			req.close();
+			System.out.println("[PS] " + Deadlines.stats());
+			System.out.println("[PS] " + health.stats());
 		}
 	}
+
+	private static void runLoad(RequestFileReader reader, String label, String[] endpoints, int sndTimeout,
+			int rcvTimeout, long deadlineMs) throws Exception {
+		// El archivo se lee en streaming y se repite desde el principio (ps.load.loop)
+		// hasta terminar la corrida
+		boolean loop = Boolean.parseBoolean(System.getProperty("ps.load.loop",
+				AppConfig.get("ps.load.loop", "true")));
+		new LoadGenerator(endpoints, sndTimeout, rcvTimeout, deadlineMs).run(() -> {
+			Message m = reader.next();
+			if (m == null && loop && reader.size() > 0) {
+				reader.rewind();
+				m = reader.next();
+			}
+			return m;
+		}, label);
+		if (reader.recordOffset() < 0) {
+			System.err.println("[PS] El archivo no tiene solicitudes válidas: " + label);
+		}
+	}
+
+	static String processId() {
+		// Prefijo al azar de los ids de solicitud de este proceso
+		byte[] prefix = new byte[8];
+		new SecureRandom().nextBytes(prefix);
+		return HexFormat.of().formatHex(prefix);
+	}
+
+	static ZMQ.Socket connect(ZMQ.Context ctx, String endpoint, int sndTimeout, int rcvTimeout) {
+		// REQ hacia un GC
+		ZMQ.Socket req = ctx.socket(SocketType.REQ);
+		req.setSendTimeOut(sndTimeout);
+		req.setReceiveTimeOut(rcvTimeout);
+		req.setLinger(0);
+		req.connect(endpoint);
+		return req;
+	}
 }
@@ -1,18 +1,38 @@
 package edu.javeriana.biblioteca.processes;
 
 import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.common.AuditLogger;
+import edu.javeriana.biblioteca.messaging.Deadlines;
 import edu.javeriana.biblioteca.messaging.Message;
 import edu.javeriana.biblioteca.messaging.StorageResult;
+import edu.javeriana.biblioteca.messaging.Wire;
 import edu.javeriana.biblioteca.persistence.StorageGateway;
 import edu.javeriana.biblioteca.replication.DataSourceRouter;
+import edu.javeriana.biblioteca.replication.FailbackResync;
 import edu.javeriana.biblioteca.replication.FailoverMonitor;
 import edu.javeriana.biblioteca.replication.Replicator;
 
 import org.zeromq.SocketType;
 import org.zeromq.ZMQ;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class StorageManager {
 
+	private static final String REPLIES_INPROC = "inproc://ga-replies";
+
 	public static void main(String[] args) {
 		// Configuración de conexiones a BD primaria y secundaria
 		String dbUrl = AppConfig.get("db.primary.url", "jdbc:postgresql://localhost:5432/BDPrimaria");
@@ -29,17 +49,43 @@ public class StorageManager {
 		// Router para escoger entre primaria/secundaria
 		DataSourceRouter router = new DataSourceRouter(dbUrl, dbUser, dbPass, dbSUrl, dbSUser, dbSPass);
 
+		// Registro de lo escrito en la secundaria, para resincronizar al volver a la primaria
+		FailbackResync resync = new FailbackResync(router);
+
 		// Replicador encargado de sincronizar cambios entre nodos
-		Replicator replicator = new Replicator(router);
+		Replicator replicator = new Replicator(router, resync);
 
 		// Gateway que ejecuta la lógica de almacenamiento
 		StorageGateway gateway = new StorageGateway(router, replicator);
 
 		// Monitor de salud para detectar caídas de la BD primaria
 		long interval = Long.parseLong(AppConfig.get("db.health.interval", "1500"));
-		FailoverMonitor monitor = new FailoverMonitor(router, interval);
+		FailoverMonitor monitor = new FailoverMonitor(router, interval, resync);
 		monitor.start(); // inicia el hilo de chequeo
 
+		// Estadísticas periódicas (pools de conexiones)
+		long statsMs = Long.parseLong(AppConfig.get("ga.stats.interval.ms", "30000"));
+		if (statsMs > 0) {
+			ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "ga-stats");
+				t.setDaemon(true);
+				return t;
+			});
+			stats.scheduleAtFixedRate(() -> printStats(router, replicator, resync, gateway), statsMs, statsMs, TimeUnit.MILLISECONDS);
+		}
+
+		// Modo router: varias operaciones en paralelo sobre la BD
+		boolean routerMode = false;
+		for (String a : args) {
+			if ("router".equalsIgnoreCase(a) || "--router".equalsIgnoreCase(a)) {
+				routerMode = true;
+			}
+		}
+		if (routerMode) {
+			runRouter(bind, gateway);
+			return;
+		}
+
 		try (ZMQ.Context ctx = ZMQ.context(1);
 				ZMQ.Socket rep = ctx.socket(SocketType.REP)) {
 
@@ -49,51 +95,349 @@ public class StorageManager {
 			System.out.println();
 
 			while (true) {
-				// Recibir comando del actor
-				String raw = rep.recvStr();
-				Message cmd = Message.parse(raw);
-				StorageResult result;
+				// Recibir comando (o lote) del actor
+				ByteBuffer frame = Wire.recvFrame(rep);
+				if (Wire.isBatch(frame)) {
+					List<Message> items = Wire.recvBatchItems(rep);
+					Wire.sendResults(rep, executeBatch(gateway, items));
+					continue;
+				}
+				Message cmd = Wire.decodeMessage(frame);
+				StorageResult result = execute(gateway, cmd);
 
-				try {
-					// Ejecutar operación solicitada
-					switch (cmd.type()) {
-						case "DEVOLUCION" -> {
-							System.out.printf("[ReturnActor] -> [GA]: %s %s %s%n",
-									cmd.branchId(), cmd.userId(), cmd.bookCode());
-							gateway.applyReturn(cmd.branchId(), cmd.userId(), cmd.bookCode());
-							result = new StorageResult(true, "Devolución aplicada");
+				// Enviar respuesta al actor solicitante
+				Wire.send(rep, result);
+			}
+		}
+	}
+
+	private static void runRouter(String bind, StorageGateway gateway) {
+		// ROUTER al frente y un carril (hilo) por partición de (branch_id, book_code):
+		// claves distintas se aplican en paralelo y cada clave mantiene su orden.
+		int lanes = Integer.parseInt(System.getProperty("ga.workers",
+				AppConfig.get("ga.workers", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+
+		ExecutorService[] executors = new ExecutorService[lanes];
+		for (int i = 0; i < lanes; i++) {
+			String name = "ga-lane-" + i;
+			executors[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			});
+		}
+
+		try (ZMQ.Context ctx = ZMQ.context(1);
+				ZMQ.Socket router = ctx.socket(SocketType.ROUTER); // comandos de los actores
+				ZMQ.Socket replies = ctx.socket(SocketType.PULL)) { // respuestas de los carriles
+
+			router.bind(bind);
+			replies.bind(REPLIES_INPROC);
+
+			// Cada carril responde por su propio PUSH (los sockets no son thread-safe);
+			// se registran para cerrarlos al salir: el contexto no termina con uno abierto
+			Queue<ZMQ.Socket> pushes = new ConcurrentLinkedQueue<>();
+			ThreadLocal<ZMQ.Socket> push = ThreadLocal.withInitial(() -> {
+				ZMQ.Socket sock = ctx.socket(SocketType.PUSH);
+				sock.setLinger(0);
+				sock.connect(REPLIES_INPROC);
+				pushes.add(sock);
+				return sock;
+			});
+
+			System.out.println("[GA] Esperando comandos en " + bind + " (modo router, carriles=" + lanes + ")");
+			System.out.println();
+
+			try (ZMQ.Poller poller = ctx.poller(2)) {
+				int routerIdx = poller.register(router, ZMQ.Poller.POLLIN);
+				int repliesIdx = poller.register(replies, ZMQ.Poller.POLLIN);
+
+				while (!Thread.currentThread().isInterrupted()) {
+					poller.poll(-1);
+
+					// Respuesta terminada: reenviar tal cual (envelope + resultado)
+					if (poller.pollin(repliesIdx)) {
+						boolean more = true;
+						while (more) {
+							byte[] frame = replies.recv(0);
+							more = replies.hasReceiveMore();
+							router.send(frame, more ? ZMQ.SNDMORE : 0);
 						}
-						case "RENOVACION" -> {
-							System.out.printf("[RenewalActor] -> [GA]: %s %s %s%n",
-									cmd.branchId(), cmd.userId(), cmd.bookCode());
-							gateway.applyRenewal(cmd.branchId(), cmd.userId(), cmd.bookCode());
-							result = new StorageResult(true, "Renovación aplicada");
+					}
+
+					// Comando nuevo: [envelope...][vacío][Message] o [envelope...][vacío][lote...]
+					if (poller.pollin(routerIdx)) {
+						List<byte[]> envelope = new ArrayList<>(2);
+						byte[] frame;
+						while ((frame = router.recv(0)) != null && frame.length > 0) {
+							envelope.add(frame);
 						}
-						case "PRESTAMO" -> {
-							System.out.printf("[LoanActor] -> [GA]: %s %s %s%n",
-									cmd.branchId(), cmd.userId(), cmd.bookCode());
-							gateway.applyLoan(cmd.branchId(), cmd.userId(), cmd.bookCode());
-							result = new StorageResult(true, "Préstamo aplicado");
+
+						Message cmd;
+						List<Message> batch = null;
+						try {
+							ByteBuffer first = Wire.recvFrame(router);
+							if (Wire.isBatch(first)) {
+								batch = Wire.recvBatchItems(router);
+								cmd = null;
+							} else {
+								cmd = Wire.decodeMessage(first);
+							}
+						} catch (RuntimeException e) {
+							while (router.hasReceiveMore()) {
+								router.recv(0); // descartar el resto del mensaje
+							}
+							System.err.println("[GA] Comando invalido: " + e.getMessage());
+							sendReply(router, envelope, new StorageResult(false, "Comando invalido: " + e.getMessage()));
+							continue;
 						}
-						default -> {
-							// Comando desconocido
-							result = new StorageResult(false, "Tipo de comando desconocido: " + cmd.type());
+
+						if (batch != null) {
+							dispatchBatch(batch, envelope, executors, gateway, push);
+							continue;
 						}
+
+						if ("CACHE_RESET".equals(cmd.type())) {
+							resetOnAllLanes(cmd, envelope, executors, gateway, push);
+							continue;
+						}
+
+						int lane = laneOf(cmd, lanes);
+						executors[lane].execute(() -> {
+							StorageResult result = execute(gateway, cmd);
+							sendReply(push.get(), envelope, result);
+						});
+					}
+				}
+			} finally {
+				// Primero detener los carriles; recién entonces cerrar sus PUSH
+				stopLanes(executors);
+				for (ZMQ.Socket sock : pushes) {
+					sock.close();
+				}
+			}
+		}
+	}
+
+	private static void stopLanes(ExecutorService[] executors) {
+		for (ExecutorService e : executors) {
+			e.shutdownNow();
+		}
+		for (ExecutorService e : executors) {
+			try {
+				if (!e.awaitTermination(2, TimeUnit.SECONDS)) {
+					System.err.println("[GA] Un carril no terminó a tiempo; se cierra su socket igual");
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private static void resetOnAllLanes(Message cmd, List<byte[]> envelope, ExecutorService[] executors,
+			StorageGateway gateway, ThreadLocal<ZMQ.Socket> push) {
+		// La caché la escriben todos los carriles: cada uno termina lo que tenía
+		// encolado y se detiene; el carril 0 recarga cuando todos están quietos y
+		// luego los libera (las escrituras posteriores ven la caché nueva)
+		int lanes = executors.length;
+		CountDownLatch quiet = new CountDownLatch(lanes);
+		CountDownLatch reloaded = new CountDownLatch(1);
+		for (int lane = lanes - 1; lane >= 0; lane--) {
+			boolean leader = lane == 0;
+			executors[lane].execute(() -> {
+				quiet.countDown();
+				try {
+					if (!leader) {
+						reloaded.await();
+						return;
 					}
-				} catch (Exception e) {
-					// Manejo de errores de negocio vs errores internos
-					if (e instanceof IllegalStateException) {
-						System.out.println("[GA] Error de negocio: " + e.getMessage());
-						result = new StorageResult(false, e.getMessage());
-					} else {
-						e.printStackTrace();
-						result = new StorageResult(false, "Error interno en GA: " + e.getMessage());
+					StorageResult result;
+					try {
+						quiet.await();
+						result = execute(gateway, cmd);
+					} finally {
+						reloaded.countDown();
 					}
+					sendReply(push.get(), envelope, result);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
 				}
+			});
+		}
+	}
 
-				// Enviar respuesta al actor solicitante
-				rep.send(result.serialize());
+	private static int laneOf(Message cmd, int lanes) {
+		// Carril fijo por (branch_id, book_code)
+		return Math.floorMod(Objects.hash(cmd.branchId(), cmd.bookCode()), lanes);
+	}
+
+	private static void dispatchBatch(List<Message> batch, List<byte[]> envelope, ExecutorService[] executors,
+			StorageGateway gateway, ThreadLocal<ZMQ.Socket> push) {
+		// Parte el lote por carril (se conserva el orden por clave) y el último carril
+		// en terminar envía la respuesta completa, en el orden original
+		int lanes = executors.length;
+		List<List<Integer>> byLane = new ArrayList<>(lanes);
+		for (int i = 0; i < lanes; i++) {
+			byLane.add(new ArrayList<>());
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			byLane.get(laneOf(batch.get(i), lanes)).add(i);
+		}
+
+		StorageResult[] results = new StorageResult[batch.size()];
+		int used = 0;
+		for (List<Integer> idx : byLane) {
+			if (!idx.isEmpty()) {
+				used++;
+			}
+		}
+		if (used == 0) {
+			sendReplies(push.get(), envelope, List.of());
+			return;
+		}
+		AtomicInteger pending = new AtomicInteger(used);
+		for (int lane = 0; lane < lanes; lane++) {
+			List<Integer> idx = byLane.get(lane);
+			if (idx.isEmpty()) {
+				continue;
+			}
+			executors[lane].execute(() -> {
+				List<Message> sub = new ArrayList<>(idx.size());
+				for (int i : idx) {
+					sub.add(batch.get(i));
+				}
+				List<StorageResult> partial = executeBatch(gateway, sub);
+				for (int k = 0; k < idx.size(); k++) {
+					results[idx.get(k)] = partial.get(k);
+				}
+				if (pending.decrementAndGet() == 0) {
+					sendReplies(push.get(), envelope, Arrays.asList(results));
+				}
+			});
+		}
+	}
+
+	private static void printStats(DataSourceRouter router, Replicator replicator, FailbackResync resync,
+			StorageGateway gateway) {
+		// Snapshot de métricas del GA
+		System.out.println("[GA] stats " + router.primaryStats());
+		System.out.println("[GA] stats " + router.secondaryStats());
+		System.out.println("[GA] stats " + replicator.stats());
+		System.out.println("[GA] stats resync " + resync.stats());
+		System.out.println("[GA] stats " + gateway.inventoryCache().stats());
+		System.out.println("[GA] stats " + gateway.groupCommitStats());
+		System.out.println("[GA] stats " + gateway.requestLog().stats());
+		System.out.println("[GA] stats " + Deadlines.stats());
+		System.out.println("[GA] stats auditoria " + AuditLogger.stats());
+	}
+
+	private static void sendReply(ZMQ.Socket socket, List<byte[]> envelope, StorageResult result) {
+		// Envelope del actor + delimitador + StorageResult
+		for (byte[] f : envelope) {
+			socket.sendMore(f);
+		}
+		socket.sendMore(new byte[0]);
+		Wire.send(socket, result);
+	}
+
+	private static void sendReplies(ZMQ.Socket socket, List<byte[]> envelope, List<StorageResult> results) {
+		// Envelope del actor + delimitador + un StorageResult por ítem del lote
+		for (byte[] f : envelope) {
+			socket.sendMore(f);
+		}
+		socket.sendMore(new byte[0]);
+		Wire.sendResults(socket, results);
+	}
+
+	private static List<StorageResult> executeBatch(StorageGateway gateway, List<Message> items) {
+		// Lote: cada tramo del mismo tipo se aplica en una sola transacción
+		System.out.printf("[GA] Lote de %d comandos%n", items.size());
+
+		// Los ítems vencidos (en cola o en camino) se descartan antes de ir a la BD y los
+		// reintentos ya aplicados en este GA se responden desde memoria
+		StorageResult[] results = new StorageResult[items.size()];
+		List<Message> live = new ArrayList<>(items.size());
+		for (int i = 0; i < items.size(); i++) {
+			Message m = items.get(i);
+			if (m.expired()) {
+				Deadlines.drop("GA", m);
+				results[i] = new StorageResult(false, Deadlines.EXPIRED);
+			} else if ((results[i] = gateway.requestLog().cached(m.requestId())) == null) {
+				live.add(m);
+			}
+		}
+		List<StorageResult> applied = gateway.applyBatch(live);
+		for (int i = 0, k = 0; i < results.length; i++) {
+			if (results[i] == null) {
+				results[i] = applied.get(k++);
+				if (!results[i].ok()) {
+					System.out.println("[GA] Error en lote (" + items.get(i).type() + "): " + results[i].message());
+				}
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	private static StorageResult execute(StorageGateway gateway, Message cmd) {
+		// Vencido mientras esperaba en la cola o en camino: nadie espera la respuesta
+		if (cmd.expired()) {
+			Deadlines.drop("GA", cmd);
+			return new StorageResult(false, Deadlines.EXPIRED);
+		}
+		// Reintento de una solicitud ya aplicada en este GA: misma respuesta, sin ir a la BD
+		StorageResult cached = gateway.requestLog().cached(cmd.requestId());
+		if (cached != null) {
+			System.out.printf("[GA] Reintento ya aplicado (%s %s): %s%n", cmd.type(), cmd.requestId(),
+					cached.message());
+			return cached;
+		}
+		StorageResult result;
+		try {
+			// Ejecutar operación solicitada
+			switch (cmd.type()) {
+				case "DEVOLUCION" -> {
+					System.out.printf("[ReturnActor] -> [GA]: %s %s %s%n",
+							cmd.branchId(), cmd.userId(), cmd.bookCode());
+					gateway.applyReturn(cmd.branchId(), cmd.userId(), cmd.bookCode(), cmd.deadline(),
+							cmd.requestId());
+					result = new StorageResult(true, "Devolución aplicada");
+				}
+				case "RENOVACION" -> {
+					System.out.printf("[RenewalActor] -> [GA]: %s %s %s%n",
+							cmd.branchId(), cmd.userId(), cmd.bookCode());
+					gateway.applyRenewal(cmd.branchId(), cmd.userId(), cmd.bookCode(), cmd.deadline(),
+							cmd.requestId());
+					result = new StorageResult(true, "Renovación aplicada");
+				}
+				case "PRESTAMO" -> {
+					System.out.printf("[LoanActor] -> [GA]: %s %s %s%n",
+							cmd.branchId(), cmd.userId(), cmd.bookCode());
+					gateway.applyLoan(cmd.branchId(), cmd.userId(), cmd.bookCode(), cmd.deadline(),
+							cmd.requestId());
+					result = new StorageResult(true, "Préstamo aplicado");
+				}
+				case "CACHE_RESET" -> {
+					// Recarga la caché de inventario desde la BD (si se desvió)
+					System.out.println("[GA] Recargando caché de inventario");
+					gateway.inventoryCache().reset();
+					result = new StorageResult(true, "Caché de inventario recargada");
+				}
+				default -> {
+					// Comando desconocido
+					result = new StorageResult(false, "Tipo de comando desconocido: " + cmd.type());
+				}
+			}
+		} catch (Exception e) {
+			// Manejo de errores de negocio vs errores internos
+			if (e instanceof IllegalStateException) {
+				System.out.println("[GA] Error de negocio: " + e.getMessage());
+				result = new StorageResult(false, e.getMessage());
+			} else {
+				e.printStackTrace();
+				result = new StorageResult(false, "Error interno en GA: " + e.getMessage());
 			}
 		}
+		return result;
 	}
 }
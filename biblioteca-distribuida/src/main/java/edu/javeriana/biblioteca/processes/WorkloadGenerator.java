@@ -0,0 +1,239 @@
+package edu.javeriana.biblioteca.processes;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.messaging.Message;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Carga sintética sobre el catálogo que siembra Schema.sql: BK-0001..BK-1000,
+ * libros 1–900 en S1 y S2, 901–950 solo en S1, 951–1000 solo en S2, 20
+ * ejemplares por sede y los préstamos iniciales (uS1_NNN con BK-NNNN 1–50 en
+ * S1, uS2_NNN con BK-NNNN 51–200 en S2).
+ *
+ * Los préstamos eligen libro con distribución Zipf (exponente
+ * ps.workload.zipf.s; el rango 1 es el código más bajo de la sede, así los
+ * libros con préstamos iniciales son los más pedidos) y usuario al azar entre
+ * ps.workload.users por sede. El generador lleva el estado de préstamos e
+ * inventario: solo devuelve o renueva préstamos activos y no renueva más de
+ * dos veces. Los préstamos de libros agotados se generan igual (el GA los
+ * rechaza sin cambiar nada), que es justamente la contención sobre los
+ * libros populares. El modelo supone la BD recién cargada y que las
+ * solicitudes se aplican en orden.
+ *
+ * Como origen del modo carga del PS: args "zipf load". Como archivo para el
+ * PS: mvn exec:java -Dexec.mainClass="edu.javeriana.biblioteca.processes.WorkloadGenerator"
+ * -Dexec.args="salida.csv [solicitudes]"
+ */
+public class WorkloadGenerator implements LoadGenerator.RequestSource {
+
+	private static final String[] BRANCHES = { "S1", "S2" };
+	private static final int COPIES = 20;
+	private static final int MAX_RENEWALS = 2;
+
+	/** Préstamo activo según el modelo */
+	private static final class Loan {
+		final String branchId;
+		final String userId;
+		final String bookCode;
+		int renewals;
+
+		Loan(String branchId, String userId, String bookCode) {
+			this.branchId = branchId;
+			this.userId = userId;
+			this.bookCode = bookCode;
+		}
+
+		String key() {
+			return branchId + '|' + userId + '|' + bookCode;
+		}
+	}
+
+	private final SplittableRandom random;
+	private final int users;
+	private final double[] mix; // probabilidad acumulada de PRESTAMO, DEVOLUCION, RENOVACION
+	private final Map<String, String[]> books = new HashMap<>(); // libros de cada sede, por rango
+	private final Map<String, double[]> zipfCdf = new HashMap<>();
+	private final Map<String, Integer> available = new HashMap<>(); // sede|libro → disponibles
+
+	// Préstamos activos: lista para elegir al azar en O(1) + índice por clave
+	private final List<Loan> active = new ArrayList<>();
+	private final Map<String, Integer> activeIndex = new HashMap<>();
+
+	public WorkloadGenerator() {
+		this.random = new SplittableRandom(Long.parseLong(System.getProperty("ps.workload.seed",
+				AppConfig.get("ps.workload.seed", "42"))));
+		this.users = Integer.parseInt(System.getProperty("ps.workload.users",
+				AppConfig.get("ps.workload.users", "500")));
+		double s = Double.parseDouble(System.getProperty("ps.workload.zipf.s",
+				AppConfig.get("ps.workload.zipf.s", "1.0")));
+		this.mix = parseMix(System.getProperty("ps.workload.mix",
+				AppConfig.get("ps.workload.mix", "PRESTAMO:50,DEVOLUCION:30,RENOVACION:20")));
+
+		// Catálogo e inventario de Schema.sql (secciones 4 y 5)
+		for (String branch : BRANCHES) {
+			List<String> codes = new ArrayList<>();
+			for (int b = 1; b <= 1000; b++) {
+				if (b <= 900 || (b <= 950 ? "S1".equals(branch) : "S2".equals(branch))) {
+					String code = String.format("BK-%04d", b);
+					codes.add(code);
+					available.put(branch + '|' + code, COPIES);
+				}
+			}
+			books.put(branch, codes.toArray(new String[0]));
+			zipfCdf.put(branch, zipf(codes.size(), s));
+		}
+
+		// Préstamos iniciales (sección 6) y su ajuste del inventario (sección 7)
+		for (int b = 1; b <= 200; b++) {
+			String branch = b <= 50 ? "S1" : "S2";
+			String code = String.format("BK-%04d", b);
+			open(new Loan(branch, String.format("u%s_%03d", branch, b), code));
+			available.merge(branch + '|' + code, -1, Integer::sum);
+		}
+	}
+
+	private static double[] parseMix(String spec) {
+		// "PRESTAMO:50,DEVOLUCION:30,RENOVACION:20" → acumulada normalizada
+		double[] w = new double[3];
+		for (String part : spec.split(",")) {
+			String[] kv = part.trim().split(":");
+			int idx = switch (kv[0].trim().toUpperCase()) {
+				case "PRESTAMO" -> 0;
+				case "DEVOLUCION" -> 1;
+				case "RENOVACION" -> 2;
+				default -> throw new IllegalArgumentException("Operación desconocida en ps.workload.mix: " + kv[0]);
+			};
+			w[idx] = Double.parseDouble(kv[1].trim());
+		}
+		double total = w[0] + w[1] + w[2];
+		if (total <= 0) {
+			throw new IllegalArgumentException("ps.workload.mix sin pesos positivos: " + spec);
+		}
+		return new double[] { w[0] / total, (w[0] + w[1]) / total, 1.0 };
+	}
+
+	private static double[] zipf(int n, double s) {
+		// Acumulada de P(rango k) ∝ 1 / k^s
+		double[] cdf = new double[n];
+		double sum = 0;
+		for (int k = 1; k <= n; k++) {
+			sum += 1.0 / Math.pow(k, s);
+			cdf[k - 1] = sum;
+		}
+		for (int k = 0; k < n; k++) {
+			cdf[k] /= sum;
+		}
+		return cdf;
+	}
+
+	private String zipfBook(String branch) {
+		double[] cdf = zipfCdf.get(branch);
+		int i = Arrays.binarySearch(cdf, random.nextDouble());
+		return books.get(branch)[Math.min(i >= 0 ? i : -i - 1, cdf.length - 1)];
+	}
+
+	@Override
+	public Message next() {
+		// Nunca se agota: el modo carga corta por duración
+		double r = random.nextDouble();
+		if (r < mix[0] || active.isEmpty()) {
+			return loan();
+		}
+		if (r < mix[1]) {
+			return giveBack(active.get(random.nextInt(active.size())));
+		}
+		// Renovación de un préstamo que todavía admite una; si no aparece, devolución
+		for (int tries = 0; tries < 8; tries++) {
+			Loan l = active.get(random.nextInt(active.size()));
+			if (l.renewals < MAX_RENEWALS) {
+				l.renewals++;
+				return Message.renovar(l.branchId, l.userId, l.bookCode);
+			}
+		}
+		return giveBack(active.get(random.nextInt(active.size())));
+	}
+
+	private Message loan() {
+		String branch = BRANCHES[random.nextInt(BRANCHES.length)];
+		String book = zipfBook(branch);
+		// Usuario sin préstamo activo de ese libro (si no, el GA lo toma como repetido)
+		String user = null;
+		for (int tries = 0; tries < 8 && user == null; tries++) {
+			String u = String.format("u%s_%03d", branch, 1 + random.nextInt(users));
+			if (!activeIndex.containsKey(branch + '|' + u + '|' + book)) {
+				user = u;
+			}
+		}
+		if (user == null) {
+			return loan();
+		}
+		String invKey = branch + '|' + book;
+		int left = available.get(invKey);
+		if (left > 0) {
+			available.put(invKey, left - 1);
+			open(new Loan(branch, user, book));
+		}
+		return Message.prestar(branch, user, book);
+	}
+
+	private Message giveBack(Loan l) {
+		close(l);
+		available.merge(l.branchId + '|' + l.bookCode, 1, Integer::sum);
+		return Message.devolver(l.branchId, l.userId, l.bookCode);
+	}
+
+	private void open(Loan l) {
+		activeIndex.put(l.key(), active.size());
+		active.add(l);
+	}
+
+	private void close(Loan l) {
+		// Quitar en O(1): el último ocupa su lugar
+		int idx = activeIndex.remove(l.key());
+		Loan last = active.remove(active.size() - 1);
+		if (last != l) {
+			active.set(idx, last);
+			activeIndex.put(last.key(), idx);
+		}
+	}
+
+	public int activeLoans() {
+		return active.size();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Uso: mvn exec:java " +
+					"-Dexec.mainClass=\"edu.javeriana.biblioteca.processes.WorkloadGenerator\" " +
+					"-Dexec.args=\"salida.csv [solicitudes]\"");
+			System.exit(1);
+		}
+		Path out = Paths.get(args[0]);
+		long count = args.length > 1 ? Long.parseLong(args[1]) : 100_000;
+
+		// Mismo formato que los archivos de test-files: OPERACION,branchId,userId,bookCode
+		WorkloadGenerator gen = new WorkloadGenerator();
+		long[] byType = new long[3];
+		try (BufferedWriter w = Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+			for (long i = 0; i < count; i++) {
+				Message m = gen.next();
+				w.write(String.join(",", m.type(), m.branchId(), m.userId(), m.bookCode()));
+				w.newLine();
+				byType["PRESTAMO".equals(m.type()) ? 0 : "DEVOLUCION".equals(m.type()) ? 1 : 2]++;
+			}
+		}
+		System.out.printf("[Workload] %d solicitudes en %s (PRESTAMO=%d DEVOLUCION=%d RENOVACION=%d), "
+				+ "préstamos activos al final=%d%n", count, out, byType[0], byType[1], byType[2], gen.activeLoans());
+	}
+}
@@ -1,29 +1,82 @@
 package edu.javeriana.biblioteca.replication;
 
+import edu.javeriana.biblioteca.common.AppConfig;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+
 import javax.sql.DataSource;
-import java.io.PrintWriter;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.logging.Logger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DataSourceRouter {
 
-	private final DataSource primary; // DataSource principal
-	private final DataSource secondary; // DataSource secundario (backup)
+	private final HikariDataSource primary; // pool de la BD principal
+	private final HikariDataSource secondary; // pool de la BD secundaria (backup)
+	private final AcquireMetrics primaryMetrics = new AcquireMetrics();
+	private final AcquireMetrics secondaryMetrics = new AcquireMetrics();
 	private volatile boolean primaryAvailable = true; // indica si la primaria está activa
+	// Al pasar a la secundaria su secuencia de loan_id salta loanIdGap: la primaria pudo
+	// confirmar préstamos que todavía no llegaron a la secundaria y sus ids no se reusan
+	private final long loanIdGap;
+	private volatile boolean loanIdFencePending;
+	// Cada escritura toma la parte compartida; el failback toma la exclusiva para pausarlas
+	private final ReentrantReadWriteLock writeGate = new ReentrantReadWriteLock();
 
 	public DataSourceRouter(String pUrl, String pUser, String pPass,
 			String sUrl, String sUser, String sPass) {
 
-		// Crear DataSources simples para primaria y secundaria
-		this.primary = new SimpleDataSource(pUrl, pUser, pPass);
-		this.secondary = new SimpleDataSource(sUrl, sUser, sPass);
+		// Crear pools de conexiones para primaria y secundaria
+		this.primary = createPool("primaria", pUrl, pUser, pPass, primaryMetrics);
+		this.secondary = createPool("secundaria", sUrl, sUser, sPass, secondaryMetrics);
+		this.loanIdGap = Long.parseLong(AppConfig.get("db.failover.loan.id.gap", "1000000000"));
 	}
 
 	public DataSource currentWrite() {
-		// Devuelve la BD para operaciones de escritura (primaria si está arriba)
-		return primaryAvailable ? primary : secondary;
+		// Devuelve la BD para operaciones de escritura (primaria si está arriba). La
+		// primera escritura en la secundaria espera a que su secuencia de loan_id salte
+		if (primaryAvailable) {
+			return primary;
+		}
+		if (loanIdFencePending) {
+			fenceLoanIds();
+		}
+		return secondary;
+	}
+
+	private synchronized void fenceLoanIds() {
+		// Adelanta la secuencia de la secundaria loanIdGap por encima de lo que tiene;
+		// si la secundaria no responde se reintenta en la próxima escritura
+		if (!loanIdFencePending || loanIdGap <= 0) {
+			loanIdFencePending = false;
+			return;
+		}
+		try (Connection c = secondary.getConnection();
+				PreparedStatement ps = c.prepareStatement(
+						"SELECT setval(pg_get_serial_sequence('loans', 'loan_id'), " +
+								"GREATEST((SELECT COALESCE(MAX(loan_id), 0) FROM loans), " +
+								"  COALESCE(pg_sequence_last_value(pg_get_serial_sequence('loans', 'loan_id')::regclass), 0))"
+								+ " + ?)")) {
+			c.setAutoCommit(true);
+			ps.setLong(1, loanIdGap);
+			try (ResultSet rs = ps.executeQuery()) {
+				rs.next();
+				System.out.println("[Router] Secuencia de loan_id de la SECUNDARIA adelantada a " + rs.getLong(1));
+			}
+			loanIdFencePending = false;
+		} catch (SQLException e) {
+			System.err.println("[Router] No se pudo adelantar la secuencia de loan_id de la secundaria: "
+					+ e.getMessage());
+		}
 	}
 
 	public DataSource currentRead() {
@@ -44,7 +97,12 @@ public class DataSourceRouter {
 	public void switchToSecondary() {
 		// Cambiar a la BD secundaria
 		if (primaryAvailable) {
+			loanIdFencePending = true;
 			primaryAvailable = false;
+			// Descartar conexiones de la primaria caída para no reutilizarlas al volver
+			HikariPoolMXBean mx = primary.getHikariPoolMXBean();
+			if (mx != null)
+				mx.softEvictConnections();
 			System.out.println("[Router] Conmutado a SECUNDARIA");
 		}
 	}
@@ -57,68 +115,121 @@ public class DataSourceRouter {
 		}
 	}
 
-	public boolean isPrimaryUp() {
-		// Saber si la primaria está activa
-		return primaryAvailable;
+	public Lock writeGate() {
+		// Candado que sostiene cada operación de escritura mientras corre
+		return writeGate.readLock();
 	}
 
-	// Implementación mínima de DataSource
-	private static class SimpleDataSource implements DataSource {
+	public boolean pauseWrites(long timeoutMs) {
+		// Espera a que terminen las escrituras en curso y bloquea las nuevas
+		try {
+			return writeGate.writeLock().tryLock(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
 
-		private final String url;
-		private final String user;
-		private final String pass;
+	public void resumeWrites() {
+		writeGate.writeLock().unlock();
+	}
 
-		SimpleDataSource(String url, String user, String pass) {
-			this.url = url;
-			this.user = user;
-			this.pass = pass;
-		}
+	public boolean isPrimaryUp() {
+		// Saber si la primaria está activa
+		return primaryAvailable;
+	}
 
-		@Override
-		public Connection getConnection() throws SQLException {
-			// Crear conexión con credenciales por defecto
-			return DriverManager.getConnection(url, user, pass);
-		}
+	public PoolStats primaryStats() {
+		// Estadísticas del pool de la primaria
+		return PoolStats.of(primary, primaryMetrics);
+	}
 
-		@Override
-		public Connection getConnection(String username, String password) throws SQLException {
-			// Crear conexión con credenciales explícitas
-			return DriverManager.getConnection(url, username, password);
-		}
+	public PoolStats secondaryStats() {
+		// Estadísticas del pool de la secundaria
+		return PoolStats.of(secondary, secondaryMetrics);
+	}
 
-		// Métodos no utilizados en el proyecto
-		@Override
-		public <T> T unwrap(Class<T> iface) {
-			throw new UnsupportedOperationException();
-		}
+	public void close() {
+		// Cerrar ambos pools
+		primary.close();
+		secondary.close();
+	}
 
-		@Override
-		public boolean isWrapperFor(Class<?> iface) {
-			return false;
-		}
+	private static HikariDataSource createPool(String name, String url, String user, String pass,
+			AcquireMetrics metrics) {
+		// Pool HikariCP con tamaños, validación y detección de fugas desde app.properties
+		HikariConfig cfg = new HikariConfig();
+		cfg.setPoolName(name);
+		cfg.setJdbcUrl(url);
+		cfg.setUsername(user);
+		cfg.setPassword(pass);
+		cfg.setMaximumPoolSize(Integer.parseInt(AppConfig.get("db.pool.max", "16")));
+		cfg.setMinimumIdle(Integer.parseInt(AppConfig.get("db.pool.min.idle", "2")));
+		cfg.setConnectionTimeout(Long.parseLong(AppConfig.get("db.pool.connection.timeout.ms", "2000")));
+		cfg.setValidationTimeout(Long.parseLong(AppConfig.get("db.pool.validation.timeout.ms", "1000")));
+		cfg.setIdleTimeout(Long.parseLong(AppConfig.get("db.pool.idle.timeout.ms", "60000")));
+		cfg.setMaxLifetime(Long.parseLong(AppConfig.get("db.pool.max.lifetime.ms", "1800000")));
+		cfg.setLeakDetectionThreshold(Long.parseLong(AppConfig.get("db.pool.leak.threshold.ms", "10000")));
+
+		// Arrancar aunque la BD esté caída: el FailoverMonitor decide qué nodo usar
+		cfg.setInitializationFailTimeout(-1);
+
+		// Prepared statements del lado del servidor (pgjdbc) desde la primera ejecución
+		cfg.addDataSourceProperty("prepareThreshold", AppConfig.get("db.prepare.threshold", "1"));
+		cfg.addDataSourceProperty("preparedStatementCacheQueries",
+				AppConfig.get("db.prepared.cache.queries", "256"));
+		cfg.addDataSourceProperty("preparedStatementCacheSizeMiB",
+				AppConfig.get("db.prepared.cache.mib", "5"));
+
+		cfg.setMetricsTrackerFactory((poolName, stats) -> metrics);
+		return new HikariDataSource(cfg);
+	}
 
-		@Override
-		public PrintWriter getLogWriter() {
-			return null;
-		}
+	// Tiempo de adquisición de conexiones (acumulado y máximo desde el último snapshot)
+	private static final class AcquireMetrics implements IMetricsTracker {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+		private final LongAdder timeouts = new LongAdder();
 
 		@Override
-		public void setLogWriter(PrintWriter out) {
+		public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+			count.increment();
+			totalNanos.add(elapsedAcquiredNanos);
+			maxNanos.accumulate(elapsedAcquiredNanos);
 		}
 
 		@Override
-		public void setLoginTimeout(int seconds) {
+		public void recordConnectionTimeout() {
+			timeouts.increment();
 		}
+	}
 
-		@Override
-		public int getLoginTimeout() {
-			return 0;
+	// Snapshot de un pool: conexiones activas/ociosas, hilos esperando y tiempos de adquisición
+	public record PoolStats(String pool, int active, int idle, int total, int waiting,
+			long acquired, double acquireAvgMs, double acquireMaxMs, long timeouts) {
+
+		static PoolStats of(HikariDataSource ds, AcquireMetrics m) {
+			HikariPoolMXBean mx = ds.getHikariPoolMXBean();
+			long n = m.count.sumThenReset();
+			long total = m.totalNanos.sumThenReset();
+			long max = m.maxNanos.getThenReset();
+			return new PoolStats(ds.getPoolName(),
+					mx == null ? 0 : mx.getActiveConnections(),
+					mx == null ? 0 : mx.getIdleConnections(),
+					mx == null ? 0 : mx.getTotalConnections(),
+					mx == null ? 0 : mx.getThreadsAwaitingConnection(),
+					n,
+					n == 0 ? 0 : total / (double) n / 1_000_000.0,
+					max / 1_000_000.0,
+					m.timeouts.sumThenReset());
 		}
 
 		@Override
-		public Logger getParentLogger() {
-			return Logger.getGlobal();
+		public String toString() {
+			return String.format(
+					"pool=%s activas=%d ociosas=%d total=%d esperando=%d adquiridas=%d adq_prom=%.2fms adq_max=%.2fms timeouts=%d",
+					pool, active, idle, total, waiting, acquired, acquireAvgMs, acquireMaxMs, timeouts);
 		}
 	}
 }
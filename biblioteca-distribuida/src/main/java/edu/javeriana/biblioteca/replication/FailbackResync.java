@@ -0,0 +1,357 @@
+package edu.javeriana.biblioteca.replication;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Resincronización secundaria → primaria para volver a la primaria (failback).
+ *
+ * Mientras se escribe en la secundaria, cada cambio aplicado deja su clave
+ * (loan_id o (branch_id, book_code)) en un conjunto de pendientes y en un
+ * archivo local (resync.log), así una caída del GA no pierde qué hay que copiar.
+ * Cuando la primaria vuelve:
+ * 1. Copia en línea: se lee el estado actual de las claves pendientes en la
+ *    secundaria y se escribe en la primaria por lotes (StateWriter), repitiendo
+ *    mientras sigan llegando cambios y queden más de resync.pause.threshold.
+ * 2. Pausa corta: se detienen las escrituras (DataSourceRouter.pauseWrites), se
+ *    copia el resto, se verifica que todas las claves tocadas coincidan en ambas
+ *    BD y solo entonces se conmuta a la primaria y se reanuda.
+ * Si algo falla se sigue en la secundaria y se reintenta en el siguiente chequeo.
+ */
+public class FailbackResync {
+
+	private final DataSourceRouter router;
+	private final ReplicationLog log; // claves pendientes en disco
+	private final int batchSize; // claves por lote de copia
+	private final int pauseThreshold; // pendientes con las que se pasa a la pausa
+	private final int maxPasses; // pasadas de copia en línea antes de pausar igual
+	private final long pauseTimeoutMs; // espera máxima por las escrituras en curso
+
+	// Claves tocadas en la secundaria: pendientes de copiar y todas (para verificar)
+	private final Object lock = new Object();
+	private final Set<Long> pendingLoans = new LinkedHashSet<>();
+	private final Set<List<String>> pendingInventory = new LinkedHashSet<>();
+	private final Set<Long> touchedLoans = new LinkedHashSet<>();
+	private final Set<List<String>> touchedInventory = new LinkedHashSet<>();
+	private long nextSeq = 1;
+
+	// Métricas
+	private final AtomicLong failbacks = new AtomicLong();
+	private final AtomicLong attempts = new AtomicLong();
+	private final AtomicLong verifyFailures = new AtomicLong();
+	private final AtomicLong loansCopied = new AtomicLong();
+	private final AtomicLong inventoryCopied = new AtomicLong();
+	private volatile String state = "inactivo";
+	private volatile long lastDurationMs;
+	private volatile long lastPauseMs;
+	private volatile int lastPasses;
+	private volatile long lastLoans;
+	private volatile long lastInventory;
+
+	public FailbackResync(DataSourceRouter router) {
+		this.router = router;
+		this.batchSize = Math.max(1, Integer.parseInt(AppConfig.get("resync.batch.size", "500")));
+		this.pauseThreshold = Integer.parseInt(AppConfig.get("resync.pause.threshold", "200"));
+		this.maxPasses = Math.max(1, Integer.parseInt(AppConfig.get("resync.max.passes", "10")));
+		this.pauseTimeoutMs = Long.parseLong(AppConfig.get("resync.pause.timeout.ms", "2000"));
+
+		String file = System.getProperty("resync.log.file", AppConfig.get("resync.log.file", "resync.log"));
+		boolean fsync = Boolean.parseBoolean(AppConfig.get("repl.log.fsync", "true"));
+		this.log = new ReplicationLog(Paths.get(file), fsync);
+
+		// Cambios hechos en la secundaria antes de un reinicio: hay que copiarlos
+		// antes de volver a escribir en la primaria
+		try {
+			List<ReplicationEntry> recovered = log.open();
+			for (ReplicationEntry e : recovered) {
+				addKeys(e.loan(), e.inventory());
+				nextSeq = e.seq() + 1;
+			}
+			if (!recovered.isEmpty()) {
+				System.out.printf("[Resync] %d cambios en secundaria sin copiar a la primaria (%s)%n",
+						recovered.size(), file);
+				router.switchToSecondary();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("No se pudo abrir el log de resincronización " + file, e);
+		}
+	}
+
+	public void track(ReplicationEntry.Op op, LoanState loan, InventoryState inventory) {
+		// Registra un cambio confirmado en la secundaria mientras la primaria está fuera
+		long record = 0;
+		synchronized (lock) {
+			ReplicationEntry e = new ReplicationEntry(nextSeq++, System.currentTimeMillis(), 0, op, loan, inventory);
+			try {
+				record = log.append(e);
+			} catch (IOException ex) {
+				System.err.println("[Resync] Error escribiendo log de resincronización: " + ex.getMessage());
+			}
+			addKeys(loan, inventory);
+		}
+		try {
+			log.sync(record);
+		} catch (IOException ex) {
+			System.err.println("[Resync] Error sincronizando log de resincronización: " + ex.getMessage());
+		}
+	}
+
+	private void addKeys(LoanState loan, InventoryState inventory) {
+		if (loan != null) {
+			pendingLoans.add(loan.loanId());
+			touchedLoans.add(loan.loanId());
+		}
+		if (inventory != null) {
+			List<String> key = List.of(inventory.branchId(), inventory.bookCode());
+			pendingInventory.add(key);
+			touchedInventory.add(key);
+		}
+	}
+
+	public int pending() {
+		synchronized (lock) {
+			return pendingLoans.size() + pendingInventory.size();
+		}
+	}
+
+	/**
+	 * Intenta volver a la primaria. Devuelve true si se conmutó; false si la
+	 * resincronización no terminó (se sigue en la secundaria).
+	 */
+	public boolean failback() {
+		attempts.incrementAndGet();
+		long t0 = System.nanoTime();
+		long loans0 = loansCopied.get();
+		long inv0 = inventoryCopied.get();
+		int passes = 0;
+		System.out.printf("[Resync] Primaria disponible: resincronizando %d claves desde la secundaria%n", pending());
+
+		try {
+			// 1. Copia en línea: las escrituras siguen en la secundaria
+			state = "copiando";
+			while (passes < maxPasses && pending() > pauseThreshold) {
+				copyPending();
+				passes++;
+			}
+
+			// 2. Pausa de escrituras: copiar el resto, verificar y conmutar
+			state = "pausa";
+			long p0 = System.nanoTime();
+			if (!router.pauseWrites(pauseTimeoutMs)) {
+				System.err.println("[Resync] No se pudo pausar las escrituras; se reintenta luego");
+				return false;
+			}
+			try {
+				copyPending();
+				passes++;
+				int mismatches = verify();
+				if (mismatches > 0) {
+					verifyFailures.incrementAndGet();
+					System.err.printf("[Resync] Verificación fallida: %d filas distintas entre secundaria y primaria;"
+							+ " se sigue en la secundaria%n", mismatches);
+					return false;
+				}
+				clear();
+				router.switchToPrimary();
+			} finally {
+				router.resumeWrites();
+				lastPauseMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - p0);
+			}
+
+			failbacks.incrementAndGet();
+			lastPasses = passes;
+			lastDurationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+			lastLoans = loansCopied.get() - loans0;
+			lastInventory = inventoryCopied.get() - inv0;
+			System.out.printf("[Resync] Failback completo en %d ms (pausa %d ms, %d pasadas, %d préstamos, %d inventarios)%n",
+					lastDurationMs, lastPauseMs, lastPasses, lastLoans, lastInventory);
+			return true;
+
+		} catch (SQLException e) {
+			System.err.println("[Resync] Error copiando a la primaria: " + e.getMessage());
+			return false;
+		} finally {
+			state = "inactivo";
+		}
+	}
+
+	private void copyPending() throws SQLException {
+		// Toma las claves pendientes y copia su estado actual por lotes; si un lote
+		// falla, sus claves (y las que no se alcanzaron) vuelven a quedar pendientes
+		List<Long> loans;
+		List<List<String>> inventory;
+		synchronized (lock) {
+			loans = new ArrayList<>(pendingLoans);
+			inventory = new ArrayList<>(pendingInventory);
+			pendingLoans.clear();
+			pendingInventory.clear();
+		}
+		int i = 0;
+		int j = 0;
+		try {
+			while (i < loans.size() || j < inventory.size()) {
+				List<Long> loanBatch = loans.subList(i, Math.min(loans.size(), i + batchSize));
+				List<List<String>> invBatch = inventory.subList(j, Math.min(inventory.size(), j + batchSize));
+				copyBatch(loanBatch, invBatch);
+				i += loanBatch.size();
+				j += invBatch.size();
+			}
+		} catch (SQLException e) {
+			synchronized (lock) {
+				pendingLoans.addAll(loans.subList(i, loans.size()));
+				pendingInventory.addAll(inventory.subList(j, inventory.size()));
+			}
+			throw e;
+		}
+	}
+
+	private void copyBatch(List<Long> loanIds, List<List<String>> invKeys) throws SQLException {
+		// Lee de la secundaria y escribe en la primaria en una transacción
+		List<LoanState> loans;
+		List<InventoryState> inventory;
+		try (Connection s = router.secondary().getConnection()) {
+			loans = readLoans(s, loanIds);
+			inventory = readInventory(s, invKeys);
+		}
+		try (Connection p = router.primary().getConnection()) {
+			p.setAutoCommit(false);
+			try {
+				StateWriter.Counts inv = StateWriter.upsertInventory(p, inventory);
+				StateWriter.Counts ln = StateWriter.upsertLoans(p, loans);
+				p.commit();
+				inventoryCopied.addAndGet(inv.written());
+				loansCopied.addAndGet(ln.written());
+				if (ln.conflicts() > 0) {
+					System.err.printf("[Resync] %d loan_id de la secundaria ya son de otro préstamo en la primaria;"
+							+ " no se pisan (la verificación no pasará)%n", ln.conflicts());
+				}
+			} catch (SQLException e) {
+				p.rollback();
+				throw e;
+			}
+		}
+	}
+
+	private int verify() throws SQLException {
+		// Compara en ambas BD el estado de todas las claves tocadas durante el failover
+		List<Long> loans;
+		List<List<String>> inventory;
+		synchronized (lock) {
+			loans = new ArrayList<>(touchedLoans);
+			inventory = new ArrayList<>(touchedInventory);
+		}
+		int mismatches = 0;
+		try (Connection s = router.secondary().getConnection();
+				Connection p = router.primary().getConnection()) {
+			for (int i = 0; i < loans.size(); i += batchSize) {
+				List<Long> batch = loans.subList(i, Math.min(loans.size(), i + batchSize));
+				mismatches += diff(readLoans(s, batch), readLoans(p, batch), LoanState::loanId);
+			}
+			for (int i = 0; i < inventory.size(); i += batchSize) {
+				List<List<String>> batch = inventory.subList(i, Math.min(inventory.size(), i + batchSize));
+				mismatches += diff(readInventory(s, batch), readInventory(p, batch),
+						inv -> List.of(inv.branchId(), inv.bookCode()));
+			}
+		}
+		return mismatches;
+	}
+
+	private static <K, V> int diff(List<V> expected, List<V> actual, Function<V, K> key) {
+		Map<K, V> byKey = new HashMap<>();
+		for (V v : actual) {
+			byKey.put(key.apply(v), v);
+		}
+		int n = 0;
+		for (V v : expected) {
+			if (!Objects.equals(v, byKey.get(key.apply(v)))) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private void clear() {
+		// Resincronización terminada: se olvida lo registrado y se vacía el archivo
+		synchronized (lock) {
+			pendingLoans.clear();
+			pendingInventory.clear();
+			touchedLoans.clear();
+			touchedInventory.clear();
+			try {
+				log.rewrite(List.of());
+			} catch (IOException e) {
+				System.err.println("[Resync] Error vaciando log de resincronización: " + e.getMessage());
+			}
+		}
+	}
+
+	private static List<LoanState> readLoans(Connection c, List<Long> ids) throws SQLException {
+		List<LoanState> out = new ArrayList<>(ids.size());
+		if (ids.isEmpty()) {
+			return out;
+		}
+		try (PreparedStatement ps = c.prepareStatement(
+				"SELECT " + LoanState.COLUMNS + " FROM loans WHERE loan_id = ANY(?::bigint[])")) {
+			ps.setArray(1, c.createArrayOf("bigint", ids.toArray()));
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					out.add(LoanState.read(rs, 1));
+				}
+			}
+		}
+		return out;
+	}
+
+	private static List<InventoryState> readInventory(Connection c, List<List<String>> keys) throws SQLException {
+		List<InventoryState> out = new ArrayList<>(keys.size());
+		if (keys.isEmpty()) {
+			return out;
+		}
+		try (PreparedStatement ps = c.prepareStatement(
+				"SELECT " + InventoryState.columns("bi") + " FROM branch_inventory bi " +
+						"JOIN unnest(?::text[], ?::text[]) AS v(branch_id, book_code) " +
+						"  ON bi.branch_id=v.branch_id AND bi.book_code=v.book_code")) {
+			ps.setArray(1, c.createArrayOf("text", keys.stream().map(k -> k.get(0)).toArray()));
+			ps.setArray(2, c.createArrayOf("text", keys.stream().map(k -> k.get(1)).toArray()));
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					out.add(InventoryState.read(rs, 1));
+				}
+			}
+		}
+		return out;
+	}
+
+	public String stats() {
+		// Resumen para los logs de estadísticas del GA
+		return String.format(
+				"estado=%s pendientes=%d failbacks=%d intentos=%d verif_fallidas=%d copiados(prestamos=%d inventario=%d)"
+						+ " | ultimo: duracion=%dms pausa=%dms pasadas=%d prestamos=%d inventario=%d",
+				state, pending(), failbacks.get(), attempts.get(), verifyFailures.get(), loansCopied.get(),
+				inventoryCopied.get(), lastDurationMs, lastPauseMs, lastPasses, lastLoans, lastInventory);
+	}
+
+	public void close() {
+		try {
+			log.close();
+		} catch (IOException e) {
+			System.err.println("[Resync] Error cerrando log de resincronización: " + e.getMessage());
+		}
+	}
+}
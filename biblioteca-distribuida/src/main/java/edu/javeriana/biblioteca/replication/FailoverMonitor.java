@@ -1,5 +1,7 @@
 package edu.javeriana.biblioteca.replication;
 
+import edu.javeriana.biblioteca.common.AppConfig;
+
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -8,14 +10,23 @@ import java.util.concurrent.*;
 public class FailoverMonitor {
 
 	private final DataSourceRouter router; // Router que gestiona primaria/secundaria
+	private final FailbackResync resync; // copia secundaria → primaria antes de volver
+	private final boolean autoFailback; // volver solo a la primaria cuando se recupera
 	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(); // hilo periódico
 	private final long intervalMs; // intervalo entre chequeos
 	private boolean once = false; // marca para evitar múltiples mensajes de "restauración"
 
 	public FailoverMonitor(DataSourceRouter router, long intervalMs) {
+		this(router, intervalMs, null);
+	}
+
+	public FailoverMonitor(DataSourceRouter router, long intervalMs, FailbackResync resync) {
 		// Guarda la configuración necesaria
 		this.router = router;
 		this.intervalMs = intervalMs;
+		this.resync = resync;
+		this.autoFailback = resync != null
+				&& Boolean.parseBoolean(AppConfig.get("db.failback.auto", "true"));
 	}
 
 	public void start() {
@@ -37,11 +48,18 @@ public class FailoverMonitor {
 				ps.execute(); // si falla, cae al catch
 			}
 
-			// Si la primaria "volvió", solo reportamos una vez
-			if (!router.isPrimaryUp() && !once) {
-				once = true;
-				System.out.println(
-						"[FailoverMonitor] Primaria volvió, pero mantenemos escritura en secundaria (no auto-failback).");
+			if (!router.isPrimaryUp()) {
+				if (autoFailback) {
+					// Primaria de vuelta: resincronizar y conmutar (si falla, se reintenta en el próximo chequeo)
+					if (resync.failback()) {
+						once = false;
+					}
+				} else if (!once) {
+					// Sin failback automático solo reportamos una vez
+					once = true;
+					System.out.println(
+							"[FailoverMonitor] Primaria volvió, pero mantenemos escritura en secundaria (no auto-failback).");
+				}
 			}
 
 		} catch (Exception e) {
@@ -0,0 +1,27 @@
+package edu.javeriana.biblioteca.replication;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Estado absoluto de una fila de branch_inventory tal como quedó en la primaria.
+ */
+public record InventoryState(String branchId, String bookCode, int totalCopies, int availableCopies) {
+
+	// Columnas en el orden que espera read(); útil para RETURNING y SELECT
+	public static final String COLUMNS = "branch_id, book_code, total_copies, available_copies";
+
+	public static String columns(String alias) {
+		// Mismas columnas calificadas con un alias de tabla
+		return COLUMNS.replaceAll("(\\w+)", alias + ".$1");
+	}
+
+	public static InventoryState read(ResultSet rs, int first) throws SQLException {
+		// Lee las columnas de COLUMNS a partir de la posición first
+		return new InventoryState(
+				rs.getString(first),
+				rs.getString(first + 1),
+				rs.getInt(first + 2),
+				rs.getInt(first + 3));
+	}
+}
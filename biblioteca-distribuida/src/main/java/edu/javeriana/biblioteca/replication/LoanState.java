@@ -0,0 +1,34 @@
+package edu.javeriana.biblioteca.replication;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * Estado completo de una fila de loans tal como quedó en la primaria.
+ * Se replica por loan_id, así ambas BD comparten los mismos ids.
+ */
+public record LoanState(long loanId, String userId, String bookCode, String branchId,
+		LocalDate startDate, LocalDate dueDate, int renewals, String status) {
+
+	// Columnas en el orden que espera read(); útil para RETURNING y SELECT
+	public static final String COLUMNS = "loan_id, user_id, book_code, branch_id, start_date, due_date, renewals, status";
+
+	public static String columns(String alias) {
+		// Mismas columnas calificadas con un alias de tabla
+		return COLUMNS.replaceAll("(\\w+)", alias + ".$1");
+	}
+
+	public static LoanState read(ResultSet rs, int first) throws SQLException {
+		// Lee las columnas de COLUMNS a partir de la posición first
+		return new LoanState(
+				rs.getLong(first),
+				rs.getString(first + 1),
+				rs.getString(first + 2),
+				rs.getString(first + 3),
+				rs.getDate(first + 4).toLocalDate(),
+				rs.getDate(first + 5).toLocalDate(),
+				rs.getInt(first + 6),
+				rs.getString(first + 7));
+	}
+}
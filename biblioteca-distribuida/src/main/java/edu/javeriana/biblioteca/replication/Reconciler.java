@@ -0,0 +1,411 @@
+package edu.javeriana.biblioteca.replication;
+
+import edu.javeriana.biblioteca.common.AppConfig;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reconciliación de branch_inventory y loans entre BDPrimaria y BDSecundaria.
+ *
+ * Cada tabla se parte por sede y por rango de book_code (recon.partition.codes
+ * códigos del catálogo por partición). De cada partición se calcula en ambas BD,
+ * en paralelo, la cantidad de filas y un md5 de sus filas ordenadas. Solo las
+ * particiones con hash distinto se parten en mitades hasta llegar a
+ * recon.leaf.codes códigos; ahí se leen las filas de ambos lados y se comparan.
+ *
+ * Las filas faltantes o distintas en el destino se reparan con el estado del
+ * origen en lotes de recon.repair.batch (StateWriter, una transacción corta por
+ * lote con lock_timeout). Las filas que solo están en el destino se reportan y
+ * solo se borran con --delete. Las lecturas no toman locks de fila, así que se
+ * puede correr con el sistema en línea; una fila que cambia durante la pasada
+ * puede aparecer como distinta por el retraso de la replicación, y repararla
+ * con el estado del origen es inofensivo.
+ *
+ * Uso: mvn exec:java -Dexec.mainClass="edu.javeriana.biblioteca.replication.Reconciler"
+ * -Dexec.args="[--from=primaria|secundaria] [--dry-run] [--delete]"
+ */
+public class Reconciler {
+
+	/** Tabla a reconciliar: cómo se resume y cómo se leen sus filas */
+	private enum Table {
+		INVENTORY("branch_inventory",
+				"concat_ws('|', book_code, total_copies, available_copies)", "book_code"),
+		LOANS("loans",
+				"concat_ws('|', loan_id, user_id, book_code, start_date, due_date, renewals, status)", "loan_id");
+
+		final String name;
+		final String digestSql;
+		final String rowsSql;
+
+		Table(String name, String rowText, String orderBy) {
+			this.name = name;
+			String where = " FROM " + name + " WHERE branch_id=? AND book_code COLLATE \"C\" BETWEEN ? AND ?";
+			this.digestSql = "SELECT count(*), md5(COALESCE(string_agg(" + rowText + ", ',' ORDER BY " + orderBy
+					+ "), ''))" + where;
+			this.rowsSql = "SELECT " + (name.equals("loans") ? LoanState.COLUMNS : InventoryState.COLUMNS) + where;
+		}
+	}
+
+	/** Partición: una sede y los códigos del catálogo codes[lo..hi] */
+	private record Range(Table table, String branch, int lo, int hi) {
+	}
+
+	private record Digest(long rows, String md5) {
+	}
+
+	private final DataSource source;
+	private final DataSource target;
+	private final String sourceName;
+	private final String targetName;
+	private final boolean dryRun;
+	private final boolean delete;
+	private final int leafCodes;
+	private final int repairBatch;
+	private final long lockTimeoutMs;
+	private final ExecutorService partitions; // una tarea por partición de primer nivel
+	private final ExecutorService digests; // hashes de ambos lados en paralelo
+
+	private List<String> codes; // catálogo ordenado (collation "C")
+
+	// Métricas
+	private final AtomicLong partitionsTotal = new AtomicLong();
+	private final AtomicLong partitionsDiffer = new AtomicLong();
+	private final AtomicLong leaves = new AtomicLong();
+	private final AtomicLong rowsScanned = new AtomicLong();
+	private final AtomicLong missing = new AtomicLong(); // solo en origen
+	private final AtomicLong different = new AtomicLong(); // en ambos, con otro estado
+	private final AtomicLong extra = new AtomicLong(); // solo en destino
+	private final AtomicLong repaired = new AtomicLong();
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	Reconciler(DataSource source, String sourceName, DataSource target, String targetName,
+			boolean dryRun, boolean delete) {
+		this.source = source;
+		this.target = target;
+		this.sourceName = sourceName;
+		this.targetName = targetName;
+		this.dryRun = dryRun;
+		this.delete = delete;
+		this.leafCodes = Math.max(1, Integer.parseInt(AppConfig.get("recon.leaf.codes", "8")));
+		this.repairBatch = Math.max(1, Integer.parseInt(AppConfig.get("recon.repair.batch", "500")));
+		this.lockTimeoutMs = Long.parseLong(AppConfig.get("recon.lock.timeout.ms", "2000"));
+		int threads = Math.max(1, Integer.parseInt(AppConfig.get("recon.threads", "4")));
+		this.partitions = Executors.newFixedThreadPool(threads);
+		this.digests = Executors.newFixedThreadPool(threads * 2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean fromSecondary = false;
+		boolean dryRun = false;
+		boolean delete = false;
+		for (String a : args) {
+			if (a.equalsIgnoreCase("--from=secundaria")) {
+				fromSecondary = true;
+			} else if (a.equalsIgnoreCase("--from=primaria")) {
+				fromSecondary = false;
+			} else if (a.equalsIgnoreCase("--dry-run")) {
+				dryRun = true;
+			} else if (a.equalsIgnoreCase("--delete")) {
+				delete = true;
+			} else {
+				System.err.println("[Recon] Argumento desconocido: " + a);
+				System.exit(2);
+			}
+		}
+
+		DataSourceRouter router = new DataSourceRouter(
+				AppConfig.get("db.primary.url", "jdbc:postgresql://localhost:5432/BDPrimaria"),
+				AppConfig.get("db.primary.user", "postgres"),
+				AppConfig.get("db.primary.pass", "123"),
+				AppConfig.get("db.secondary.url", "jdbc:postgresql://localhost:5432/BDSecundaria"),
+				AppConfig.get("db.secondary.user", "postgres"),
+				AppConfig.get("db.secondary.pass", "123"));
+
+		Reconciler r = fromSecondary
+				? new Reconciler(router.secondary(), "secundaria", router.primary(), "primaria", dryRun, delete)
+				: new Reconciler(router.primary(), "primaria", router.secondary(), "secundaria", dryRun, delete);
+		try {
+			r.run();
+		} finally {
+			r.shutdown();
+			router.close();
+		}
+	}
+
+	void run() throws Exception {
+		long t0 = System.nanoTime();
+		int partitionCodes = Math.max(1, Integer.parseInt(AppConfig.get("recon.partition.codes", "100")));
+		codes = loadCodes();
+		List<String> branches = loadBranches();
+		System.out.printf("[Recon] %s -> %s: %d sedes, %d códigos, particiones de %d códigos%s%n",
+				sourceName, targetName, branches.size(), codes.size(), partitionCodes,
+				dryRun ? " (solo reporte)" : "");
+
+		List<Future<?>> tasks = new ArrayList<>();
+		for (Table table : Table.values()) {
+			for (String branch : branches) {
+				for (int lo = 0; lo < codes.size(); lo += partitionCodes) {
+					Range range = new Range(table, branch, lo, Math.min(codes.size(), lo + partitionCodes) - 1);
+					partitionsTotal.incrementAndGet();
+					tasks.add(partitions.submit(() -> reconcilePartition(range)));
+				}
+			}
+		}
+		for (Future<?> f : tasks) {
+			f.get();
+		}
+
+		long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+		System.out.printf("[Recon] Terminado en %d ms: particiones=%d distintas=%d hojas=%d filas_escaneadas=%d%n",
+				ms, partitionsTotal.get(), partitionsDiffer.get(), leaves.get(), rowsScanned.get());
+		System.out.printf("[Recon] Filas distintas=%d (faltantes=%d con_otro_estado=%d solo_en_%s=%d) "
+				+ "reparadas=%d borradas=%d errores=%d%n",
+				missing.get() + different.get() + extra.get(), missing.get(), different.get(), targetName,
+				extra.get(), repaired.get(), deleted.get(), errors.get());
+	}
+
+	void shutdown() {
+		partitions.shutdownNow();
+		digests.shutdownNow();
+	}
+
+	private void reconcilePartition(Range range) {
+		// Una partición de primer nivel; las diferencias se reparan al terminarla
+		List<LoanState> loans = new ArrayList<>();
+		List<InventoryState> inventory = new ArrayList<>();
+		List<Object> extras = new ArrayList<>();
+		try {
+			boolean differs = descend(range, loans, inventory, extras, true);
+			if (differs) {
+				partitionsDiffer.incrementAndGet();
+			}
+			repair(loans, inventory, extras);
+		} catch (Exception e) {
+			errors.incrementAndGet();
+			System.err.printf("[Recon] Error en %s sede=%s %s..%s: %s%n", range.table().name, range.branch(),
+					codes.get(range.lo()), codes.get(range.hi()), e.getMessage());
+		}
+	}
+
+	private boolean descend(Range range, List<LoanState> loans, List<InventoryState> inventory,
+			List<Object> extras, boolean top) throws Exception {
+		// Compara hashes; si difieren, parte el rango en mitades o compara filas en la hoja
+		CompletableFuture<Digest> src = CompletableFuture.supplyAsync(() -> digest(source, range), digests);
+		CompletableFuture<Digest> dst = CompletableFuture.supplyAsync(() -> digest(target, range), digests);
+		Digest s = src.get();
+		Digest d = dst.get();
+		if (top) {
+			rowsScanned.addAndGet(s.rows() + d.rows());
+		}
+		if (s.equals(d)) {
+			return false;
+		}
+
+		int size = range.hi() - range.lo() + 1;
+		if (size <= leafCodes) {
+			compareRows(range, loans, inventory, extras);
+			return true;
+		}
+		int mid = range.lo() + size / 2;
+		descend(new Range(range.table(), range.branch(), range.lo(), mid - 1), loans, inventory, extras, false);
+		descend(new Range(range.table(), range.branch(), mid, range.hi()), loans, inventory, extras, false);
+		return true;
+	}
+
+	private Digest digest(DataSource ds, Range range) {
+		try (Connection c = ds.getConnection();
+				PreparedStatement ps = c.prepareStatement(range.table().digestSql)) {
+			bind(ps, range);
+			try (ResultSet rs = ps.executeQuery()) {
+				rs.next();
+				return new Digest(rs.getLong(1), rs.getString(2));
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	private void compareRows(Range range, List<LoanState> loans, List<InventoryState> inventory,
+			List<Object> extras) throws SQLException {
+		// Hoja: filas de ambos lados por clave
+		leaves.incrementAndGet();
+		Map<Object, Object> src = readRows(source, range);
+		Map<Object, Object> dst = readRows(target, range);
+		rowsScanned.addAndGet(src.size() + dst.size());
+
+		for (Map.Entry<Object, Object> e : src.entrySet()) {
+			Object other = dst.remove(e.getKey());
+			if (Objects.equals(e.getValue(), other)) {
+				continue;
+			}
+			(other == null ? missing : different).incrementAndGet();
+			if (e.getValue() instanceof LoanState l) {
+				loans.add(l);
+			} else {
+				inventory.add((InventoryState) e.getValue());
+			}
+		}
+		extra.addAndGet(dst.size());
+		extras.addAll(dst.values());
+	}
+
+	private Map<Object, Object> readRows(DataSource ds, Range range) throws SQLException {
+		Map<Object, Object> rows = new LinkedHashMap<>();
+		try (Connection c = ds.getConnection();
+				PreparedStatement ps = c.prepareStatement(range.table().rowsSql)) {
+			bind(ps, range);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					if (range.table() == Table.LOANS) {
+						LoanState l = LoanState.read(rs, 1);
+						rows.put(l.loanId(), l);
+					} else {
+						InventoryState inv = InventoryState.read(rs, 1);
+						rows.put(List.of(inv.branchId(), inv.bookCode()), inv);
+					}
+				}
+			}
+		}
+		return rows;
+	}
+
+	private void bind(PreparedStatement ps, Range range) throws SQLException {
+		ps.setString(1, range.branch());
+		ps.setString(2, codes.get(range.lo()));
+		ps.setString(3, codes.get(range.hi()));
+	}
+
+	private void repair(List<LoanState> loans, List<InventoryState> inventory, List<Object> extras)
+			throws SQLException {
+		// Impone el estado del origen en el destino, en lotes con transacción corta
+		if (dryRun) {
+			return;
+		}
+		for (int i = 0; i < inventory.size(); i += repairBatch) {
+			List<InventoryState> batch = inventory.subList(i, Math.min(inventory.size(), i + repairBatch));
+			inTargetTx(c -> repaired.addAndGet(StateWriter.upsertInventory(c, batch).written()));
+		}
+		for (int i = 0; i < loans.size(); i += repairBatch) {
+			List<LoanState> batch = loans.subList(i, Math.min(loans.size(), i + repairBatch));
+			inTargetTx(c -> repaired.addAndGet(StateWriter.upsertLoans(c, batch, true).written()));
+		}
+		if (delete && !extras.isEmpty()) {
+			for (int i = 0; i < extras.size(); i += repairBatch) {
+				List<Object> batch = extras.subList(i, Math.min(extras.size(), i + repairBatch));
+				inTargetTx(c -> deleted.addAndGet(deleteRows(c, batch)));
+			}
+		}
+	}
+
+	private static int deleteRows(Connection c, List<Object> rows) throws SQLException {
+		// Filas que solo existen en el destino
+		List<Long> loanIds = new ArrayList<>();
+		List<String> branches = new ArrayList<>();
+		List<String> books = new ArrayList<>();
+		for (Object o : rows) {
+			if (o instanceof LoanState l) {
+				loanIds.add(l.loanId());
+			} else if (o instanceof InventoryState inv) {
+				branches.add(inv.branchId());
+				books.add(inv.bookCode());
+			}
+		}
+		int n = 0;
+		if (!loanIds.isEmpty()) {
+			try (PreparedStatement ps = c.prepareStatement("DELETE FROM loans WHERE loan_id = ANY(?::bigint[])")) {
+				ps.setArray(1, c.createArrayOf("bigint", loanIds.toArray()));
+				n += ps.executeUpdate();
+			}
+		}
+		if (!branches.isEmpty()) {
+			try (PreparedStatement ps = c.prepareStatement(
+					"DELETE FROM branch_inventory bi USING unnest(?::text[], ?::text[]) AS v(branch_id, book_code) " +
+							"WHERE bi.branch_id=v.branch_id AND bi.book_code=v.book_code")) {
+				ps.setArray(1, c.createArrayOf("text", branches.toArray()));
+				ps.setArray(2, c.createArrayOf("text", books.toArray()));
+				n += ps.executeUpdate();
+			}
+		}
+		return n;
+	}
+
+	@FunctionalInterface
+	private interface TxWork {
+		void run(Connection c) throws SQLException;
+	}
+
+	private void inTargetTx(TxWork work) throws SQLException {
+		// Transacción corta en el destino: si una fila está bloqueada se falla rápido
+		try (Connection c = target.getConnection()) {
+			c.setAutoCommit(false);
+			try {
+				try (Statement st = c.createStatement()) {
+					st.execute("SET LOCAL lock_timeout = " + lockTimeoutMs);
+				}
+				work.run(c);
+				c.commit();
+			} catch (SQLException e) {
+				c.rollback();
+				throw e;
+			}
+		}
+	}
+
+	private List<String> loadCodes() throws SQLException {
+		// Catálogo de ambas BD, en el mismo orden que usan los BETWEEN
+		Set<String> all = new HashSet<>();
+		for (DataSource ds : List.of(source, target)) {
+			try (Connection c = ds.getConnection();
+					PreparedStatement ps = c.prepareStatement("SELECT code FROM books");
+					ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					all.add(rs.getString(1));
+				}
+			}
+		}
+		List<String> sorted = new ArrayList<>(all);
+		sorted.sort(Reconciler::compareC);
+		return sorted;
+	}
+
+	private List<String> loadBranches() throws SQLException {
+		Set<String> all = new LinkedHashSet<>();
+		for (DataSource ds : List.of(source, target)) {
+			try (Connection c = ds.getConnection();
+					PreparedStatement ps = c.prepareStatement("SELECT id FROM branches ORDER BY id");
+					ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					all.add(rs.getString(1));
+				}
+			}
+		}
+		return new ArrayList<>(all);
+	}
+
+	private static int compareC(String a, String b) {
+		// Orden de bytes UTF-8, igual que COLLATE "C" en PostgreSQL
+		return Arrays.compareUnsigned(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+	}
+}
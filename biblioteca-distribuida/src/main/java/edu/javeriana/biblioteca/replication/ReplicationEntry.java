@@ -0,0 +1,31 @@
+package edu.javeriana.biblioteca.replication;
+
+/**
+ * Cambio confirmado en la primaria, pendiente de aplicar en la secundaria.
+ * seq es monotónico y define el orden de aplicación; lane es el carril (y la
+ * fila de replication_checkpoint) asignado al anexarlo. Lleva el estado con el
+ * que quedaron las filas (préstamo y/o inventario), no el delta aplicado.
+ */
+public record ReplicationEntry(long seq, long timestampMs, int lane, Op op, LoanState loan,
+		InventoryState inventory) {
+
+	public enum Op {
+		RETURN, RENEWAL, NEW_LOAN;
+
+		private static final Op[] VALUES = values();
+
+		static Op fromCode(int code) {
+			if (code < 0 || code >= VALUES.length)
+				throw new IllegalArgumentException("Operación de replicación desconocida: " + code);
+			return VALUES[code];
+		}
+	}
+
+	public String branchId() {
+		return loan != null ? loan.branchId() : inventory.branchId();
+	}
+
+	public String bookCode() {
+		return loan != null ? loan.bookCode() : inventory.bookCode();
+	}
+}
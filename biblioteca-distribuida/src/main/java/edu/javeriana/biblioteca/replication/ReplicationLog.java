@@ -0,0 +1,229 @@
+package edu.javeriana.biblioteca.replication;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Archivo local de solo-anexar con los cambios a replicar.
+ *
+ * Registro: [largo int][crc32 int][seq long][ts long][lane u16][op byte][flags byte]
+ * [préstamo si flags&1][inventario si flags&2], cada texto como u16 de largo +
+ * UTF-8 y cada fecha como día epoch. Al abrir se leen los registros válidos y
+ * una cola incompleta (caída a mitad de escritura) se trunca.
+ *
+ * append solo escribe y devuelve un número de registro; sync(n) espera a que
+ * ese registro esté en disco. Un solo force cubre todo lo anexado hasta ese
+ * momento, así los hilos que anexan a la vez comparten el fsync.
+ */
+final class ReplicationLog implements AutoCloseable {
+
+	private static final int HEADER = 8; // largo + crc
+	private static final int MAX_RECORD = 64 * 1024;
+
+	private final Path file;
+	private final boolean fsync;
+	private final ByteBuffer buf = ByteBuffer.allocate(MAX_RECORD);
+	private final CRC32 crc = new CRC32();
+	private FileChannel channel;
+	private long appended; // registros escritos (protegido por this)
+
+	private final Object syncLock = new Object();
+	private long synced; // registros ya en disco (protegido por syncLock)
+	private long forces;
+
+	ReplicationLog(Path file, boolean fsync) {
+		this.file = file;
+		this.fsync = fsync;
+	}
+
+	synchronized List<ReplicationEntry> open() throws IOException {
+		// Lee los registros existentes y deja el canal listo para anexar
+		List<ReplicationEntry> entries = new ArrayList<>();
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long valid = 0;
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		while (valid + HEADER <= size) {
+			header.clear();
+			channel.read(header, valid);
+			header.flip();
+			int len = header.getInt();
+			int sum = header.getInt();
+			if (len <= 0 || len > MAX_RECORD - HEADER || valid + HEADER + len > size)
+				break;
+			ByteBuffer body = ByteBuffer.allocate(len);
+			channel.read(body, valid + HEADER);
+			body.flip();
+			crc.reset();
+			crc.update(body.duplicate());
+			if ((int) crc.getValue() != sum)
+				break;
+			entries.add(decode(body));
+			valid += HEADER + len;
+		}
+		if (valid < size) {
+			System.err.printf("[ReplicationLog] Cola incompleta en %s: se truncan %d bytes%n", file, size - valid);
+			channel.truncate(valid);
+		}
+		channel.position(valid);
+		return entries;
+	}
+
+	synchronized long append(ReplicationEntry e) throws IOException {
+		// Anexa un registro sin forzarlo a disco; devuelve su número para sync
+		buf.clear();
+		encodeRecord(e, buf);
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		return ++appended;
+	}
+
+	void sync(long record) throws IOException {
+		// Con fsync, vuelve cuando el registro ya está en disco. Quien entra primero
+		// fuerza todo lo escrito hasta ahí; los que esperaban detrás suelen quedar cubiertos
+		if (!fsync)
+			return;
+		synchronized (syncLock) {
+			while (synced < record) {
+				long upTo;
+				FileChannel ch;
+				synchronized (this) {
+					upTo = appended;
+					ch = channel;
+				}
+				try {
+					ch.force(false);
+					forces++;
+					synced = upTo;
+				} catch (ClosedChannelException e) {
+					// rewrite cambió el archivo (el nuevo ya quedó en disco): otra vuelta con el canal nuevo
+				}
+			}
+		}
+	}
+
+	long forces() {
+		synchronized (syncLock) {
+			return forces;
+		}
+	}
+
+	synchronized void rewrite(List<ReplicationEntry> keep) throws IOException {
+		// Compacta: reescribe el archivo solo con keep y lo reemplaza de forma atómica
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (ReplicationEntry e : keep) {
+				buf.clear();
+				encodeRecord(e, buf);
+				buf.flip();
+				while (buf.hasRemaining())
+					out.write(buf);
+			}
+			out.force(true);
+		}
+		channel.close();
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+	}
+
+	synchronized long size() throws IOException {
+		return channel.size();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null)
+			channel.close();
+	}
+
+	private void encodeRecord(ReplicationEntry e, ByteBuffer out) {
+		int start = out.position();
+		out.position(start + HEADER);
+		out.putLong(e.seq());
+		out.putLong(e.timestampMs());
+		out.putShort((short) e.lane());
+		out.put((byte) e.op().ordinal());
+		LoanState l = e.loan();
+		InventoryState inv = e.inventory();
+		out.put((byte) ((l != null ? 1 : 0) | (inv != null ? 2 : 0)));
+		if (l != null) {
+			out.putLong(l.loanId());
+			putString(out, l.userId());
+			putString(out, l.bookCode());
+			putString(out, l.branchId());
+			out.putLong(l.startDate().toEpochDay());
+			out.putLong(l.dueDate().toEpochDay());
+			out.putInt(l.renewals());
+			putString(out, l.status());
+		}
+		if (inv != null) {
+			putString(out, inv.branchId());
+			putString(out, inv.bookCode());
+			out.putInt(inv.totalCopies());
+			out.putInt(inv.availableCopies());
+		}
+		int end = out.position();
+		int len = end - start - HEADER;
+
+		crc.reset();
+		crc.update(out.array(), out.arrayOffset() + start + HEADER, len);
+		out.putInt(start, len);
+		out.putInt(start + 4, (int) crc.getValue());
+	}
+
+	private static ReplicationEntry decode(ByteBuffer in) {
+		long seq = in.getLong();
+		long ts = in.getLong();
+		int lane = in.getShort() & 0xFFFF;
+		ReplicationEntry.Op op = ReplicationEntry.Op.fromCode(in.get());
+		int flags = in.get();
+		LoanState loan = null;
+		InventoryState inv = null;
+		if ((flags & 1) != 0) {
+			loan = new LoanState(in.getLong(), getString(in), getString(in), getString(in),
+					LocalDate.ofEpochDay(in.getLong()), LocalDate.ofEpochDay(in.getLong()), in.getInt(),
+					getString(in));
+		}
+		if ((flags & 2) != 0) {
+			inv = new InventoryState(getString(in), getString(in), in.getInt(), in.getInt());
+		}
+		return new ReplicationEntry(seq, ts, lane, op, loan, inv);
+	}
+
+	private static void putString(ByteBuffer out, String s) {
+		// null viaja como largo 0xFFFF
+		if (s == null) {
+			out.putShort((short) 0xFFFF);
+			return;
+		}
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		if (b.length >= 0xFFFF)
+			throw new IllegalArgumentException("Campo demasiado largo para el log de replicación");
+		out.putShort((short) b.length);
+		out.put(b);
+	}
+
+	private static String getString(ByteBuffer in) {
+		int len = in.getShort() & 0xFFFF;
+		if (len == 0xFFFF)
+			return null;
+		String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+		in.position(in.position() + len);
+		return s;
+	}
+}
@@ -1,113 +1,507 @@
 package edu.javeriana.biblioteca.replication;
 
+import edu.javeriana.biblioteca.common.AppConfig;
+import edu.javeriana.biblioteca.common.Histogram;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.Date;
 import java.sql.PreparedStatement;
-import java.time.LocalDate;
-import java.util.concurrent.*;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Replicación primaria → secundaria por envío de log.
+ *
+ * Cada cambio confirmado en la primaria recibe un número de secuencia y se
+ * anexa a un archivo local (ReplicationLog). Los cambios se reparten en
+ * repl.lanes carriles según (branch_id, book_code): cada carril tiene su hilo
+ * shipper, que aplica en la secundaria en lotes transaccionales y en orden de
+ * secuencia, y guarda en la misma transacción la última secuencia aplicada del
+ * carril (replication_checkpoint). Claves distintas se replican en paralelo y
+ * cada clave conserva el orden en que se confirmó en la primaria.
+ * Tras una caída se relee el archivo y se saltan los cambios ya aplicados. Si
+ * repl.lanes cambió y quedaron pendientes con el reparto anterior, un shipper
+ * de recuperación los aplica primero, de a uno en orden de secuencia; los
+ * carriles nuevos esperan a que termine.
+ */
 public class Replicator {
 
 	private final DataSourceRouter router; // Router para elegir primaria/secundaria
-	private final ExecutorService exec = Executors.newFixedThreadPool(2); // Hilos para replicación async
+	private final FailbackResync resync; // registra lo escrito en la secundaria durante el failover
+	private final ReplicationLog log; // cambios pendientes en disco
+	private final String node; // identifica este GA en replication_checkpoint
+
+	private final int batchMax; // cambios por transacción en la secundaria
+	private final int lagMax; // pendientes a partir de los cuales se frena a la primaria
+	private final long backpressureTimeoutMs; // espera máxima por contrapresión
+	private final long retryMs; // espera entre reintentos del shipper
+	private final long compactBytes; // tamaño del archivo a partir del cual se compacta
+
+	private final Object appendLock = new Object(); // orden de secuencia = orden en el archivo
+	private final Object lock = new Object(); // protege las colas de los carriles
+	private final Lane[] lanes;
+	private final Lane recovery; // pendientes con otro repl.lanes; null si no hay
+	private volatile boolean recovering;
+	private int pendingTotal; // suma de pendientes de todos los carriles
+	private long nextSeq;
+	private ReplicationEntry lastAppended;
+
+	// Métricas
+	private final AtomicLong appliedEntries = new AtomicLong();
+	private final AtomicLong skippedEntries = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong backpressureWaits = new AtomicLong();
+	private final AtomicLong logErrors = new AtomicLong();
+	private final AtomicLong unchangedLoans = new AtomicLong(); // upserts que no cambiaron la fila
+	private final AtomicLong unchangedInventory = new AtomicLong();
+	private final AtomicLong idConflicts = new AtomicLong(); // loan_id que en la secundaria es de otro préstamo
+	private final AtomicLong statements = new AtomicLong(); // sentencias de datos enviadas a la secundaria
+	private final Histogram batchLatency = new Histogram("ms");
+
+	private volatile boolean running = true;
 
-	public Replicator(DataSourceRouter router) {
+	/** Carril: cola ordenada por secuencia y su hilo shipper */
+	private final class Lane {
+		final int id;
+		final ArrayDeque<ReplicationEntry> pending = new ArrayDeque<>();
+		final Thread shipper;
+		volatile long lastAppliedSeq;
+
+		Lane(int id) {
+			this.id = id;
+			this.shipper = new Thread(() -> shipLoop(this), id < 0 ? "repl-shipper-recuperacion" : "repl-shipper-" + id);
+			shipper.setDaemon(true);
+		}
+	}
+
+	public Replicator(DataSourceRouter router, FailbackResync resync) {
 		// Guarda referencia al router para saber dónde replicar
 		this.router = router;
+		this.resync = resync;
+		this.node = System.getProperty("repl.node.id", AppConfig.get("repl.node.id", defaultNode()));
+		this.batchMax = Integer.parseInt(AppConfig.get("repl.batch.max", "256"));
+		this.lagMax = Integer.parseInt(AppConfig.get("repl.lag.max", "50000"));
+		this.backpressureTimeoutMs = Long.parseLong(AppConfig.get("repl.backpressure.timeout.ms", "5000"));
+		this.retryMs = Long.parseLong(AppConfig.get("repl.retry.ms", "1000"));
+		this.compactBytes = Long.parseLong(AppConfig.get("repl.log.compact.bytes", String.valueOf(8 * 1024 * 1024)));
+		int laneCount = Math.max(1, Math.min(0xFFFF, Integer.parseInt(System.getProperty("repl.lanes",
+				AppConfig.get("repl.lanes", "4")))));
+		this.lanes = new Lane[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			lanes[i] = new Lane(i);
+		}
+
+		String file = System.getProperty("repl.log.file", AppConfig.get("repl.log.file", "replication.log"));
+		boolean fsync = Boolean.parseBoolean(AppConfig.get("repl.log.fsync", "true"));
+		this.log = new ReplicationLog(Paths.get(file), fsync);
+
+		// Recuperar lo que quedó en el archivo: el shipper descarta lo ya aplicado
+		try {
+			List<ReplicationEntry> recovered = log.open();
+			boolean relaned = false;
+			for (ReplicationEntry e : recovered) {
+				relaned |= e.lane() != laneOf(e.branchId(), e.bookCode());
+			}
+			if (relaned) {
+				// Con otro repl.lanes una clave quedaría en dos carriles (lo recuperado y lo
+				// nuevo) y un checkpoint de carril original, repartido entre dos shippers.
+				// Un solo shipper lo aplica todo en orden de secuencia antes que los carriles
+				recovery = new Lane(-1);
+				recovery.pending.addAll(recovered);
+				recovering = true;
+				System.out.printf("[Replicator] repl.lanes cambió con %d cambios pendientes: se aplican primero"
+						+ " en orden de secuencia%n", recovered.size());
+			} else {
+				recovery = null;
+				for (ReplicationEntry e : recovered) {
+					lanes[e.lane()].pending.addLast(e);
+				}
+			}
+			pendingTotal = recovered.size();
+			lastAppended = recovered.isEmpty() ? null : recovered.get(recovered.size() - 1);
+			nextSeq = lastAppended == null ? 1 : lastAppended.seq() + 1;
+			if (!recovered.isEmpty()) {
+				System.out.printf("[Replicator] %d cambios recuperados de %s (seq %d..%d)%n",
+						recovered.size(), file, recovered.get(0).seq(), lastAppended.seq());
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("No se pudo abrir el log de replicación " + file, e);
+		}
+
+		if (recovery != null) {
+			recovery.shipper.start();
+		}
+		for (Lane lane : lanes) {
+			lane.shipper.start();
+		}
 	}
 
-	public void replicateIncrementAvailable(String branchId, String bookCode) {
-		// Sólo replicar si la primaria está activa
-		if (!router.isPrimaryUp()) {
-			return;
+	private int laneOf(String branchId, String bookCode) {
+		// Carril fijo por (branch_id, book_code): préstamo e inventario de un libro van juntos
+		return Math.floorMod(Objects.hash(branchId, bookCode), lanes.length);
+	}
+
+	private static String defaultNode() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			return "ga";
 		}
+	}
 
-		// Ejecutar replicación en segundo plano
-		exec.submit(() -> {
-			try (Connection c = router.secondary().getConnection();
-					PreparedStatement ps = c.prepareStatement(
-							"UPDATE branch_inventory " +
-									"SET available_copies = available_copies + 1 " +
-									"WHERE branch_id = ? AND book_code = ?")) {
+	// written: BD en la que se confirmó el cambio (la que usó la operación)
 
-				ps.setString(1, branchId);
-				ps.setString(2, bookCode);
-				ps.executeUpdate();
+	public void replicateReturn(DataSource written, LoanState loan, InventoryState inventory) {
+		// Préstamo ya devuelto + inventario con la copia sumada
+		append(written, ReplicationEntry.Op.RETURN, loan, inventory);
+	}
 
-			} catch (Exception e) {
-				System.err.println("[Replicator] Error replicando inventario: " + e.getMessage());
-			}
-		});
+	public void replicateRenewal(DataSource written, LoanState loan) {
+		append(written, ReplicationEntry.Op.RENEWAL, loan, null);
+	}
+
+	public void replicateNewLoan(DataSource written, LoanState loan, InventoryState inventory) {
+		append(written, ReplicationEntry.Op.NEW_LOAN, loan, inventory);
 	}
 
-	public void replicateRenewLoan(String branchId, String userId, String bookCode) {
-		// No replicar si ya estamos usando la secundaria para escritura
-		if (!router.isPrimaryUp()) {
+	private void append(DataSource written, ReplicationEntry.Op op, LoanState loan, InventoryState inventory) {
+		// Cambio confirmado en la primaria → carril hacia la secundaria. Confirmado en
+		// la secundaria (failover) → queda registrado para copiarlo al volver. Se
+		// decide por la BD donde se escribió: el router pudo conmutar después del commit
+		if (written != router.primary()) {
+			if (resync != null) {
+				resync.track(op, loan, inventory);
+			}
 			return;
 		}
 
-		exec.submit(() -> {
-			try (Connection c = router.secondary().getConnection();
-					PreparedStatement ps = c.prepareStatement(
-							"UPDATE loans " +
-									"SET renewals = renewals + 1, " +
-									"    due_date = due_date + INTERVAL '7 day' " +
-									"WHERE user_id = ? AND book_code = ? AND branch_id = ? " +
-									"  AND status = 'ACTIVE' AND renewals < 2")) {
+		int lane = loan != null ? laneOf(loan.branchId(), loan.bookCode())
+				: laneOf(inventory.branchId(), inventory.bookCode());
+
+		// Bajo appendLock solo se escribe (orden de secuencia = orden en el archivo); el
+		// fsync va afuera para que los hilos que anexan a la vez compartan uno
+		long record = 0;
+		synchronized (appendLock) {
+			ReplicationEntry e = new ReplicationEntry(nextSeq++, System.currentTimeMillis(), lane, op, loan,
+					inventory);
+			try {
+				record = log.append(e);
+			} catch (IOException ex) {
+				// El cambio sigue en memoria; solo se pierde si el proceso cae antes de enviarlo
+				logErrors.incrementAndGet();
+				System.err.println("[Replicator] Error escribiendo log de replicación: " + ex.getMessage());
+			}
+			lastAppended = e;
+			synchronized (lock) {
+				lanes[lane].pending.addLast(e);
+				pendingTotal++;
+				lock.notifyAll();
+			}
+		}
+		try {
+			log.sync(record);
+		} catch (IOException ex) {
+			logErrors.incrementAndGet();
+			System.err.println("[Replicator] Error sincronizando log de replicación: " + ex.getMessage());
+		}
+
+		awaitCapacity();
+	}
+
+	private void awaitCapacity() {
+		// Contrapresión: si el retraso supera repl.lag.max, el llamador espera al shipper
+		synchronized (lock) {
+			if (pendingTotal <= lagMax) {
+				return;
+			}
+			backpressureWaits.incrementAndGet();
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backpressureTimeoutMs);
+			try {
+				while (pendingTotal > lagMax) {
+					long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if (left <= 0) {
+						System.err.printf("[Replicator] Retraso de replicación alto (%d pendientes), se continúa%n",
+								pendingTotal);
+						return;
+					}
+					lock.wait(left);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// ------------------------------------------------------------------
+	// Shipper
+	// ------------------------------------------------------------------
+
+	private void shipLoop(Lane lane) {
+		List<ReplicationEntry> batch = new ArrayList<>(batchMax);
+		while (running) {
+			batch.clear();
+			synchronized (lock) {
+				// Mientras hay recuperación, los carriles esperan (sus claves pueden estar en ella)
+				while ((lane.pending.isEmpty() || (recovering && lane != recovery)) && running) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				for (ReplicationEntry e : lane.pending) {
+					if (batch.size() >= batchMax) {
+						break;
+					}
+					batch.add(e);
+				}
+			}
+			if (batch.isEmpty()) {
+				continue;
+			}
+
+			try {
+				long t0 = System.nanoTime();
+				shipBatch(batch);
+				batchLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+				batches.incrementAndGet();
 
-				ps.setString(1, userId);
-				ps.setString(2, bookCode);
-				ps.setString(3, branchId);
-				ps.executeUpdate();
+				// Confirmado en la secundaria: sacar de pendientes
+				synchronized (lock) {
+					for (int i = 0; i < batch.size(); i++) {
+						lane.pending.pollFirst();
+					}
+					pendingTotal -= batch.size();
+					lane.lastAppliedSeq = batch.get(batch.size() - 1).seq();
+					if (lane == recovery && lane.pending.isEmpty()) {
+						recovering = false;
+						System.out.println("[Replicator] Pendientes recuperados aplicados; siguen los carriles");
+					}
+					lock.notifyAll();
+				}
+				compactIfNeeded();
+				if (lane == recovery && !recovering) {
+					return;
+				}
 
 			} catch (Exception e) {
-				System.err.println("[Replicator] Error replicando renovación: " + e.getMessage());
+				// Se reintenta el mismo lote: la secundaria no se salta cambios
+				if (!running) {
+					return;
+				}
+				retries.incrementAndGet();
+				System.err.println("[Replicator] Error aplicando lote en secundaria (carril " + lane.id + "): "
+						+ e.getMessage());
+				try {
+					Thread.sleep(retryMs);
+				} catch (InterruptedException ie) {
+					return;
+				}
 			}
-		});
+		}
 	}
 
-	public void replicateNewLoan(String branchId, String userId, String bookCode) {
-		// Evita replicar si estamos en secundaria
-		if (!router.isPrimaryUp()) {
-			return;
+	private void shipBatch(List<ReplicationEntry> batch) throws SQLException {
+		// Una transacción por lote: estados de fila (upsert de varias filas) + checkpoint
+		try (Connection c = router.secondary().getConnection()) {
+			c.setAutoCommit(false);
+			try {
+				// Checkpoint de cada carril de origen del lote (normalmente solo uno)
+				TreeMap<Integer, long[]> checkpoints = new TreeMap<>();
+				for (ReplicationEntry e : batch) {
+					checkpoints.putIfAbsent(e.lane(), null);
+				}
+				for (Map.Entry<Integer, long[]> ck : checkpoints.entrySet()) {
+					long applied = lockCheckpoint(c, ck.getKey());
+					ck.setValue(new long[] { applied, applied }); // {aplicado antes, último ahora}
+				}
+
+				// Estados en orden de secuencia; StateWriter deja el último por fila
+				List<LoanState> loans = new ArrayList<>(batch.size());
+				List<InventoryState> inventory = new ArrayList<>(batch.size());
+				int applied = 0;
+				for (ReplicationEntry e : batch) {
+					long[] ck = checkpoints.get(e.lane());
+					if (e.seq() <= ck[0]) {
+						// Ya aplicado antes de una caída (reintento tras commit sin confirmar)
+						skippedEntries.incrementAndGet();
+						continue;
+					}
+					if (e.loan() != null) {
+						loans.add(e.loan());
+					}
+					if (e.inventory() != null) {
+						inventory.add(e.inventory());
+					}
+					ck[1] = e.seq();
+					applied++;
+				}
+
+				StateWriter.Counts inv = StateWriter.upsertInventory(c, inventory);
+				StateWriter.Counts ln = StateWriter.upsertLoans(c, loans);
+
+				try (PreparedStatement ps = c.prepareStatement(
+						"UPDATE replication_checkpoint SET last_seq = ?, updated_at = now() " +
+								"WHERE node = ? AND lane = ?")) {
+					for (Map.Entry<Integer, long[]> ck : checkpoints.entrySet()) {
+						if (ck.getValue()[1] > ck.getValue()[0]) {
+							ps.setLong(1, ck.getValue()[1]);
+							ps.setString(2, node);
+							ps.setInt(3, ck.getKey());
+							ps.executeUpdate();
+						}
+					}
+				}
+				c.commit();
+
+				appliedEntries.addAndGet(applied);
+				unchangedLoans.addAndGet(ln.unchanged());
+				unchangedInventory.addAndGet(inv.unchanged());
+				if (ln.conflicts() > 0) {
+					idConflicts.addAndGet(ln.conflicts());
+					System.err.printf("[Replicator] %d loan_id ya usados por otro préstamo en la secundaria; no se pisan%n",
+							ln.conflicts());
+				}
+				statements.addAndGet((inv.rows() > 0 ? 1 : 0) + (ln.rows() > 0 ? 2 : 0));
+			} catch (SQLException e) {
+				c.rollback();
+				throw e;
+			}
 		}
+	}
 
-		exec.submit(() -> {
-			try (Connection c = router.secondary().getConnection();
-					PreparedStatement psInv = c.prepareStatement(
-							"UPDATE branch_inventory " +
-									"SET available_copies = available_copies - 1 " +
-									"WHERE branch_id = ? AND book_code = ?");
-					PreparedStatement psLoan = c.prepareStatement(
-							"INSERT INTO loans (user_id, book_code, branch_id, start_date, due_date, renewals, status) "
-									+
-									"VALUES (?,?,?,?,?,0,'ACTIVE') " +
-									"ON CONFLICT (loan_id) DO NOTHING")) {
-
-				// Replicar ajuste de inventario
-				psInv.setString(1, branchId);
-				psInv.setString(2, bookCode);
-				psInv.executeUpdate();
-
-				// Replicar creación del préstamo
-				LocalDate startDate = LocalDate.now();
-				LocalDate dueDate = startDate.plusDays(7);
-
-				psLoan.setString(1, userId);
-				psLoan.setString(2, bookCode);
-				psLoan.setString(3, branchId);
-				psLoan.setDate(4, Date.valueOf(startDate));
-				psLoan.setDate(5, Date.valueOf(dueDate));
-				psLoan.executeUpdate();
+	private long lockCheckpoint(Connection c, int lane) throws SQLException {
+		// Última secuencia aplicada del carril, con la fila bloqueada hasta el commit
+		try (PreparedStatement ins = c.prepareStatement(
+				"INSERT INTO replication_checkpoint (node, lane, last_seq) VALUES (?, ?, 0) " +
+						"ON CONFLICT (node, lane) DO NOTHING");
+				PreparedStatement sel = c.prepareStatement(
+						"SELECT last_seq FROM replication_checkpoint WHERE node = ? AND lane = ? FOR UPDATE")) {
+			ins.setString(1, node);
+			ins.setInt(2, lane);
+			ins.executeUpdate();
+			sel.setString(1, node);
+			sel.setInt(2, lane);
+			try (ResultSet rs = sel.executeQuery()) {
+				return rs.next() ? rs.getLong(1) : 0;
+			}
+		}
+	}
 
-			} catch (Exception e) {
-				System.err.println("[Replicator] Error replicando préstamo nuevo: " + e.getMessage());
+	private void compactIfNeeded() {
+		// Reescribe el archivo con los pendientes (y el último anexado, que fija la secuencia)
+		try {
+			if (log.size() < compactBytes) {
+				return;
+			}
+			synchronized (appendLock) {
+				List<ReplicationEntry> keep;
+				synchronized (lock) {
+					keep = new ArrayList<>(pendingTotal);
+					if (recovery != null) {
+						keep.addAll(recovery.pending);
+					}
+					for (Lane lane : lanes) {
+						keep.addAll(lane.pending);
+					}
+				}
+				keep.sort(Comparator.comparingLong(ReplicationEntry::seq));
+				if (keep.isEmpty() && lastAppended != null) {
+					keep.add(lastAppended);
+				}
+				log.rewrite(keep);
+			}
+		} catch (IOException e) {
+			System.err.println("[Replicator] Error compactando log de replicación: " + e.getMessage());
+		}
+	}
+
+	// ------------------------------------------------------------------
+	// Métricas
+	// ------------------------------------------------------------------
+
+	public int lagEntries() {
+		// Cambios confirmados en la primaria que aún no están en la secundaria
+		synchronized (lock) {
+			return pendingTotal;
+		}
+	}
+
+	public long lagMillis() {
+		// Antigüedad del cambio pendiente más viejo
+		synchronized (lock) {
+			long oldest = Long.MAX_VALUE;
+			if (recovery != null && recovery.pending.peekFirst() != null) {
+				oldest = recovery.pending.peekFirst().timestampMs();
+			}
+			for (Lane lane : lanes) {
+				ReplicationEntry e = lane.pending.peekFirst();
+				if (e != null) {
+					oldest = Math.min(oldest, e.timestampMs());
+				}
+			}
+			return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+		}
+	}
+
+	public long zeroRowUpdates() {
+		// Estados que no cambiaron la fila en la secundaria (repetidos o más viejos)
+		return unchangedLoans.get() + unchangedInventory.get();
+	}
+
+	public String stats() {
+		StringBuilder perLane = new StringBuilder();
+		synchronized (lock) {
+			if (recovering) {
+				perLane.append("recuperacion:").append(recovery.pending.size());
+			}
+			for (Lane lane : lanes) {
+				perLane.append(perLane.length() == 0 ? "" : " ")
+						.append(lane.id).append(':').append(lane.pending.size())
+						.append('@').append(lane.lastAppliedSeq);
 			}
-		});
+		}
+		return String.format(
+				"replicacion: pendientes=%d retraso=%d ms aplicados=%d omitidos=%d lotes=%d sentencias=%d "
+						+ "reintentos=%d contrapresion=%d errores_log=%d sin_filas=%d (prestamos=%d inventario=%d) "
+						+ "conflictos_id=%d fsyncs=%d carriles=[%s] | lote: %s",
+				lagEntries(), lagMillis(), appliedEntries.get(), skippedEntries.get(), batches.get(),
+				statements.get(), retries.get(), backpressureWaits.get(), logErrors.get(), zeroRowUpdates(),
+				unchangedLoans.get(), unchangedInventory.get(), idConflicts.get(), log.forces(), perLane,
+				batchLatency.summary());
 	}
 
 	public void shutdown() {
-		// Apagar los hilos del replicador
-		exec.shutdown();
+		// Detener el shipper y cerrar el log (lo pendiente queda en disco)
+		running = false;
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+		try {
+			if (recovery != null) {
+				recovery.shipper.interrupt();
+				recovery.shipper.join(2000);
+			}
+			for (Lane lane : lanes) {
+				lane.shipper.interrupt();
+				lane.shipper.join(2000);
+			}
+			log.close();
+		} catch (Exception e) {
+			System.err.println("[Replicator] Error cerrando: " + e.getMessage());
+		}
 	}
 }
@@ -0,0 +1,179 @@
+package edu.javeriana.biblioteca.replication;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Escribe estados de fila (LoanState / InventoryState) en una BD con un
+ * INSERT ... ON CONFLICT DO UPDATE de varias filas por sentencia.
+ *
+ * Aplicar el mismo estado dos veces no cambia nada, así que los reintentos y
+ * las repeticiones del log son idempotentes. Para loans se conserva loan_id y
+ * un estado viejo no pisa uno más avanzado (menos renovaciones, o ACTIVE sobre
+ * un préstamo ya cerrado). Tampoco se pisa una fila con el mismo loan_id pero
+ * otro (usuario, libro, sede): es otro préstamo con un id repetido entre nodos
+ * (ver DataSourceRouter); se deja como está y se cuenta en Counts.conflicts.
+ */
+public final class StateWriter {
+
+	/** Filas distintas enviadas, filas que realmente cambiaron y loan_id ya usados por otro préstamo */
+	public record Counts(int rows, int written, int conflicts) {
+		public int unchanged() {
+			return rows - written;
+		}
+	}
+
+	// Filas recibidas (v) y upsert (w) en una sola sentencia; el SELECT final ve la
+	// tabla como estaba antes, así cuenta los loan_id que ya eran de otro préstamo
+	private static final String UPSERT_LOANS_HEAD = "WITH v (loan_id, user_id, book_code, branch_id, " +
+			"  start_date, due_date, renewals, status) AS (" +
+			"  SELECT * FROM unnest(?::bigint[], ?::text[], ?::text[], ?::text[], ?::date[], ?::date[], ?::int[], ?::text[])), " +
+			"w AS (INSERT INTO loans " +
+			"  (loan_id, user_id, book_code, branch_id, start_date, due_date, renewals, status) " +
+			"  OVERRIDING SYSTEM VALUE SELECT * FROM v " +
+			"  ON CONFLICT (loan_id) DO UPDATE SET " +
+			"    user_id = EXCLUDED.user_id, book_code = EXCLUDED.book_code, branch_id = EXCLUDED.branch_id, " +
+			"    start_date = EXCLUDED.start_date, due_date = EXCLUDED.due_date, " +
+			"    renewals = EXCLUDED.renewals, status = EXCLUDED.status " +
+			"  WHERE (loans.user_id, loans.book_code, loans.branch_id, loans.start_date, loans.due_date, " +
+			"         loans.renewals, loans.status) IS DISTINCT FROM " +
+			"        (EXCLUDED.user_id, EXCLUDED.book_code, EXCLUDED.branch_id, EXCLUDED.start_date, " +
+			"         EXCLUDED.due_date, EXCLUDED.renewals, EXCLUDED.status) ";
+
+	private static final String UPSERT_LOANS_TAIL = "  RETURNING 1) " +
+			"SELECT (SELECT count(*) FROM w), " +
+			"  (SELECT count(*) FROM v JOIN loans l ON l.loan_id = v.loan_id " +
+			"   WHERE (l.user_id, l.book_code, l.branch_id) IS DISTINCT FROM (v.user_id, v.book_code, v.branch_id))";
+
+	// Reparación: el estado recibido se impone
+	private static final String UPSERT_LOANS_FORCED = UPSERT_LOANS_HEAD + UPSERT_LOANS_TAIL;
+
+	// Replicación y failback: un estado viejo no pisa uno más avanzado, ni un
+	// préstamo pisa a otro que tiene el mismo loan_id
+	private static final String UPSERT_LOANS = UPSERT_LOANS_HEAD +
+			"  AND loans.renewals <= EXCLUDED.renewals " +
+			"  AND NOT (loans.status <> 'ACTIVE' AND EXCLUDED.status = 'ACTIVE') " +
+			"  AND (loans.user_id, loans.book_code, loans.branch_id) = " +
+			"      (EXCLUDED.user_id, EXCLUDED.book_code, EXCLUDED.branch_id) " +
+			UPSERT_LOANS_TAIL;
+
+	// loan_id llega desde la primaria: la secuencia local no debe quedar atrás
+	// (nunca se retrocede, aunque otro carril la haya movido más adelante)
+	private static final String SYNC_LOAN_SEQUENCE = "SELECT setval(pg_get_serial_sequence('loans', 'loan_id'), " +
+			"GREATEST(?, (SELECT COALESCE(MAX(loan_id), 1) FROM loans), " +
+			"  COALESCE(pg_sequence_last_value(pg_get_serial_sequence('loans', 'loan_id')::regclass), 1)))";
+
+	private static final String UPSERT_INVENTORY = "INSERT INTO branch_inventory " +
+			"(branch_id, book_code, total_copies, available_copies) " +
+			"SELECT * FROM unnest(?::text[], ?::text[], ?::int[], ?::int[]) " +
+			"ON CONFLICT (branch_id, book_code) DO UPDATE SET " +
+			"  total_copies = EXCLUDED.total_copies, available_copies = EXCLUDED.available_copies " +
+			"WHERE (branch_inventory.total_copies, branch_inventory.available_copies) " +
+			"      IS DISTINCT FROM (EXCLUDED.total_copies, EXCLUDED.available_copies)";
+
+	private StateWriter() {
+	}
+
+	public static Counts upsertLoans(Connection c, Collection<LoanState> states) throws SQLException {
+		return upsertLoans(c, states, false);
+	}
+
+	public static Counts upsertLoans(Connection c, Collection<LoanState> states, boolean force)
+			throws SQLException {
+		// Una fila por loan_id (gana el último estado en el orden recibido). Con force
+		// el estado recibido se impone aunque sea menos avanzado (reparación)
+		Map<Long, LoanState> last = new LinkedHashMap<>();
+		for (LoanState s : states) {
+			last.put(s.loanId(), s);
+		}
+		if (last.isEmpty()) {
+			return new Counts(0, 0, 0);
+		}
+
+		int n = last.size();
+		Long[] ids = new Long[n];
+		String[] users = new String[n];
+		String[] books = new String[n];
+		String[] branches = new String[n];
+		String[] starts = new String[n];
+		String[] dues = new String[n];
+		Integer[] renewals = new Integer[n];
+		String[] statuses = new String[n];
+		long maxId = 0;
+		int i = 0;
+		for (LoanState s : last.values()) {
+			ids[i] = s.loanId();
+			users[i] = s.userId();
+			books[i] = s.bookCode();
+			branches[i] = s.branchId();
+			starts[i] = s.startDate().toString();
+			dues[i] = s.dueDate().toString();
+			renewals[i] = s.renewals();
+			statuses[i] = s.status();
+			maxId = Math.max(maxId, s.loanId());
+			i++;
+		}
+
+		int written;
+		int conflicts;
+		try (PreparedStatement ps = c.prepareStatement(force ? UPSERT_LOANS_FORCED : UPSERT_LOANS)) {
+			ps.setArray(1, c.createArrayOf("bigint", ids));
+			ps.setArray(2, c.createArrayOf("text", users));
+			ps.setArray(3, c.createArrayOf("text", books));
+			ps.setArray(4, c.createArrayOf("text", branches));
+			ps.setArray(5, c.createArrayOf("date", starts));
+			ps.setArray(6, c.createArrayOf("date", dues));
+			ps.setArray(7, c.createArrayOf("int4", renewals));
+			ps.setArray(8, c.createArrayOf("text", statuses));
+			try (ResultSet rs = ps.executeQuery()) {
+				rs.next();
+				written = rs.getInt(1);
+				conflicts = rs.getInt(2);
+			}
+		}
+		try (PreparedStatement ps = c.prepareStatement(SYNC_LOAN_SEQUENCE)) {
+			ps.setLong(1, maxId);
+			ps.execute();
+		}
+		return new Counts(n, written, conflicts);
+	}
+
+	public static Counts upsertInventory(Connection c, Collection<InventoryState> states) throws SQLException {
+		// Una fila por (branch_id, book_code) (gana el último estado en el orden recibido)
+		Map<List<String>, InventoryState> last = new LinkedHashMap<>();
+		for (InventoryState s : states) {
+			last.put(List.of(s.branchId(), s.bookCode()), s);
+		}
+		if (last.isEmpty()) {
+			return new Counts(0, 0, 0);
+		}
+
+		int n = last.size();
+		String[] branches = new String[n];
+		String[] books = new String[n];
+		Integer[] totals = new Integer[n];
+		Integer[] available = new Integer[n];
+		int i = 0;
+		for (InventoryState s : last.values()) {
+			branches[i] = s.branchId();
+			books[i] = s.bookCode();
+			totals[i] = s.totalCopies();
+			available[i] = s.availableCopies();
+			i++;
+		}
+
+		try (PreparedStatement ps = c.prepareStatement(UPSERT_INVENTORY)) {
+			ps.setArray(1, c.createArrayOf("text", branches));
+			ps.setArray(2, c.createArrayOf("text", books));
+			ps.setArray(3, c.createArrayOf("int4", totals));
+			ps.setArray(4, c.createArrayOf("int4", available));
+			return new Counts(n, ps.executeUpdate(), 0);
+		}
+	}
+}
@@ -5,6 +5,12 @@ DROP TABLE IF EXISTS loans CASCADE;
 DROP TABLE IF EXISTS branch_inventory CASCADE;
 DROP TABLE IF EXISTS books CASCADE;
 DROP TABLE IF EXISTS branches CASCADE;
+DROP TABLE IF EXISTS replication_checkpoint CASCADE;
+DROP TABLE IF EXISTS request_log CASCADE;
+DROP FUNCTION IF EXISTS apply_request(TEXT, TEXT, TEXT, TEXT, TEXT);
+DROP FUNCTION IF EXISTS apply_loan(TEXT, TEXT, TEXT);
+DROP FUNCTION IF EXISTS apply_return(TEXT, TEXT, TEXT);
+DROP FUNCTION IF EXISTS apply_renewal(TEXT, TEXT, TEXT);
 
 -- =====================================================================
 -- 2. Tablas del sistema
@@ -154,4 +160,256 @@ FROM (
   GROUP BY branch_id, book_code
 ) AS lo
 WHERE bi.branch_id = lo.branch_id
-  AND bi.book_code = lo.book_code;
\ No newline at end of file
+  AND bi.book_code = lo.book_code;
+
+-- =====================================================================
+-- 8. Control de replicación (se usa en la BD secundaria)
+--     Última secuencia del log de replicación aplicada por cada GA;
+--     se actualiza en la misma transacción que el lote aplicado
+-- =====================================================================
+CREATE TABLE replication_checkpoint (
+  node       TEXT NOT NULL,                                   -- GA de origen (repl.node.id)
+  lane       INT  NOT NULL,
+  last_seq   BIGINT NOT NULL,
+  updated_at TIMESTAMPTZ NOT NULL DEFAULT now(),
+  PRIMARY KEY (node, lane)
+);
+
+-- =====================================================================
+-- 9. Operaciones del GA en una sola sentencia (ga.sql.mode=functions)
+--     Cada función hace la operación completa en el servidor y devuelve
+--     un código de resultado:
+--       APPLIED  se aplicó (una fila por préstamo, con el inventario final)
+--       ALREADY  ya estaba aplicada (idempotente)
+--       otro     error de negocio; detail lleva el dato para el mensaje
+-- =====================================================================
+
+-- Préstamo: NO_STOCK (libro sin inventario en la sede) o NO_COPIES (agotado).
+-- El inventario se bloquea antes de volver a mirar los préstamos activos, así
+-- dos préstamos iguales en paralelo no crean dos filas.
+CREATE FUNCTION apply_loan(p_branch TEXT, p_user TEXT, p_book TEXT)
+RETURNS TABLE (code TEXT, detail TEXT,
+               loan_id BIGINT, user_id TEXT, book_code TEXT, branch_id TEXT,
+               start_date DATE, due_date DATE, renewals INT, status TEXT,
+               inv_total INT, inv_available INT)
+LANGUAGE plpgsql AS $$
+#variable_conflict use_column
+DECLARE
+  v_total     INT;
+  v_available INT;
+BEGIN
+  -- Idempotencia: ya existe un préstamo activo
+  PERFORM 1 FROM loans l
+   WHERE l.branch_id = p_branch AND l.user_id = p_user AND l.book_code = p_book AND l.status = 'ACTIVE';
+  IF FOUND THEN
+    code := 'ALREADY';
+    RETURN NEXT;
+    RETURN;
+  END IF;
+
+  SELECT bi.total_copies, bi.available_copies INTO v_total, v_available
+    FROM branch_inventory bi
+   WHERE bi.branch_id = p_branch AND bi.book_code = p_book
+     FOR UPDATE;
+  IF NOT FOUND THEN
+    code := 'NO_STOCK';
+    RETURN NEXT;
+    RETURN;
+  END IF;
+  inv_total := v_total;
+  inv_available := v_available;
+
+  -- Otra transacción pudo crear el préstamo mientras se esperaba el lock
+  PERFORM 1 FROM loans l
+   WHERE l.branch_id = p_branch AND l.user_id = p_user AND l.book_code = p_book AND l.status = 'ACTIVE';
+  IF FOUND THEN
+    code := 'ALREADY';
+    RETURN NEXT;
+    RETURN;
+  END IF;
+
+  IF v_available <= 0 THEN
+    code := 'NO_COPIES';
+    RETURN NEXT;
+    RETURN;
+  END IF;
+
+  RETURN QUERY
+  WITH inv AS (
+    UPDATE branch_inventory bi SET available_copies = bi.available_copies - 1
+     WHERE bi.branch_id = p_branch AND bi.book_code = p_book
+    RETURNING bi.total_copies, bi.available_copies
+  ), ins AS (
+    INSERT INTO loans (user_id, book_code, branch_id, start_date, due_date, renewals, status)
+    VALUES (p_user, p_book, p_branch, CURRENT_DATE, CURRENT_DATE + 7, 0, 'ACTIVE')
+    RETURNING loans.*
+  )
+  SELECT 'APPLIED'::TEXT, NULL::TEXT,
+         ins.loan_id, ins.user_id, ins.book_code, ins.branch_id,
+         ins.start_date, ins.due_date, ins.renewals, ins.status,
+         inv.total_copies, inv.available_copies
+    FROM ins, inv;
+END;
+$$;
+
+-- Devolución: NO_LOAN (nunca prestado) o BAD_STATUS (detail = estado actual).
+-- Si hay préstamo activo se devuelve y el inventario suma un ejemplar.
+CREATE FUNCTION apply_return(p_branch TEXT, p_user TEXT, p_book TEXT)
+RETURNS TABLE (code TEXT, detail TEXT,
+               loan_id BIGINT, user_id TEXT, book_code TEXT, branch_id TEXT,
+               start_date DATE, due_date DATE, renewals INT, status TEXT,
+               inv_total INT, inv_available INT)
+LANGUAGE plpgsql AS $$
+#variable_conflict use_column
+DECLARE
+  v_status TEXT;
+BEGIN
+  RETURN QUERY
+  WITH upd AS (
+    UPDATE loans l SET status = 'RETURNED'
+     WHERE l.user_id = p_user AND l.book_code = p_book AND l.branch_id = p_branch AND l.status = 'ACTIVE'
+    RETURNING l.*
+  ), inv AS (
+    UPDATE branch_inventory bi SET available_copies = bi.available_copies + 1
+     WHERE bi.branch_id = p_branch AND bi.book_code = p_book AND EXISTS (SELECT 1 FROM upd)
+    RETURNING bi.total_copies, bi.available_copies
+  )
+  SELECT 'APPLIED'::TEXT, NULL::TEXT,
+         upd.loan_id, upd.user_id, upd.book_code, upd.branch_id,
+         upd.start_date, upd.due_date, upd.renewals, upd.status,
+         inv.total_copies, inv.available_copies
+    FROM upd LEFT JOIN inv ON true;
+  IF FOUND THEN
+    RETURN;
+  END IF;
+
+  -- Nada activo: mirar el último préstamo para decidir si es idempotente
+  SELECT l.status INTO v_status FROM loans l
+   WHERE l.user_id = p_user AND l.book_code = p_book AND l.branch_id = p_branch
+   ORDER BY l.start_date DESC LIMIT 1;
+  IF NOT FOUND THEN
+    code := 'NO_LOAN';
+  ELSIF v_status = 'RETURNED' THEN
+    code := 'ALREADY';
+  ELSE
+    code := 'BAD_STATUS';
+    detail := v_status;
+  END IF;
+  RETURN NEXT;
+END;
+$$;
+
+-- Renovación: NO_LOAN, NOT_ACTIVE (detail = estado) o INCONSISTENT.
+-- Con el máximo de renovaciones alcanzado es idempotente (ALREADY).
+CREATE FUNCTION apply_renewal(p_branch TEXT, p_user TEXT, p_book TEXT)
+RETURNS TABLE (code TEXT, detail TEXT,
+               loan_id BIGINT, user_id TEXT, book_code TEXT, branch_id TEXT,
+               start_date DATE, due_date DATE, renewals INT, status TEXT,
+               inv_total INT, inv_available INT)
+LANGUAGE plpgsql AS $$
+#variable_conflict use_column
+DECLARE
+  v_renewals INT;
+  v_status   TEXT;
+BEGIN
+  RETURN QUERY
+  WITH upd AS (
+    UPDATE loans l SET renewals = l.renewals + 1, due_date = l.due_date + 7
+     WHERE l.user_id = p_user AND l.book_code = p_book AND l.branch_id = p_branch
+       AND l.status = 'ACTIVE' AND l.renewals < 2
+    RETURNING l.*
+  )
+  SELECT 'APPLIED'::TEXT, NULL::TEXT,
+         upd.loan_id, upd.user_id, upd.book_code, upd.branch_id,
+         upd.start_date, upd.due_date, upd.renewals, upd.status,
+         NULL::INT, NULL::INT
+    FROM upd;
+  IF FOUND THEN
+    RETURN;
+  END IF;
+
+  SELECT l.renewals, l.status INTO v_renewals, v_status FROM loans l
+   WHERE l.user_id = p_user AND l.book_code = p_book AND l.branch_id = p_branch
+   ORDER BY l.start_date DESC LIMIT 1;
+  IF NOT FOUND THEN
+    code := 'NO_LOAN';
+  ELSIF v_status <> 'ACTIVE' THEN
+    code := 'NOT_ACTIVE';
+    detail := v_status;
+  ELSIF v_renewals >= 2 THEN
+    code := 'ALREADY';
+  ELSE
+    code := 'INCONSISTENT';
+    detail := 'renewals=' || v_renewals || ', status=' || v_status;
+  END IF;
+  RETURN NEXT;
+END;
+$$;
+
+-- =====================================================================
+-- 10. Idempotencia por id de solicitud
+--     Cada solicitud del PS trae un request_id que se conserva en los
+--     reintentos. El GA guarda aquí el código con que terminó, así un
+--     reintento (en este GA o en otro) se responde sin tocar loans.
+--     El GA borra las filas más viejas que ga.dedup.retention.h.
+-- =====================================================================
+CREATE TABLE request_log (
+  request_id TEXT PRIMARY KEY,
+  code       TEXT,                                            -- NULL mientras se aplica
+  detail     TEXT,
+  created_at TIMESTAMPTZ NOT NULL DEFAULT now()
+);
+
+CREATE INDEX idx_request_log_created ON request_log(created_at);
+
+-- apply_loan / apply_return / apply_renewal con request_id. El id se inserta
+-- antes de la operación: un reintento concurrente desde otro GA espera en la
+-- clave primaria hasta el commit y luego lee el código guardado. Devuelve las
+-- mismas columnas que la función más replayed (true = resultado de request_log,
+-- sin filas de préstamo ni inventario).
+CREATE FUNCTION apply_request(p_request TEXT, p_fn TEXT, p_branch TEXT, p_user TEXT, p_book TEXT)
+RETURNS TABLE (code TEXT, detail TEXT,
+               loan_id BIGINT, user_id TEXT, book_code TEXT, branch_id TEXT,
+               start_date DATE, due_date DATE, renewals INT, status TEXT,
+               inv_total INT, inv_available INT, replayed BOOLEAN)
+LANGUAGE plpgsql AS $$
+#variable_conflict use_column
+DECLARE
+  r        RECORD;
+  v_code   TEXT;
+  v_detail TEXT;
+BEGIN
+  IF p_fn NOT IN ('apply_loan', 'apply_return', 'apply_renewal') THEN
+    RAISE EXCEPTION 'apply_request: funcion desconocida %', p_fn;
+  END IF;
+
+  INSERT INTO request_log (request_id) VALUES (p_request) ON CONFLICT DO NOTHING;
+  IF NOT FOUND THEN
+    SELECT rl.code, rl.detail INTO code, detail FROM request_log rl WHERE rl.request_id = p_request;
+    replayed := true;
+    RETURN NEXT;
+    RETURN;
+  END IF;
+
+  FOR r IN EXECUTE format('SELECT * FROM %I($1, $2, $3)', p_fn) USING p_branch, p_user, p_book LOOP
+    code := r.code;
+    detail := r.detail;
+    loan_id := r.loan_id;
+    user_id := r.user_id;
+    book_code := r.book_code;
+    branch_id := r.branch_id;
+    start_date := r.start_date;
+    due_date := r.due_date;
+    renewals := r.renewals;
+    status := r.status;
+    inv_total := r.inv_total;
+    inv_available := r.inv_available;
+    replayed := false;
+    v_code := r.code;
+    v_detail := r.detail;
+    RETURN NEXT;
+  END LOOP;
+
+  UPDATE request_log rl SET code = v_code, detail = v_detail WHERE rl.request_id = p_request;
+END;
+$$;